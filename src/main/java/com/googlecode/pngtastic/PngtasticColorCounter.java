@@ -22,14 +22,18 @@ public class PngtasticColorCounter {
 			+ "  --freqThreshold    the percentage a color must be represented in the overall image (0.0 to 1.0)\n"
 			+ "  --minAlpha         the minimum alpha channel value a pixel must have\n"
 			+ "  --timeout          the number of milliseconds after which color counting will be aborted\n"
+			+ "  --concurrent       count the colors of large images on all cores (true or false)\n"
+			+ "  --samplingError    sample pixels instead of counting them all, to within this error (0.0 to 1.0)\n"
 			+ "  --logLevel         the level of logging output (none, debug, info, or error)\n";
 
 	/** */
 	public PngtasticColorCounter(String[] fileNames, String logLevel, double distThreshold, double freqThreshold,
-			int minAlpha, long timeout) {
+			int minAlpha, long timeout, boolean concurrent, double samplingError) {
 
 		long start = System.currentTimeMillis();
 		PngColorCounter counter = new PngColorCounter(logLevel, distThreshold, freqThreshold, minAlpha, timeout);
+		counter.setConcurrent(concurrent);
+		counter.setSamplingError(samplingError);
 
 		for (String file : fileNames) {
 			try {
@@ -74,9 +78,11 @@ public class PngtasticColorCounter {
 		Double freqThreshold = safeDouble(options.get("--freqThreshold"), 0.0005D);
 		Integer minAlpha = safeInteger(options.get("--minAlpha"), 30);
 		Integer timeout = safeInteger(options.get("--timeout"), 0);
+		Boolean concurrent = Boolean.valueOf(options.get("--concurrent"));
+		Double samplingError = safeDouble(options.get("--samplingError"), 0D);
 		String logLevel = options.get("--logLevel");
 
-		new PngtasticColorCounter(files, logLevel, distThreshold, freqThreshold, minAlpha, timeout);
+		new PngtasticColorCounter(files, logLevel, distThreshold, freqThreshold, minAlpha, timeout, concurrent, samplingError);
 	}
 
 	private static Integer safeInteger(String input, Integer dflt) {
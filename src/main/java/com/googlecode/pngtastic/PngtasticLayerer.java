@@ -1,15 +1,19 @@
 package com.googlecode.pngtastic;
 
 import com.googlecode.pngtastic.core.PngException;
+import com.googlecode.pngtastic.core.PngBlendMode;
 import com.googlecode.pngtastic.core.PngImage;
+import com.googlecode.pngtastic.core.PngLayer;
 import com.googlecode.pngtastic.core.PngLayerer;
 import com.googlecode.pngtastic.core.PngOptimizer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -26,37 +30,41 @@ public class PngtasticLayerer {
 			+ "  --toDir            the directory where the layered file goes (will be created if it doesn't exist)\n"
 			+ "  --outFile          the filename of the layered file\n"
 			+ "  --compressionLevel the compression level; 0-9 allowed (default is to try them all by brute force)\n"
+			+ "  --blendMode        how each layer is blended with the image beneath it (normal, multiply, screen,\n"
+			+ "                     overlay, darken, lighten or difference; default is normal)\n"
 			+ "  --logLevel         the level of logging output (none, debug, info, or error)\n";
 
 	/** */
 	public PngtasticLayerer(String toDir, String[] fileNames, String outFile, Integer compressionLevel, String logLevel) {
+		this(toDir, fileNames, outFile, compressionLevel, PngBlendMode.NORMAL, logLevel);
+	}
+
+	/** */
+	public PngtasticLayerer(String toDir, String[] fileNames, String outFile, Integer compressionLevel, PngBlendMode blendMode, String logLevel) {
 		final long start = System.currentTimeMillis();
 
 		final PngLayerer layerer = new PngLayerer(logLevel);
-		final PngOptimizer optimizer = new PngOptimizer(logLevel);
+		layerer.setOptimizer(new PngOptimizer(logLevel));
 
+		long size = 0;
 		try {
-			PngImage baseImage = new PngImage(fileNames[0], logLevel);
+			final List<PngLayer> layers = new ArrayList<>();
 			for (int i = 1; i < fileNames.length; i++) {
-				final String file = fileNames[i];
-
-				final PngImage image = new PngImage(file, logLevel);
-				baseImage = layerer.layer(baseImage, image, compressionLevel, false);
+				layers.add(new PngLayer(new PngImage(fileNames[i], logLevel), 0, 0, blendMode));
 			}
+			final PngImage baseImage = layerer.layer(new PngImage(fileNames[0], logLevel), layers, compressionLevel);
 			final ByteArrayOutputStream outputBytes = new ByteArrayOutputStream();
 			baseImage.writeDataOutputStream(outputBytes);
 
 			final String file = toDir + File.separator + outFile;
 			baseImage.setFileName(file);
-			baseImage.export(file, outputBytes.toByteArray());
-
-			optimizer.optimize(baseImage, file, false, compressionLevel);
+			size = baseImage.export(file, outputBytes.toByteArray()).length();
 		} catch (PngException | IOException e) {
 			e.printStackTrace();
 		}
 
-		System.out.println(String.format("Processed %d files in %d milliseconds, saving %d bytes",
-				optimizer.getResults().size(), System.currentTimeMillis() - start, optimizer.getTotalSavings()));
+		System.out.println(String.format("Layered %d files in %d milliseconds, into %d bytes",
+				fileNames.length, System.currentTimeMillis() - start, size));
 	}
 
 	/** */
@@ -87,9 +95,10 @@ public class PngtasticLayerer {
 		final String toDir = (options.get("--toDir") == null) ? "." : options.get("--toDir");
 		final String outFile = (options.get("--outFile") == null) ? "" : options.get("--outFile");
 		final Integer compressionLevel = safeInteger(options.get("--compressionLevel"));
+		final PngBlendMode blendMode = PngBlendMode.forName(options.get("--blendMode"));
 		final String logLevel = options.get("--logLevel");
 
-		new PngtasticLayerer(toDir, files, outFile, compressionLevel, logLevel);
+		new PngtasticLayerer(toDir, files, outFile, compressionLevel, blendMode, logLevel);
 	}
 
 	/* */
@@ -1,14 +1,30 @@
 package com.googlecode.pngtastic;
 
+import com.googlecode.pngtastic.core.PngAlphaCleanup;
+import com.googlecode.pngtastic.core.PngChunkInserter;
+import com.googlecode.pngtastic.core.PngChunkPolicy;
+import com.googlecode.pngtastic.core.PngDigest;
 import com.googlecode.pngtastic.core.PngException;
 import com.googlecode.pngtastic.core.PngImage;
+import com.googlecode.pngtastic.core.PngMetrics;
 import com.googlecode.pngtastic.core.PngOptimizer;
+import com.googlecode.pngtastic.core.PngOptimizer.OptimizerResult;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * Optimizes PNG images to reduce filesize
@@ -20,6 +36,10 @@ import java.util.Map;
  * @author rayvanderborght
  */
 public class PngtasticOptimizer {
+	/** */
+	private static final String DEDUP_FILE = "file";
+	private static final String DEDUP_PIXELS = "pixels";
+
 	/** */
 	private static final String HELP = "java -cp pngtastic-x.x.jar com.googlecode.pngtastic.PngtasticOptimizer [options] file1 [file2 ..]\n"
 			+ "Options:\n"
@@ -29,30 +49,257 @@ public class PngtasticOptimizer {
 			+ "  --compressionLevel the compression level; 0-9 allowed (default is to try them all by brute force)\n"
 			+ "  --compressor       path to an alternate compressor (e.g. zopfli)\n"
 			+ "  --iterations       number of compression iterations (useful for zopfli)\n"
+			+ "  --idatChunkSize    the maximum size in bytes of each IDAT chunk written (default is a single chunk)\n"
+			+ "  --pipeline         read and write files on i/o threads while others compress (true or false)\n"
+			+ "  --reduceColors     losslessly reduce the color type and bit depth where possible (true or false)\n"
+			+ "  --reorderPalette   try reordering the palettes of indexed images (true or false)\n"
+			+ "  --alphaCleanup     rewrite the color of fully transparent pixels (none, zero, left, up, or predict)\n"
+			+ "  --dedup            optimize each distinct image once, finding copies by file or by pixels (none, file, or pixels)\n"
+			+ "  --keepChunks       comma separated chunk types to keep (e.g. tEXt,pHYs)\n"
+			+ "  --stripChunks      comma separated chunk types to strip\n"
+			+ "  --stripAncillary   strip ancillary chunks not otherwise kept (true or false, default is true)\n"
+			+ "  --keepColorManagement keep the gAMA, cHRM, sRGB and iCCP chunks (true or false)\n"
+			+ "  --maxTextLength    keep text chunks shorter than this many bytes\n"
+			+ "  --stripOnly        only strip or add chunks, copying the rest as they are without recompressing (true or false)\n"
+			+ "  --dpi              add a pHYs chunk for this many dots per inch, in place of any there is\n"
+			+ "  --metrics          print the time spent in each stage and the winning filters and compressions (true or false)\n"
 			+ "  --logLevel         the level of logging output (none, debug, info, or error)\n";
 
+	/**
+	 * The options beyond those the command line always had, each set to the
+	 * value it has when left off the command line
+	 */
+	public static class Options {
+		/** the maximum size of each IDAT chunk written, or null for a single chunk */
+		private Integer idatChunkSize;
+		public void setIdatChunkSize(Integer idatChunkSize) { this.idatChunkSize = idatChunkSize; }
+
+		private boolean pipeline = false;
+		public void setPipeline(boolean pipeline) { this.pipeline = pipeline; }
+
+		private boolean reduceColors = false;
+		public void setReduceColors(boolean reduceColors) { this.reduceColors = reduceColors; }
+
+		private boolean reorderPalette = false;
+		public void setReorderPalette(boolean reorderPalette) { this.reorderPalette = reorderPalette; }
+
+		private PngAlphaCleanup alphaCleanup = PngAlphaCleanup.NONE;
+		public void setAlphaCleanup(PngAlphaCleanup alphaCleanup) { this.alphaCleanup = alphaCleanup; }
+
+		/** how duplicates are found: "file", "pixels", or null for not at all */
+		private String dedup;
+		public void setDedup(String dedup) { this.dedup = dedup; }
+
+		/** the chunks to keep, or null for the optimizer's usual ones */
+		private PngChunkPolicy chunkPolicy;
+		public void setChunkPolicy(PngChunkPolicy chunkPolicy) { this.chunkPolicy = chunkPolicy; }
+
+		private boolean stripOnly = false;
+		public void setStripOnly(boolean stripOnly) { this.stripOnly = stripOnly; }
+
+		/** the resolution of a pHYs chunk to add, or null to add none */
+		private Integer dpi;
+		public void setDpi(Integer dpi) { this.dpi = dpi; }
+
+		private boolean metrics = false;
+		public void setMetrics(boolean metrics) { this.metrics = metrics; }
+	}
+
 	/** */
 	public PngtasticOptimizer(String toDir, String[] fileNames, String fileSuffix, Boolean removeGamma,
 			Integer compressionLevel, String compressor, Integer iterations, String logLevel) {
 
+		this(toDir, fileNames, fileSuffix, removeGamma, compressionLevel, compressor, iterations, new Options(), logLevel);
+	}
+
+	/** */
+	public PngtasticOptimizer(String toDir, String[] fileNames, String fileSuffix, Boolean removeGamma,
+			Integer compressionLevel, String compressor, Integer iterations, Options options, String logLevel) {
+
 		long start = System.currentTimeMillis();
 
 		PngOptimizer optimizer = new PngOptimizer(logLevel);
 		optimizer.setCompressor(compressor, iterations);
+		if (options.idatChunkSize != null) {
+			optimizer.setIdatChunkSize(options.idatChunkSize);
+		}
+		optimizer.setReduceColors(options.reduceColors);
+		optimizer.setReorderPalette(options.reorderPalette);
+		optimizer.setAlphaCleanup(options.alphaCleanup);
+		optimizer.setChunkPolicy(options.chunkPolicy);
+		if (options.dpi != null) {
+			optimizer.setExtraChunks(Collections.singletonList(PngChunkInserter.dpiChunk(options.dpi)));
+		}
+
+		if (options.stripOnly) {
+			stripChunks(optimizer, toDir, fileNames, fileSuffix, removeGamma);
+		} else {
+			// duplicates are found among the chunks the optimizer keeps, which the default policy depends on removeGamma for
+			PngChunkPolicy keptChunks = (options.chunkPolicy == null) ? PngChunkPolicy.required(removeGamma) : options.chunkPolicy;
+			optimize(optimizer, toDir, fileNames, fileSuffix, removeGamma, compressionLevel, options.pipeline, options.dedup,
+					keptChunks, logLevel);
+		}
+		System.out.println(String.format("Processed %d files in %d milliseconds, saving %d bytes", optimizer.getResults().size(), System.currentTimeMillis() - start, optimizer.getTotalSavings()));
+		if (options.metrics) {
+			printMetrics(optimizer);
+		}
+	}
+
+	/* Concurrent compression trials are each counted in full, so the stages can add up to more than the elapsed time */
+	private void printMetrics(PngOptimizer optimizer) {
+		for (Map.Entry<PngMetrics.Stage, Long> entry : optimizer.getTotalNanos().entrySet()) {
+			System.out.println(String.format("%-9s %10.1f ms", entry.getKey(), entry.getValue() / 1e6));
+		}
+		for (Map.Entry<String, Integer> entry : optimizer.getWinners().entrySet()) {
+			System.out.println(String.format("%-24s won %d", entry.getKey(), entry.getValue()));
+		}
+	}
+
+	/* */
+	private void optimize(PngOptimizer optimizer, String toDir, String[] fileNames, String fileSuffix, Boolean removeGamma,
+			Integer compressionLevel, Boolean pipeline, String dedup, PngChunkPolicy keptChunks, String logLevel) {
+
+		final Collection<List<String>> groups = groupDuplicates(fileNames, dedup, keptChunks, logLevel);
+		if (groups.size() < fileNames.length) {
+			System.out.println(String.format("Found %d duplicate files", fileNames.length - groups.size()));
+		}
 
+		if (pipeline) {
+			optimizePipelined(optimizer, toDir, groups, fileSuffix, removeGamma, compressionLevel);
+		} else {
+			for (List<String> group : groups) {
+				try {
+					String file = group.get(0);
+					String outputPath = toDir + File.separator + file;
+					makeDirs(outputPath.substring(0, outputPath.lastIndexOf(File.separator)));
+
+					PngImage image = new PngImage(file, logLevel);
+					OptimizerResult result = optimizer.optimizeToFile(image, outputPath + fileSuffix, removeGamma, compressionLevel);
+					exportDuplicates(optimizer, result, outputPath + fileSuffix, group, toDir, fileSuffix);
+
+				} catch (PngException | IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/* Copy each file with only the chunks the policy keeps, and the extra chunks, without touching the image data */
+	private void stripChunks(PngOptimizer optimizer, String toDir, String[] fileNames, String fileSuffix, Boolean removeGamma) {
 		for (String file : fileNames) {
 			try {
 				String outputPath = toDir + File.separator + file;
 				makeDirs(outputPath.substring(0, outputPath.lastIndexOf(File.separator)));
 
-				PngImage image = new PngImage(file, logLevel);
-				optimizer.optimize(image, outputPath + fileSuffix, removeGamma, compressionLevel);
+				optimizer.copyChunks(file, outputPath + fileSuffix, removeGamma);
 
 			} catch (PngException | IOException e) {
 				e.printStackTrace();
 			}
 		}
-		System.out.println(String.format("Processed %d files in %d milliseconds, saving %d bytes", optimizer.getResults().size(), System.currentTimeMillis() - start, optimizer.getTotalSavings()));
+	}
+
+	/*
+	 * Keep a bounded number of files in flight at once: enough to hide slow
+	 * storage behind the compression work, but not so many that every image
+	 * in the batch ends up read into memory before the first one is done.
+	 */
+	private void optimizePipelined(final PngOptimizer optimizer, final String toDir, Collection<List<String>> groups,
+			final String fileSuffix, Boolean removeGamma, Integer compressionLevel) {
+
+		final Semaphore inFlight = new Semaphore(Math.max(16, 4 * Runtime.getRuntime().availableProcessors()));
+		final List<CompletableFuture<OptimizerResult>> futures = new ArrayList<>();
+
+		for (final List<String> group : groups) {
+			try {
+				final String file = group.get(0);
+				final String outputPath = toDir + File.separator + file;
+				makeDirs(outputPath.substring(0, outputPath.lastIndexOf(File.separator)));
+
+				inFlight.acquire();
+				futures.add(optimizer.optimizeAsync(file, outputPath + fileSuffix, removeGamma, compressionLevel)
+						.thenApply(new Function<OptimizerResult, OptimizerResult>() {
+							@Override
+							public OptimizerResult apply(OptimizerResult result) {
+								exportDuplicates(optimizer, result, outputPath + fileSuffix, group, toDir, fileSuffix);
+								return result;
+							}
+						})
+						.whenComplete(new BiConsumer<OptimizerResult, Throwable>() {
+							@Override
+							public void accept(OptimizerResult result, Throwable e) {
+								inFlight.release();
+								if (e != null) {
+									e.printStackTrace();
+								}
+							}
+						}));
+
+			} catch (IOException e) {
+				e.printStackTrace();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+
+		for (CompletableFuture<OptimizerResult> future : futures) {
+			try {
+				future.join();
+			} catch (CompletionException e) {
+				// already reported
+			}
+		}
+	}
+
+	/*
+	 * Group the files holding the same image, keeping the order they were
+	 * given in, so that only the first file of each group is optimized. A
+	 * file that can't be hashed is left in a group of its own, for its error
+	 * to be reported when it is optimized. Files are only grouped by pixels
+	 * if every chunk the policy keeps also matches, since the first file's
+	 * chunks are what the rest get.
+	 */
+	private Collection<List<String>> groupDuplicates(String[] fileNames, String dedup, PngChunkPolicy keptChunks, String logLevel) {
+		final Map<String, List<String>> groups = new LinkedHashMap<>();
+		final PngDigest digest = new PngDigest(logLevel);
+		for (String file : fileNames) {
+			String key = file;
+			try {
+				if (DEDUP_FILE.equalsIgnoreCase(dedup)) {
+					key = digest.digestFile(file);
+				} else if (DEDUP_PIXELS.equalsIgnoreCase(dedup)) {
+					key = digest.digestPixels(new PngImage(file, logLevel), keptChunks);
+				}
+			} catch (PngException | IOException e) {
+				key = file;
+			}
+
+			List<String> group = groups.get(key);
+			if (group == null) {
+				group = new ArrayList<>();
+				groups.put(key, group);
+			}
+			group.add(file);
+		}
+		return groups.values();
+	}
+
+	/* Write the optimized first file of a group for each of the rest */
+	private void exportDuplicates(PngOptimizer optimizer, OptimizerResult result, String optimizedPath,
+			List<String> group, String toDir, String fileSuffix) {
+
+		for (String file : group.subList(1, group.size())) {
+			try {
+				String outputPath = toDir + File.separator + file;
+				makeDirs(outputPath.substring(0, outputPath.lastIndexOf(File.separator)));
+
+				optimizer.exportDuplicate(result, optimizedPath, file, outputPath + fileSuffix);
+
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 
 	/* */
@@ -99,7 +346,47 @@ public class PngtasticOptimizer {
 		String compressor = options.get("--compressor");
 		Integer iterations = safeInteger(options.get("--iterations"));
 
-		new PngtasticOptimizer(toDir, files, fileSuffix, removeGamma, compressionLevel, compressor, iterations, logLevel);
+		Options moreOptions = new Options();
+		moreOptions.setIdatChunkSize(safeInteger(options.get("--idatChunkSize")));
+		moreOptions.setPipeline(Boolean.valueOf(options.get("--pipeline")));
+		moreOptions.setReduceColors(Boolean.valueOf(options.get("--reduceColors")));
+		moreOptions.setReorderPalette(Boolean.valueOf(options.get("--reorderPalette")));
+		moreOptions.setAlphaCleanup(PngAlphaCleanup.forName(options.get("--alphaCleanup")));
+		moreOptions.setDedup(options.get("--dedup"));
+		moreOptions.setChunkPolicy(chunkPolicy(options, removeGamma));
+		moreOptions.setStripOnly(Boolean.valueOf(options.get("--stripOnly")));
+		moreOptions.setDpi(safeInteger(options.get("--dpi")));
+		moreOptions.setMetrics(Boolean.valueOf(options.get("--metrics")));
+
+		new PngtasticOptimizer(toDir, files, fileSuffix, removeGamma, compressionLevel, compressor, iterations, moreOptions, logLevel);
+	}
+
+	/* The chunk policy the options ask for, or null if they ask for the optimizer's usual one */
+	private static PngChunkPolicy chunkPolicy(Map<String, String> options, boolean removeGamma) {
+		String keepChunks = options.get("--keepChunks");
+		String stripChunks = options.get("--stripChunks");
+		String stripAncillary = options.get("--stripAncillary");
+		String keepColorManagement = options.get("--keepColorManagement");
+		Integer maxTextLength = safeInteger(options.get("--maxTextLength"));
+		if (keepChunks == null && stripChunks == null && stripAncillary == null && keepColorManagement == null && maxTextLength == null) {
+			return null;
+		}
+
+		PngChunkPolicy policy = PngChunkPolicy.required(removeGamma);
+		if (stripAncillary != null) {
+			policy.setStripAncillary(Boolean.valueOf(stripAncillary));
+		}
+		policy.setKeepColorManagement(Boolean.valueOf(keepColorManagement));
+		if (maxTextLength != null) {
+			policy.setMaxTextLength(maxTextLength);
+		}
+		if (keepChunks != null) {
+			policy.keep(keepChunks.split(","));
+		}
+		if (stripChunks != null) {
+			policy.strip(stripChunks.split(","));
+		}
+		return policy;
 	}
 
 	/* */
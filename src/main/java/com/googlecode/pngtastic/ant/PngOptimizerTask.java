@@ -47,6 +47,10 @@ public class PngOptimizerTask extends Task {
 	public Integer getIterations() { return iterations; }
 	public void setIterations(Integer iterations) { this.iterations = iterations; }
 
+	private Integer idatChunkSize;
+	public Integer getIdatChunkSize() { return idatChunkSize; }
+	public void setIdatChunkSize(Integer idatChunkSize) { this.idatChunkSize = idatChunkSize; }
+
 	private String logLevel;
 	public String getLogLevel() { return this.logLevel; }
 	public void setLogLevel(String logLevel) { this.logLevel = logLevel; }
@@ -73,6 +77,9 @@ public class PngOptimizerTask extends Task {
 		PngOptimizer optimizer = new PngOptimizer(logLevel);
 		optimizer.setCompressor(compressor, iterations);
 		optimizer.setGenerateDataUriCss(generateDataUriCss);
+		if (idatChunkSize != null) {
+			optimizer.setIdatChunkSize(idatChunkSize);
+		}
 
 		for (FileSet fileset : filesets) {
 			DirectoryScanner ds = fileset.getDirectoryScanner(getProject());
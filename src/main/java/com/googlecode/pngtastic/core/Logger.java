@@ -24,6 +24,11 @@ public class Logger {
 				? NONE : logLevel.toUpperCase();
 	}
 
+	/** */
+	String getLogLevel() {
+		return this.logLevel;
+	}
+
 	/**
 	 * Write debug messages.
 	 * Takes a varags list of args so that string concatenation only happens if the logging level applies.
@@ -0,0 +1,153 @@
+package com.googlecode.pngtastic.core;
+
+import java.util.Arrays;
+
+/**
+ * Rewrites the colour of fully transparent pixels, a row at a time and in
+ * place, for greyscale and truecolor images with an alpha channel. Only the
+ * previous row is held, which is where the up, average and paeth
+ * predictions come from.
+ *
+ * @author rayvanderborght
+ */
+final class PngAlphaCleaner {
+
+	private final PngAlphaCleanup cleanup;
+	private final int bytesPerPixel;
+	private final int alphaBytes;
+
+	private final byte[][] candidates;
+	private final byte[] previousRow;
+
+	/**
+	 * @param scanlineLength The length of each row, including its filter type byte
+	 * @param bitDepth 8 or 16
+	 * @param channelCount 2 for greyscale with alpha, 4 for truecolor with alpha
+	 */
+	PngAlphaCleaner(PngAlphaCleanup cleanup, int scanlineLength, int bitDepth, int channelCount) {
+		this.cleanup = cleanup;
+		this.alphaBytes = bitDepth / 8;
+		this.bytesPerPixel = channelCount * alphaBytes;
+		this.candidates = (cleanup == PngAlphaCleanup.PREDICT) ? new byte[PngFilterType.standardValues().length][scanlineLength] : null;
+		this.previousRow = new byte[scanlineLength];
+	}
+
+	/**
+	 * Rewrite the colours of the transparent pixels of the next row.
+	 *
+	 * @param row Unfiltered pixels after the filter type byte
+	 * @return Whether any sample of the row was changed
+	 */
+	boolean clean(byte[] row) {
+		boolean changed = false;
+		switch (cleanup) {
+			case ZERO:
+				changed = fill(row, PngFilterType.NONE);
+				break;
+
+			case LEFT:
+				changed = fill(row, PngFilterType.SUB);
+				break;
+
+			case UP:
+				changed = fill(row, PngFilterType.UP);
+				break;
+
+			case PREDICT:
+				changed = predict(row);
+				break;
+
+			default:
+				break;
+		}
+
+		System.arraycopy(row, 0, previousRow, 0, row.length);
+		return changed;
+	}
+
+	/* Try the prediction of each filter type, keeping the one that leaves the smallest residuals */
+	private boolean predict(byte[] row) {
+		final PngFilterType[] filterTypes = PngFilterType.standardValues();
+		byte[] best = null;
+		long bestSum = Long.MAX_VALUE;
+		boolean transparent = false;
+		for (int i = 1; i < row.length && !transparent; i += bytesPerPixel) {
+			transparent = isTransparent(row, i);
+		}
+		if (!transparent) {
+			return false;
+		}
+
+		for (int f = 0; f < filterTypes.length; f++) {
+			final byte[] candidate = candidates[f];
+			System.arraycopy(row, 0, candidate, 0, row.length);
+			fill(candidate, filterTypes[f]);
+
+			long sum = 0;
+			for (int i = 1; i < candidate.length; i++) {
+				sum += Math.abs((byte) (candidate[i] - prediction(filterTypes[f], candidate, i)));
+			}
+			if (sum < bestSum) {
+				best = candidate;
+				bestSum = sum;
+			}
+		}
+		final boolean changed = !Arrays.equals(best, row);
+		System.arraycopy(best, 0, row, 0, row.length);
+		return changed;
+	}
+
+	/* Set each colour sample of the transparent pixels to what the filter type predicts for it */
+	private boolean fill(byte[] row, PngFilterType filterType) {
+		final int colorBytes = bytesPerPixel - alphaBytes;
+		boolean changed = false;
+		for (int i = 1; i < row.length; i += bytesPerPixel) {
+			if (isTransparent(row, i)) {
+				for (int j = i; j < i + colorBytes; j++) {
+					final byte value = (byte) prediction(filterType, row, j);
+					changed |= row[j] != value;
+					row[j] = value;
+				}
+			}
+		}
+		return changed;
+	}
+
+	/* The value the filter type predicts for a byte, from the bytes to its left and above */
+	private int prediction(PngFilterType filterType, byte[] row, int i) {
+		final int left = (i - bytesPerPixel >= 1) ? row[i - bytesPerPixel] & 0xff : 0;
+		final int up = previousRow[i] & 0xff;
+		final int upLeft = (i - bytesPerPixel >= 1) ? previousRow[i - bytesPerPixel] & 0xff : 0;
+
+		switch (filterType) {
+			case SUB:
+				return left;
+
+			case UP:
+				return up;
+
+			case AVERAGE:
+				return (left + up) >>> 1;
+
+			case PAETH:
+				final int p = left + up - upLeft;
+				final int pa = Math.abs(p - left);
+				final int pb = Math.abs(p - up);
+				final int pc = Math.abs(p - upLeft);
+				return (pa <= pb && pa <= pc) ? left : (pb <= pc) ? up : upLeft;
+
+			default:
+				return 0;
+		}
+	}
+
+	/* */
+	private boolean isTransparent(byte[] row, int pixel) {
+		for (int j = pixel + bytesPerPixel - alphaBytes; j < pixel + bytesPerPixel; j++) {
+			if (row[j] != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
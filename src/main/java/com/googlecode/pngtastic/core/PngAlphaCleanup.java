@@ -0,0 +1,35 @@
+package com.googlecode.pngtastic.core;
+
+/**
+ * Represents the ways the colour of fully transparent pixels can be
+ * rewritten. The colour under an alpha of zero is never seen, but it is
+ * still filtered and compressed, and editors often leave whatever colour
+ * was there before the pixel was erased. Rewriting it changes no visible
+ * pixel, though the image is no longer identical sample for sample.
+ * <ul>
+ * <li>NONE leaves the colours as they are</li>
+ * <li>ZERO makes them black</li>
+ * <li>LEFT copies the colour of the pixel to the left, so the sub filter leaves nothing</li>
+ * <li>UP copies the colour of the pixel above, so the up filter leaves nothing</li>
+ * <li>PREDICT picks, for each row, whichever of these filters, or average or paeth,
+ * has the smallest residuals once the colours are set to what that filter predicts</li>
+ * </ul>
+ *
+ * @author rayvanderborght
+ */
+public enum PngAlphaCleanup {
+	NONE,
+	ZERO,
+	LEFT,
+	UP,
+	PREDICT;
+
+	/** */
+	public static PngAlphaCleanup forName(String name) {
+		for (PngAlphaCleanup cleanup : PngAlphaCleanup.values()) {
+			if (cleanup.name().equalsIgnoreCase(name))
+				return cleanup;
+		}
+		return NONE;
+	}
+}
@@ -0,0 +1,30 @@
+package com.googlecode.pngtastic.core;
+
+/**
+ * Represents the ways a layer's colours can be combined with the colours
+ * beneath it, before the result is composited over them. These are the
+ * separable blend modes of the compositing spec; where the backdrop is
+ * translucent, the blended colour is mixed with the layer's own colour in
+ * proportion to the backdrop's alpha.
+ * @see <a href="https://www.w3.org/TR/compositing-1/#blending">Blending</a>
+ *
+ * @author rayvanderborght
+ */
+public enum PngBlendMode {
+	NORMAL,
+	MULTIPLY,
+	SCREEN,
+	OVERLAY,
+	DARKEN,
+	LIGHTEN,
+	DIFFERENCE;
+
+	/** */
+	public static PngBlendMode forName(String name) {
+		for (PngBlendMode mode : PngBlendMode.values()) {
+			if (mode.name().equalsIgnoreCase(name))
+				return mode;
+		}
+		return NORMAL;
+	}
+}
@@ -120,6 +120,11 @@ public class PngChunk {
 		return (short) (this.data[offset] & 0x00ff);
 	}
 
+	/** */
+	public int getUnsignedShort(int offset) {
+		return ((this.data[offset] & 0xff) << 8) | (this.data[offset + 1] & 0xff);
+	}
+
 	/** */
 	public boolean isCritical() {
 		String type = this.getTypeString().toUpperCase();
@@ -137,6 +142,18 @@ public class PngChunk {
 			|| COLOR_SPACE_INFO.equals(this.getTypeString().toUpperCase());
 	}
 
+	/**
+	 * Whether the png spec puts chunks of this type ahead of the palette
+	 */
+	public boolean isBeforePalette() {
+		String type = this.getTypeString().toUpperCase();
+		return type.equals(IMAGE_GAMA)
+			|| type.equals(COLOR_SPACE_INFO)
+			|| type.equals(STANDARD_RGB)
+			|| type.equals(EMBEDDED_ICCP_PROFILE)
+			|| type.equals(SIGNIFICANT_BITS);
+	}
+
 	/** */
 	public boolean verifyCRC(long crc) {
 		return (this.getCRC() == crc);
@@ -144,9 +161,17 @@ public class PngChunk {
 
 	/** */
 	public long getCRC() {
+		return this.getCRC(0, this.data.length);
+	}
+
+	/**
+	 * Get the crc of a chunk of this type holding only the given range of
+	 * this chunk's data; used when splitting image data across chunks.
+	 */
+	public long getCRC(int offset, int length) {
 		CRC32 crc32 = new CRC32();
 		crc32.update(this.type);
-		crc32.update(this.data);
+		crc32.update(this.data, offset, length);
 
 		return crc32.getValue();
 	}
@@ -0,0 +1,323 @@
+package com.googlecode.pngtastic.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Copies a PNG file, leaving out the chunks the chunk policy strips and
+ * adding any chunks inserted or replaced. Each chunk's length and type are
+ * read to decide whether to keep it, and the rest of a kept chunk, its data
+ * and crc, is copied as it is: nothing is decompressed, parsed or checked,
+ * and only the header chunk is held on to.
+ * <p>
+ * Between file channels, runs of kept chunks are handed to the channel's
+ * transferTo as byte ranges, so the image data never passes through the
+ * heap at all and a file of any size is rewritten about as fast as the file
+ * system can copy it. Between streams, kept chunks pass through a fixed size
+ * block.
+ * <p>
+ * Inserted chunks that have to come before the palette, like gAMA, go right
+ * after the header; the rest go right before the image data. Since crcs
+ * aren't checked, a corrupted chunk that is kept is copied corrupted, and
+ * one that is stripped goes unnoticed.
+ *
+ * @author rayvanderborght
+ */
+public class PngChunkCopier {
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	/* bytes in a chunk besides its data: length, type and crc */
+	private static final int CHUNK_OVERHEAD = 12;
+
+	private final PngChunkPolicy policy;
+	private final byte[] block = new byte[BLOCK_SIZE];
+
+	private final List<PngChunk> insertedChunks = new ArrayList<>();
+	private final Set<String> replacedTypes = new HashSet<>();
+
+	/** the header chunk of the last image copied */
+	private PngChunk header;
+	public PngChunk getHeader() { return header; }
+
+	/** */
+	public PngChunkCopier(PngChunkPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Add the chunk to the copy, alongside any chunks of its type.
+	 */
+	public PngChunkCopier insert(PngChunk chunk) {
+		insertedChunks.add(chunk);
+		return this;
+	}
+
+	/**
+	 * Add the chunk to the copy, in place of any chunks of its type.
+	 */
+	public PngChunkCopier replace(PngChunk chunk) {
+		replacedTypes.add(chunk.getTypeString().toUpperCase(Locale.ROOT));
+		insertedChunks.add(chunk);
+		return this;
+	}
+
+	/**
+	 * Copy the image up to and including its IEND chunk. Neither stream is
+	 * closed.
+	 *
+	 * @return The number of bytes written
+	 */
+	public long copy(InputStream input, OutputStream output) throws IOException {
+		final DataInputStream ins = new DataInputStream(input);
+		final DataOutputStream outs = new DataOutputStream(output);
+
+		final long signature = ins.readLong();
+		if (signature != PngImage.SIGNATURE) {
+			throw new PngException("Bad png signature");
+		}
+		outs.writeLong(signature);
+
+		long written = 8;
+		boolean lateInserted = false;
+		final byte[] type = new byte[4];
+		String typeString;
+		do {
+			final int length = ins.readInt();
+			ins.readFully(type);
+			typeString = new String(type, StandardCharsets.ISO_8859_1);
+			if (length < 0) {
+				throw new PngException(String.format("Bad chunk length %d", length));
+			}
+
+			if (!lateInserted && isImageDataOrEnd(typeString)) {
+				written += writeInserted(outs, false);
+				lateInserted = true;
+			}
+
+			if (keeps(type, length)) {
+				outs.writeInt(length);
+				outs.write(type);
+				if (PngChunk.IMAGE_HEADER.equals(typeString)) {
+					final byte[] data = new byte[length];
+					ins.readFully(data);
+					outs.write(data);
+					header = new PngChunk(type.clone(), data);
+					transfer(ins, outs, 4);
+				} else {
+					transfer(ins, outs, length + 4L);
+				}
+				written += length + CHUNK_OVERHEAD;
+			} else {
+				skip(ins, length + 4L);
+			}
+
+			if (PngChunk.IMAGE_HEADER.equals(typeString)) {
+				written += writeInserted(outs, true);
+			}
+		} while (!PngChunk.IMAGE_TRAILER.equals(typeString));
+
+		outs.flush();
+		return written;
+	}
+
+	/**
+	 * Copy the image between file channels, from the input's start up to and
+	 * including its IEND chunk, to the output's current position. Neither
+	 * channel is closed.
+	 *
+	 * @return The number of bytes written
+	 */
+	public long copy(FileChannel input, FileChannel output) throws IOException {
+		final long size = input.size();
+		final ByteBuffer chunkHead = ByteBuffer.allocate(8);
+
+		readFully(input, chunkHead, 0);
+		if (chunkHead.getLong(0) != PngImage.SIGNATURE) {
+			throw new PngException("Bad png signature");
+		}
+
+		// the start of the run of kept bytes not yet copied, which starts with the signature
+		long runStart = 0;
+		long position = 8;
+		long written = 0;
+		boolean lateInserted = false;
+		final byte[] type = new byte[4];
+		String typeString;
+		do {
+			readFully(input, chunkHead, position);
+			final int length = chunkHead.getInt(0);
+			chunkHead.position(4);
+			chunkHead.get(type);
+			typeString = new String(type, StandardCharsets.ISO_8859_1);
+			final long chunkEnd = position + CHUNK_OVERHEAD + (length & 0xffffffffL);
+			if (length < 0 || chunkEnd > size) {
+				throw new EOFException(String.format("Bad chunk length %d", length));
+			}
+
+			if (!lateInserted && isImageDataOrEnd(typeString)) {
+				written += transfer(input, runStart, position, output);
+				written += writeInserted(output, false);
+				runStart = position;
+				lateInserted = true;
+			}
+
+			if (!keeps(type, length)) {
+				written += transfer(input, runStart, position, output);
+				runStart = chunkEnd;
+			} else if (PngChunk.IMAGE_HEADER.equals(typeString)) {
+				final ByteBuffer data = ByteBuffer.allocate(length);
+				readFully(input, data, position + 8);
+				header = new PngChunk(type.clone(), data.array());
+			}
+			position = chunkEnd;
+
+			if (PngChunk.IMAGE_HEADER.equals(typeString)) {
+				written += transfer(input, runStart, position, output);
+				written += writeInserted(output, true);
+				runStart = position;
+			}
+		} while (!PngChunk.IMAGE_TRAILER.equals(typeString));
+
+		written += transfer(input, runStart, position, output);
+		return written;
+	}
+
+	/**
+	 * Copy the image file to the output file, through file channels. The copy
+	 * is written to a temporary file alongside the output and moved into
+	 * place, so the output may be the input file.
+	 *
+	 * @return The number of bytes written
+	 */
+	public long copy(String fileName, String outputFileName) throws IOException {
+		final File exported = new File(outputFileName);
+		final File temporary = File.createTempFile("pngtastic", ".png", exported.getAbsoluteFile().getParentFile());
+		try {
+			final long written;
+			try (final FileChannel input = FileChannel.open(new File(fileName).toPath(), StandardOpenOption.READ);
+			     final FileChannel output = FileChannel.open(temporary.toPath(), StandardOpenOption.WRITE)) {
+				written = copy(input, output);
+			}
+			Files.move(temporary.toPath(), exported.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			return written;
+		} finally {
+			temporary.delete();
+		}
+	}
+
+	/* */
+	private boolean keeps(byte[] type, int length) {
+		return (replacedTypes.isEmpty() || !replacedTypes.contains(new String(type, StandardCharsets.ISO_8859_1).toUpperCase(Locale.ROOT)))
+				&& policy.keeps(type, length);
+	}
+
+	/* The inserted chunks that go after the header, or those that go before the image data */
+	private List<PngChunk> inserted(boolean early) {
+		final List<PngChunk> chunks = new ArrayList<>();
+		for (PngChunk chunk : insertedChunks) {
+			if (chunk.isBeforePalette() == early) {
+				chunks.add(chunk);
+			}
+		}
+		return chunks;
+	}
+
+	/* */
+	private long writeInserted(DataOutputStream outs, boolean early) throws IOException {
+		long written = 0;
+		for (PngChunk chunk : inserted(early)) {
+			outs.writeInt(chunk.getLength());
+			outs.write(chunk.getType());
+			outs.write(chunk.getData());
+			outs.writeInt((int) chunk.getCRC());
+			written += chunk.getLength() + CHUNK_OVERHEAD;
+		}
+		return written;
+	}
+
+	/* */
+	private long writeInserted(FileChannel output, boolean early) throws IOException {
+		long written = 0;
+		for (PngChunk chunk : inserted(early)) {
+			final ByteBuffer bytes = ByteBuffer.allocate(chunk.getLength() + CHUNK_OVERHEAD);
+			bytes.putInt(chunk.getLength()).put(chunk.getType()).put(chunk.getData()).putInt((int) chunk.getCRC());
+			bytes.flip();
+			while (bytes.hasRemaining()) {
+				written += output.write(bytes);
+			}
+		}
+		return written;
+	}
+
+	/* */
+	private static boolean isImageDataOrEnd(String type) {
+		return PngChunk.IMAGE_DATA.equals(type) || PngChunk.IMAGE_TRAILER.equals(type);
+	}
+
+	/* Copy a range of the input to the output without bringing it onto the heap */
+	private static long transfer(FileChannel input, long from, long to, FileChannel output) throws IOException {
+		long position = from;
+		while (position < to) {
+			final long transferred = input.transferTo(position, to - position, output);
+			if (transferred <= 0) {
+				throw new EOFException("Unexpected end of png file");
+			}
+			position += transferred;
+		}
+		return to - from;
+	}
+
+	/* */
+	private static void readFully(FileChannel input, ByteBuffer buffer, long position) throws IOException {
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			final int read = input.read(buffer, position + buffer.position());
+			if (read < 0) {
+				throw new EOFException("Unexpected end of png file");
+			}
+		}
+	}
+
+	/* */
+	private void transfer(InputStream ins, OutputStream outs, long count) throws IOException {
+		while (count > 0) {
+			final int read = ins.read(block, 0, (int) Math.min(block.length, count));
+			if (read < 0) {
+				throw new EOFException("Unexpected end of png file");
+			}
+			outs.write(block, 0, read);
+			count -= read;
+		}
+	}
+
+	/* */
+	private void skip(InputStream ins, long count) throws IOException {
+		while (count > 0) {
+			final long skipped = ins.skip(count);
+			if (skipped > 0) {
+				count -= skipped;
+			} else if (ins.read() < 0) {
+				throw new EOFException("Unexpected end of png file");
+			} else {
+				count--;
+			}
+		}
+	}
+}
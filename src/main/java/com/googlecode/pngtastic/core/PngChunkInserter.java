@@ -6,6 +6,10 @@ import java.io.IOException;
 /**
  * Usage:
  * <code>
+ *     new PngChunkInserter().insert("in.png", toDir + "/name.png", PngChunkInserter.dpi300Chunk);
+ * </code>
+ * or, for an image already read:
+ * <code>
  *     byte[] bytes = new PngChunkInserter().insert(image, PngChunkInserter.dpi300Chunk);
  *     final File exported = image.export(toDir + "/name.png", bytes);
  * </code>
@@ -23,6 +27,25 @@ public class PngChunkInserter {
 
 	public static final PngChunk dpi300Chunk = new PngChunk(PngChunk.PHYSICAL_PIXEL_DIMENSIONS.getBytes(), dpi300);
 
+	/**
+	 * @return A pHYs chunk giving the same resolution in both directions, in
+	 * pixels per meter, rounded from the dots per inch
+	 */
+	public static PngChunk dpiChunk(int dpi) {
+		final long ppm = Math.round(dpi / 0.0254);
+		final byte[] data = new byte[9];
+		for (int i = 0; i < 4; i++) {
+			data[i] = (byte) (ppm >>> ((3 - i) * 8));
+			data[i + 4] = data[i];
+		}
+		data[8] = 1;
+		return new PngChunk(PngChunk.PHYSICAL_PIXEL_DIMENSIONS.getBytes(), data);
+	}
+
+	/**
+	 * Re-serializes the whole image, after adding the chunk to its list of
+	 * chunks, right after the header.
+	 */
 	public byte[] insert(PngImage image, PngChunk chunk) throws IOException {
 		// add it after the header chunk
 		image.getChunks().add(1, chunk);
@@ -32,4 +55,16 @@ public class PngChunkInserter {
 
 		return outputBytes.toByteArray();
 	}
+
+	/**
+	 * Write a copy of the file with the chunk in place of any chunks of its
+	 * type. The rest of the file is copied a byte range at a time, without
+	 * being parsed or recompressed, and the output may be the input file.
+	 *
+	 * @return The size of the written file
+	 * @see PngChunkCopier
+	 */
+	public long insert(String fileName, String outputFileName, PngChunk chunk) throws IOException {
+		return new PngChunkCopier(new PngChunkPolicy()).replace(chunk).copy(fileName, outputFileName);
+	}
 }
@@ -0,0 +1,127 @@
+package com.googlecode.pngtastic.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Decides which chunks of an image are kept when it is written out again.
+ * The rules are applied in this order:
+ * <ol>
+ * <li>critical chunks, known or not, and tRNS are always kept, since they are part of the image itself</li>
+ * <li>chunks of a type named to be kept or stripped are kept or stripped</li>
+ * <li>with a text length limit, text chunks are kept if their data is shorter than the limit</li>
+ * <li>with color management kept, the gAMA, cHRM, sRGB and iCCP chunks are kept</li>
+ * <li>with ancillary chunks stripped, every other chunk is stripped, otherwise it is kept</li>
+ * </ol>
+ * Types are matched ignoring case. The decision only needs a chunk's type
+ * and length, so it can be made before the chunk's data is read.
+ *
+ * @author rayvanderborght
+ */
+public class PngChunkPolicy {
+
+	private static final Set<String> COLOR_MANAGEMENT = new HashSet<>(Arrays.asList(
+			PngChunk.IMAGE_GAMA, PngChunk.COLOR_SPACE_INFO, PngChunk.STANDARD_RGB, PngChunk.EMBEDDED_ICCP_PROFILE));
+
+	private static final Set<String> TEXT = new HashSet<>(Arrays.asList(
+			PngChunk.TEXTUAL_DATA, PngChunk.COMPRESSED_TEXTUAL_DATA, PngChunk.INTERNATIONAL_TEXTUAL_DATA));
+
+	private final Set<String> keptTypes = new HashSet<>();
+	private final Set<String> strippedTypes = new HashSet<>();
+
+	private boolean stripAncillary = false;
+	public void setStripAncillary(boolean stripAncillary) { this.stripAncillary = stripAncillary; }
+
+	private boolean keepColorManagement = false;
+	public void setKeepColorManagement(boolean keepColorManagement) { this.keepColorManagement = keepColorManagement; }
+
+	/** text chunks are kept if their data is shorter than this; negative for no limit */
+	private int maxTextLength = -1;
+	public void setMaxTextLength(int maxTextLength) { this.maxTextLength = maxTextLength; }
+
+	/**
+	 * The optimizer's policy, unless it is given another: only the chunks
+	 * needed to show the image as it was meant to be shown are kept, which
+	 * are the critical chunks, tRNS, gAMA, unless gamma is removed, and cHRM.
+	 */
+	public static PngChunkPolicy required(boolean removeGamma) {
+		final PngChunkPolicy policy = new PngChunkPolicy();
+		policy.setStripAncillary(true);
+		policy.keep(PngChunk.COLOR_SPACE_INFO);
+		if (removeGamma) {
+			policy.strip(PngChunk.IMAGE_GAMA);
+		} else {
+			policy.keep(PngChunk.IMAGE_GAMA);
+		}
+		return policy;
+	}
+
+	/**
+	 * Keep chunks of the given types, whatever the other rules say.
+	 */
+	public PngChunkPolicy keep(String... types) {
+		for (String type : types) {
+			final String key = type.trim().toUpperCase(Locale.ROOT);
+			keptTypes.add(key);
+			strippedTypes.remove(key);
+		}
+		return this;
+	}
+
+	/**
+	 * Strip chunks of the given types, whatever the other rules say, unless
+	 * they are critical chunks or tRNS.
+	 */
+	public PngChunkPolicy strip(String... types) {
+		for (String type : types) {
+			final String key = type.trim().toUpperCase(Locale.ROOT);
+			strippedTypes.add(key);
+			keptTypes.remove(key);
+		}
+		return this;
+	}
+
+	/** */
+	public boolean keeps(PngChunk chunk) {
+		return keeps(chunk.getType(), chunk.getLength());
+	}
+
+	/**
+	 * @param type The four bytes of the chunk type
+	 * @param length The length of the chunk's data
+	 */
+	public boolean keeps(byte[] type, int length) {
+		if (isCritical(type)) {
+			return true;
+		}
+		final String key = new String(type, StandardCharsets.ISO_8859_1).toUpperCase(Locale.ROOT);
+		if (PngChunk.TRANSPARENCY.equals(key)) {
+			return true;
+		}
+		if (keptTypes.contains(key)) {
+			return true;
+		}
+		if (strippedTypes.contains(key)) {
+			return false;
+		}
+		if (maxTextLength >= 0 && TEXT.contains(key)) {
+			return length < maxTextLength;
+		}
+		if (keepColorManagement && COLOR_MANAGEMENT.contains(key)) {
+			return true;
+		}
+		return !stripAncillary;
+	}
+
+	/**
+	 * Whether a chunk type is critical, known or not, which the png spec
+	 * marks with an uppercase first letter. The chunk copier never touches
+	 * the image data, so unknown critical chunks can be copied along with it.
+	 */
+	static boolean isCritical(byte[] type) {
+		return (type[0] & 0x20) == 0;
+	}
+}
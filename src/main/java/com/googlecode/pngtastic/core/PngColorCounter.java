@@ -1,18 +1,16 @@
 package com.googlecode.pngtastic.core;
 
-import com.googlecode.pngtastic.core.processing.PngByteArrayOutputStream;
+import com.googlecode.pngtastic.core.processing.PngImageBuffer;
 import com.googlecode.pngtastic.core.processing.PngInterlaceHandler;
 import com.googlecode.pngtastic.core.processing.PngtasticInterlaceHandler;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Counts the dominant colors in a png image
@@ -23,11 +21,30 @@ public class PngColorCounter extends PngProcessor {
 
 	private final PngInterlaceHandler pngInterlaceHandler;
 
+	private static final int MIN_CONCURRENT_PIXELS = 256 * 1024;
+
+	/** the chance that a sampled color's share of the image is further off than the sampling error */
+	private static final double SAMPLING_DELTA = 0.05D;
+
+	/** table entry for sample values that aren't counted */
+	private static final long SKIP = -1L;
+
+	/** the most grid cells along each axis used when merging colors */
+	private static final int MAX_GRID_CELLS = 64;
+
 	private final double distThreshold;
 	private final double freqThreshold;
 	private final int minAlpha;
 	private final long timeout;
 
+	/** count with a fork/join pool on images of at least MIN_CONCURRENT_PIXELS */
+	private boolean concurrent;
+	public void setConcurrent(boolean concurrent) { this.concurrent = concurrent; }
+
+	/** if positive, sample enough pixels to estimate each color's share of the image within this error */
+	private double samplingError;
+	public void setSamplingError(double samplingError) { this.samplingError = samplingError; }
+
 	private ColorCounterResult colorCounterResult;
 	public ColorCounterResult getResult() { return colorCounterResult; }
 
@@ -58,19 +75,13 @@ public class PngColorCounter extends PngProcessor {
 	public void count(PngImage image) throws IOException {
 		log.debug("=== COUNTING ===");
 
-		// FIXME: support low bit depth interlaced images
-		if (image.getInterlace() == 1 && image.getSampleBitCount() < 8) {
-			log.debug("not supported");
-			return;
-		}
-
 		final long start = System.currentTimeMillis();
 
 		final Iterator<PngChunk> itChunks = image.getChunks().iterator();
 		final PngChunk chunk = processHeadChunks(null, false, itChunks);
 
 		// collect image data chunks
-		final PngByteArrayOutputStream inflatedImageData = getInflatedImageData(chunk, itChunks);
+		final PngImageBuffer inflatedImageData = getInflatedImageData(image, chunk, itChunks);
 
 		final long width = image.getWidth();
 		final long height = image.getHeight();
@@ -79,6 +90,7 @@ public class PngColorCounter extends PngProcessor {
 		final List<byte[]> originalScanlines = (image.getInterlace() == 1)
 				? pngInterlaceHandler.deInterlace((int) width, (int) height, image.getSampleBitCount(), inflatedImageData)
 				: getScanlines(inflatedImageData, image.getSampleBitCount(), scanlineLength, height);
+		inflatedImageData.release();
 
 		final List<PngPixel> colors = getColors(image, originalScanlines, start);
 		final List<PngPixel> results = getMergedColors(image, colors, start);
@@ -87,130 +99,370 @@ public class PngColorCounter extends PngProcessor {
 		colorCounterResult = new ColorCounterResult(image.getFileName(), width, height, colors.size(), results, elapsed);
 	}
 
+	/*
+	 * Count the colors in a packed primitive histogram, and only create
+	 * PngPixel objects for the colors frequent enough to be candidates.
+	 * Candidates keep the order and position in which they were first seen,
+	 * which holds for concurrent counts too, since partial histograms are
+	 * merged in row order. Sampled counts are scaled up to estimates for the
+	 * whole image.
+	 */
 	private List<PngPixel> getColors(PngImage original, List<byte[]> rows, long start) throws IOException {
-		final Map<PngPixel, Integer> colors = new LinkedHashMap<>();
 		final PngImageType imageType = PngImageType.forColorType(original.getColorType());
-		final int sampleSize = original.getSampleBitCount();
+		final boolean wide = original.getBitDepth() == 16 && imageType != PngImageType.INDEXED_COLOR;
+
+		final int width = (int) original.getWidth();
+		final long pixels = width * (long) rows.size();
+		final int step = (samplingError > 0) ? getSamplingStep(pixels) : 1;
+		final boolean split = concurrent && pixels >= MIN_CONCURRENT_PIXELS;
+		final CountTask task = new CountTask(original, rows, 0, rows.size(), step, split, start);
+
+		final PngColorHistogram colors = (split) ? ForkJoinPool.commonPool().invoke(task) : task.compute();
+		log.debug("Full color count=%d", colors.size());
 
-		int y = 0;
-		for (byte[] row : rows) {
-			if (timeout > 0 && (System.currentTimeMillis() - start > timeout)) {
-				throw new PngException("Reached " + timeout + "ms timeout");
+		long sampled = 0;
+		for (int y = 0; y < rows.size(); y += step) {
+			sampled += (width - getFirstSampleX(y, step) + step - 1) / step;
+		}
+		final double scale = (sampled == 0) ? 1D : (double) pixels / sampled;
+		if (step > 1) {
+			log.debug("Sampled %d of %d pixels", sampled, pixels);
+		}
+
+		final int minFreq = (freqThreshold > 0) ? (int) (original.getWidth() * original.getHeight() * freqThreshold) : 0;
+		final List<PngPixel> results = new ArrayList<>();
+		for (int i = 0; i < colors.size(); i++) {
+			final int freq = (step == 1) ? colors.getCount(i) : (int) Math.round(colors.getCount(i) * scale);
+			if (freq >= minFreq) {
+				final PngPixel pixel = toPixel(colors.getKey(i), wide, colors.getX(i), colors.getY(i));
+				pixel.setFreq(freq);
+				results.add(pixel);
 			}
-			final int sampleCount = ((row.length - 1) * 8) / sampleSize;
-			final ByteArrayInputStream ins = new ByteArrayInputStream(row);
-			final DataInputStream dis = new DataInputStream(ins);
-			dis.readUnsignedByte();	// the filter byte
+		}
+		log.debug("Filtered color count=%d", results.size());
+
+		return results;
+	}
+
+	/*
+	 * By Hoeffding's inequality, n = ln(2 / delta) / (2 * e^2) samples
+	 * estimate any one color's share of the image to within e, with
+	 * probability 1 - delta. Every step'th row is sampled, and every step'th
+	 * pixel along it, so there are about pixels / step^2 samples.
+	 */
+	private int getSamplingStep(long pixels) {
+		final double samples = Math.log(2 / SAMPLING_DELTA) / (2 * samplingError * samplingError);
+		return (int) Math.max(1, Math.floor(Math.sqrt(pixels / samples)));
+	}
 
-			for (int x = 0; x < sampleCount; x++) {
+	/*
+	 * Where sampling starts along a sampled row. It varies from row to row
+	 * so that columns line up less with any vertical structure in the image.
+	 */
+	private static int getFirstSampleX(int y, int step) {
+		return (step == 1) ? 0 : Integer.remainderUnsigned((y / step) * 0x9e3779b1, step);
+	}
+
+	/*
+	 * Counts a range of rows, splitting it in two and counting the halves
+	 * in parallel while it's still large. The right half's histogram is
+	 * merged into the left's so that colors stay in first-seen order.
+	 */
+	private class CountTask extends RecursiveTask<PngColorHistogram> {
+		private static final long serialVersionUID = 1L;
+
+		private final PngImage image;
+		private final List<byte[]> rows;
+		private final int fromRow;
+		private final int toRow;
+		private final int step;
+		private final boolean split;
+		private final long start;
+
+		CountTask(PngImage image, List<byte[]> rows, int fromRow, int toRow, int step, boolean split, long start) {
+			this.image = image;
+			this.rows = rows;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+			this.step = step;
+			this.split = split;
+			this.start = start;
+		}
+
+		@Override
+		protected PngColorHistogram compute() {
+			final int sampledRows = (toRow - fromRow + step - 1) / step;
+			if (split && sampledRows > 1 && sampledRows * image.getWidth() > MIN_CONCURRENT_PIXELS / 4) {
+				// split on a sampled row so that both halves sample the same rows as a single count would
+				final int middle = fromRow + (sampledRows / 2) * step;
+				final CountTask left = new CountTask(image, rows, fromRow, middle, step, true, start);
+				final CountTask right = new CountTask(image, rows, middle, toRow, step, true, start);
+				left.fork();
+				final PngColorHistogram rightColors = right.compute();
+				final PngColorHistogram leftColors = left.join();
+				leftColors.addAll(rightColors);
+				return leftColors;
+			}
+
+			final PngColorHistogram colors = new PngColorHistogram();
+			final PngImageType imageType = PngImageType.forColorType(image.getColorType());
+			final int width = (int) image.getWidth();
+			final int bitDepth = image.getBitDepth();
+			final boolean wide = bitDepth == 16;
+			final PngChunk transparency = image.getTransparency();
+
+			// palettes and low bit depth greys map every sample value to a key up front
+			final long[] table = (imageType == PngImageType.INDEXED_COLOR) ? getPaletteKeys(image.getPalette(), transparency)
+					: (imageType == PngImageType.GREYSCALE && !wide) ? getGreyscaleKeys(bitDepth, transparency)
+					: null;
+			// truecolor and 16 bit grey images can have one fully transparent colour
+			final long transparent = (transparency == null || table != null) ? 0L
+					: (imageType == PngImageType.GREYSCALE) ? PngColorHistogram.rgba16(transparency.getUnsignedShort(0), transparency.getUnsignedShort(0), transparency.getUnsignedShort(0), 65535)
+					: (imageType == PngImageType.TRUECOLOR && wide) ? PngColorHistogram.rgba16(transparency.getUnsignedShort(0), transparency.getUnsignedShort(2), transparency.getUnsignedShort(4), 65535)
+					: (imageType == PngImageType.TRUECOLOR) ? getTruecolor8Key(transparency)
+					: 0L;
+
+			for (int y = fromRow; y < toRow; y += step) {
+				if (timeout > 0 && (System.currentTimeMillis() - start > timeout)) {
+					throw new PngException("Reached " + timeout + "ms timeout");
+				}
+				final byte[] row = rows.get(y);
+				final int firstX = getFirstSampleX(y, step);
+				if (table != null) {
+					countTable(row, y, width, firstX, step, bitDepth, table, colors);
+					continue;
+				}
 				switch (imageType) {
-					case INDEXED_COLOR: {
-						// TODO: consider transparency
-						final int offset = dis.readUnsignedByte() * 3;
-						final int r = original.getPalette().getUnsignedByte(offset);
-						final int g = original.getPalette().getUnsignedByte(offset + 1);
-						final int b = original.getPalette().getUnsignedByte(offset + 2);
-
-						final PngPixel pixel = new PngPixel(x, y, r, g, b, true);
-						final Integer count = colors.get(pixel);
-						colors.put(pixel, (count == null) ? 1 : count + 1);
+					case GREYSCALE:
+						countGreyscale16(row, y, width, firstX, step, transparent, colors);
 						break;
-					}
 
-					case GREYSCALE:
 					case GREYSCALE_ALPHA:
-						// TODO: who knows
-						throw new PngException("Greyscale images not supported");
-
-					case TRUECOLOR: {
-						final PngPixel pixel;
-						if (original.getBitDepth() == 8) {
-							final int r = dis.readUnsignedByte();
-							final int g = dis.readUnsignedByte();
-							final int b = dis.readUnsignedByte();
-							pixel = new PngPixel(x, y, r, g, b, true);
-						} else {
-							final int r = dis.readUnsignedShort();
-							final int g = dis.readUnsignedShort();
-							final int b = dis.readUnsignedShort();
-							pixel = new PngPixel(x, y, r, g, b, false);
-						}
-						final Integer count = colors.get(pixel);
-						colors.put(pixel, (count == null) ? 1 : count + 1);
+						countGreyscaleAlpha(row, y, width, firstX, step, wide, colors);
 						break;
-					}
 
-					case TRUECOLOR_ALPHA: {
-						final PngPixel pixel;
-						if (original.getBitDepth() == 8) {
-							final int r = dis.readUnsignedByte();
-							final int g = dis.readUnsignedByte();
-							final int b = dis.readUnsignedByte();
-							final int a = dis.readUnsignedByte();
-							pixel = new PngPixel(x, y, r, g, b, a);
-						} else {
-							final int r = dis.readUnsignedShort();
-							final int g = dis.readUnsignedShort();
-							final int b = dis.readUnsignedShort();
-							final int a = dis.readUnsignedShort();
-							pixel = new PngPixel(x, y, r, g, b, a);
-						}
-						if (pixel.getAlpha() > minAlpha) {
-							final Integer count = colors.get(pixel);
-							colors.put(pixel, (count == null) ? 1 : (count + 1));
-						}
+					case TRUECOLOR:
+						countTruecolor(row, y, width, firstX, step, wide, transparent, colors);
+						break;
+
+					case TRUECOLOR_ALPHA:
+						countTruecolorAlpha(row, y, width, firstX, step, wide, colors);
 						break;
-					}
 
 					default:
 						throw new IllegalArgumentException();
 				}
 			}
-			y++;
+			return colors;
 		}
-		log.debug("Full color count=%d", colors.size());
+	}
 
-		if (freqThreshold > 0) {
-			final int minFreq = (int) (original.getWidth() * original.getHeight() * freqThreshold);
-			for (Iterator<Map.Entry<PngPixel, Integer>> it = colors.entrySet().iterator(); it.hasNext();) {
-				final Entry<PngPixel, Integer> entry = it.next();
-				if (entry.getValue() < minFreq) {
-					it.remove();
-				}
+	/*
+	 * Palette entries as histogram keys, with their alpha from the tRNS
+	 * chunk if there is one. Indexes past the end of the palette are
+	 * opaque black, and entries not transparent enough to count are SKIP.
+	 */
+	private long[] getPaletteKeys(PngChunk palette, PngChunk transparency) {
+		final long[] keys = new long[256];
+		final int entries = (palette == null) ? 0 : Math.min(256, palette.getLength() / 3);
+		final int alphas = (transparency == null) ? 0 : Math.min(entries, transparency.getLength());
+		for (int i = 0; i < 256; i++) {
+			if (i < entries) {
+				final int alpha = (i < alphas) ? transparency.getUnsignedByte(i) : 255;
+				keys[i] = (i < alphas && alpha <= minAlpha) ? SKIP
+						: PngColorHistogram.rgba8(palette.getUnsignedByte(i * 3), palette.getUnsignedByte(i * 3 + 1), palette.getUnsignedByte(i * 3 + 2), alpha);
+			} else {
+				keys[i] = PngColorHistogram.rgba8(0, 0, 0, 255);
 			}
 		}
-		log.debug("Filtered color count=%d", colors.size());
+		return keys;
+	}
 
-		final List<PngPixel> results = new ArrayList<>(colors.keySet());
-		for (PngPixel pixel : results) {
-			pixel.setFreq(colors.get(pixel));
+	/* Every grey level of a 1, 2, 4 or 8 bit image, scaled to 8 bits, as histogram keys */
+	private long[] getGreyscaleKeys(int bitDepth, PngChunk transparency) {
+		final int max = (1 << bitDepth) - 1;
+		final int transparent = (transparency == null) ? -1 : transparency.getUnsignedShort(0);
+		final long[] keys = new long[max + 1];
+		for (int i = 0; i <= max; i++) {
+			final int p = i * 255;
+			final int v = p / max + ((p % max > max / 2) ? 1 : 0);
+			keys[i] = (i != transparent) ? PngColorHistogram.rgba8(v, v, v, 255)
+					: (minAlpha < 0) ? PngColorHistogram.rgba8(v, v, v, 0)
+					: SKIP;
 		}
+		return keys;
+	}
 
-		return results;
+	/* Palette and low bit depth greyscale images */
+	private static void countTable(byte[] row, int y, int width, int firstX, int step, int bitDepth, long[] table, PngColorHistogram colors) {
+		final int mask = (1 << bitDepth) - 1;
+		for (int x = firstX; x < width; x += step) {
+			final int bit = x * bitDepth;
+			final long key = table[(row[1 + (bit >> 3)] >> (8 - bitDepth - (bit & 7))) & mask];
+			if (key != SKIP) {
+				colors.add(key, x, y);
+			}
+		}
 	}
 
-	private List<PngPixel> getMergedColors(PngImage image, List<PngPixel> colors, long start) {
-		final int bits = image.getBitDepth();
-		final List<PngPixel> copy = new ArrayList<>(colors);
+	/* */
+	private void countGreyscale16(byte[] row, int y, int width, int firstX, int step, long transparent, PngColorHistogram colors) {
+		for (int x = firstX, i = 1 + firstX * 2; x < width; x += step, i += step * 2) {
+			final int v = sample16(row, i);
+			final long key = PngColorHistogram.rgba16(v, v, v, 65535);
+			if (key != transparent) {
+				colors.add(key, x, y);
+			} else if (minAlpha < 0) {
+				colors.add(PngColorHistogram.rgba16(v, v, v, 0), x, y);
+			}
+		}
+	}
+
+	/* */
+	private void countGreyscaleAlpha(byte[] row, int y, int width, int firstX, int step, boolean wide, PngColorHistogram colors) {
+		if (wide) {
+			for (int x = firstX, i = 1 + firstX * 4; x < width; x += step, i += step * 4) {
+				final int alpha = sample16(row, i + 2);
+				if (alpha > minAlpha) {
+					final int v = sample16(row, i);
+					colors.add(PngColorHistogram.rgba16(v, v, v, alpha), x, y);
+				}
+			}
+		} else {
+			for (int x = firstX, i = 1 + firstX * 2; x < width; x += step, i += step * 2) {
+				final int alpha = row[i + 1] & 0xff;
+				if (alpha > minAlpha) {
+					final int v = row[i] & 0xff;
+					colors.add(PngColorHistogram.rgba8(v, v, v, alpha), x, y);
+				}
+			}
+		}
+	}
+
+	/* The key of an 8 bit tRNS colour, or 0 for none if a sample is out of range, since no pixel can then match it */
+	private static long getTruecolor8Key(PngChunk transparency) {
+		final int r = transparency.getUnsignedShort(0);
+		final int g = transparency.getUnsignedShort(2);
+		final int b = transparency.getUnsignedShort(4);
+		return ((r | g | b) > 0xff) ? 0L : PngColorHistogram.rgba8(r, g, b, 255);
+	}
+
+	/* The transparent key is the opaque form of the tRNS colour, or 0, which no opaque colour packs to, for none */
+	private void countTruecolor(byte[] row, int y, int width, int firstX, int step, boolean wide, long transparent, PngColorHistogram colors) {
+		if (wide) {
+			for (int x = firstX, i = 1 + firstX * 6; x < width; x += step, i += step * 6) {
+				final long key = PngColorHistogram.rgba16(sample16(row, i), sample16(row, i + 2), sample16(row, i + 4), 65535);
+				if (key != transparent) {
+					colors.add(key, x, y);
+				} else if (minAlpha < 0) {
+					colors.add(key & ~0xffffL, x, y);
+				}
+			}
+		} else {
+			for (int x = firstX, i = 1 + firstX * 3; x < width; x += step, i += step * 3) {
+				final long key = PngColorHistogram.rgba8(row[i] & 0xff, row[i + 1] & 0xff, row[i + 2] & 0xff, 255);
+				if (key != transparent) {
+					colors.add(key, x, y);
+				} else if (minAlpha < 0) {
+					colors.add(key & ~0xffL, x, y);
+				}
+			}
+		}
+	}
 
-		for (PngPixel pa : colors) {
-			if (timeout > 0 && (System.currentTimeMillis() - start > timeout)) {
-				throw new PngException("Reached " + timeout + "ms timeout");
+	/* */
+	private void countTruecolorAlpha(byte[] row, int y, int width, int firstX, int step, boolean wide, PngColorHistogram colors) {
+		if (wide) {
+			for (int x = firstX, i = 1 + firstX * 8; x < width; x += step, i += step * 8) {
+				final int alpha = sample16(row, i + 6);
+				if (alpha > minAlpha) {
+					colors.add(PngColorHistogram.rgba16(sample16(row, i), sample16(row, i + 2), sample16(row, i + 4), alpha), x, y);
+				}
+			}
+		} else {
+			for (int x = firstX, i = 1 + firstX * 4; x < width; x += step, i += step * 4) {
+				final int alpha = row[i + 3] & 0xff;
+				if (alpha > minAlpha) {
+					colors.add(PngColorHistogram.rgba8(row[i] & 0xff, row[i + 1] & 0xff, row[i + 2] & 0xff, alpha), x, y);
+				}
 			}
+		}
+	}
 
-			if (!pa.isDuplicate()) {
-				for (Iterator<PngPixel> it = copy.iterator(); it.hasNext();) {
-					final PngPixel pb = it.next();
+	/* */
+	private static int sample16(byte[] row, int i) {
+		return ((row[i] & 0xff) << 8) | (row[i + 1] & 0xff);
+	}
+
+	/* */
+	private static PngPixel toPixel(long key, boolean wide, int x, int y) {
+		return (wide)
+				? new PngPixel(x, y, (int) (key >>> 48), (int) (key >>> 32) & 0xffff, (int) (key >>> 16) & 0xffff, (int) key & 0xffff)
+				: new PngPixel(x, y, (int) (key >>> 24) & 0xff, (int) (key >>> 16) & 0xff, (int) (key >>> 8) & 0xff, (int) key & 0xff);
+	}
 
-					if (pb.isDuplicate()) {
-						it.remove();
+	/*
+	 * Merge colors closer together than the distance threshold, the less
+	 * frequent of each pair giving way. Rather than compare every color
+	 * with every other, the colors are bucketed in a uniform grid over RGB
+	 * space with cells at least as wide as the threshold distance, so each
+	 * color only needs comparing with those in its own and the 26
+	 * surrounding cells. Colors found to be duplicates are unlinked from
+	 * the grid as they're passed over.
+	 */
+	private List<PngPixel> getMergedColors(PngImage image, List<PngPixel> colors, long start) {
+		final int bits = (image.getBitDepth() == 16 && PngImageType.forColorType(image.getColorType()) != PngImageType.INDEXED_COLOR) ? 16 : 8;
+		final int maxSample = (1 << bits) - 1;
+
+		if (distThreshold > 0 && !colors.isEmpty()) {
+			// rgbaDistance is the squared distance over that of black to white
+			final double radius = Math.sqrt(distThreshold * 3) * maxSample;
+			final int cellSize = (int) Math.max(Math.ceil(radius), (maxSample + 1) / MAX_GRID_CELLS);
+			final int cells = maxSample / cellSize + 1;
+
+			final int[] head = new int[cells * cells * cells];
+			final int[] next = new int[colors.size()];
+			Arrays.fill(head, -1);
+			for (int i = colors.size() - 1; i >= 0; i--) {
+				final int cell = cellOf(colors.get(i), cellSize, cells);
+				next[i] = head[cell];
+				head[cell] = i;
+			}
 
-					} else if (pa != pb && pa.rgbaDistance(pb, bits) < distThreshold) {
-						if (pa.getFreq() > pb.getFreq()) {
-							pb.setDuplicate(true);
-							it.remove();
-						} else {
-							pa.setDuplicate(true);
+			for (final PngPixel pa : colors) {
+				if (timeout > 0 && (System.currentTimeMillis() - start > timeout)) {
+					throw new PngException("Reached " + timeout + "ms timeout");
+				}
+				if (pa.isDuplicate()) {
+					continue;
+				}
+
+				final int cr = pa.getRed() / cellSize;
+				final int cg = pa.getGreen() / cellSize;
+				final int cb = pa.getBlue() / cellSize;
+				for (int r = Math.max(0, cr - 1); r <= Math.min(cells - 1, cr + 1); r++) {
+					for (int g = Math.max(0, cg - 1); g <= Math.min(cells - 1, cg + 1); g++) {
+						for (int b = Math.max(0, cb - 1); b <= Math.min(cells - 1, cb + 1); b++) {
+							final int cell = (r * cells + g) * cells + b;
+							for (int i = head[cell], previous = -1; i >= 0; i = next[i]) {
+								final PngPixel pb = colors.get(i);
+								if (pb.isDuplicate()) {
+									if (previous < 0) {
+										head[cell] = next[i];
+									} else {
+										next[previous] = next[i];
+									}
+									continue;
+								}
+								if (pa != pb && pa.rgbaDistance(pb, bits) < distThreshold) {
+									if (pa.getFreq() > pb.getFreq()) {
+										pb.setDuplicate(true);
+									} else {
+										pa.setDuplicate(true);
+									}
+								}
+								previous = i;
+							}
 						}
 					}
 				}
@@ -227,6 +479,11 @@ public class PngColorCounter extends PngProcessor {
 		return results;
 	}
 
+	/* */
+	private static int cellOf(PngPixel pixel, int cellSize, int cells) {
+		return ((pixel.getRed() / cellSize) * cells + (pixel.getGreen() / cellSize)) * cells + (pixel.getBlue() / cellSize);
+	}
+
 	/**
 	 * Holds image processing info
 	 */
@@ -0,0 +1,159 @@
+package com.googlecode.pngtastic.core;
+
+import java.util.Arrays;
+
+/**
+ * Counts colors packed into long keys, without creating an object per
+ * pixel or boxing a count per increment. Entries are kept in dense arrays
+ * in the order their colors were first seen, along with where each color
+ * was first seen, and an open addressing table with linear probing maps
+ * keys to entries. Growing the table only rebuilds the index, so the
+ * insertion order survives.
+ *
+ * @author rayvanderborght
+ */
+final class PngColorHistogram {
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	/* entry index + 1 for each slot, 0 for empty */
+	private int[] table;
+	private int mask;
+
+	private long[] keys;
+	private int[] counts;
+	private long[] positions;
+	private int size;
+
+	/* the last key added, since runs of one color are common */
+	private long lastKey;
+	private int lastEntry = -1;
+
+	/** */
+	PngColorHistogram() {
+		this.table = new int[INITIAL_CAPACITY * 2];
+		this.mask = table.length - 1;
+		this.keys = new long[INITIAL_CAPACITY];
+		this.counts = new int[INITIAL_CAPACITY];
+		this.positions = new long[INITIAL_CAPACITY];
+	}
+
+	/** Pack 8 bit samples into a key */
+	static long rgba8(int red, int green, int blue, int alpha) {
+		return ((long) red << 24) | (green << 16) | (blue << 8) | alpha;
+	}
+
+	/** Pack 16 bit samples into a key */
+	static long rgba16(int red, int green, int blue, int alpha) {
+		return ((long) red << 48) | ((long) green << 32) | ((long) blue << 16) | alpha;
+	}
+
+	/**
+	 * Count one occurrence of a color seen at the given position.
+	 */
+	void add(long key, int x, int y) {
+		if (key == lastKey && lastEntry >= 0) {
+			counts[lastEntry]++;
+			return;
+		}
+		add(key, 1, x, y);
+	}
+
+	/**
+	 * Count the given number of occurrences of a color; the position is
+	 * only kept if the color hasn't been seen before.
+	 */
+	void add(long key, int count, int x, int y) {
+		int slot = hash(key) & mask;
+		for (int entry; (entry = table[slot]) != 0; slot = (slot + 1) & mask) {
+			if (keys[entry - 1] == key) {
+				counts[entry - 1] += count;
+				lastKey = key;
+				lastEntry = entry - 1;
+				return;
+			}
+		}
+
+		if (size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			counts = Arrays.copyOf(counts, size * 2);
+			positions = Arrays.copyOf(positions, size * 2);
+		}
+		keys[size] = key;
+		counts[size] = count;
+		positions[size] = ((long) y << 32) | (x & 0xffffffffL);
+		lastKey = key;
+		lastEntry = size;
+		table[slot] = ++size;
+
+		if (size * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+	}
+
+	/**
+	 * Add all of another histogram's counts to this one. Colors new to this
+	 * histogram are appended in the order the other one first saw them.
+	 */
+	void addAll(PngColorHistogram other) {
+		for (int i = 0; i < other.size; i++) {
+			add(other.keys[i], other.counts[i], other.getX(i), other.getY(i));
+		}
+	}
+
+	/** @return The index of the given color, in the order colors were first seen, or -1 if it hasn't been */
+	int indexOf(long key) {
+		for (int slot = hash(key) & mask, entry; (entry = table[slot]) != 0; slot = (slot + 1) & mask) {
+			if (keys[entry - 1] == key) {
+				return entry - 1;
+			}
+		}
+		return -1;
+	}
+
+	/** @return The number of distinct colors */
+	int size() {
+		return size;
+	}
+
+	/** @return The key of the i'th color seen */
+	long getKey(int i) {
+		return keys[i];
+	}
+
+	/** @return The number of times the i'th color was seen */
+	int getCount(int i) {
+		return counts[i];
+	}
+
+	/** @return The column where the i'th color was first seen */
+	int getX(int i) {
+		return (int) positions[i];
+	}
+
+	/** @return The row where the i'th color was first seen */
+	int getY(int i) {
+		return (int) (positions[i] >>> 32);
+	}
+
+	/* Spread the key's bits over the low end, as the table is indexed by the low bits */
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/* */
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		mask = capacity - 1;
+		for (int i = 0; i < size; i++) {
+			int slot = hash(keys[i]) & mask;
+			while (table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = i + 1;
+		}
+	}
+}
@@ -0,0 +1,408 @@
+package com.googlecode.pngtastic.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The smallest color type and bit depth that can hold an image's pixels
+ * exactly. One pass over the image, through the row converters into a
+ * reused row and a primitive histogram, finds out whether it:
+ * <ul>
+ * <li>is fully opaque, so has no need of an alpha channel</li>
+ * <li>only uses alpha to make one color fully transparent, so can use a tRNS color key instead</li>
+ * <li>is grey, with red, green and blue equal everywhere</li>
+ * <li>has 16 bit samples whose high and low bytes are equal, so fit in 8 bits</li>
+ * <li>has grey levels that fit in 4, 2 or 1 bits</li>
+ * <li>has no more than 256 colors, so can be indexed, with alpha in tRNS</li>
+ * </ul>
+ * Of the forms that would work, the one with the fewest raw bytes, counting
+ * any palette, is picked. Less raw data is less work for every filter and
+ * compression trial that follows, as well as usually compressing smaller.
+ *
+ * @author rayvanderborght
+ */
+final class PngColorReduction {
+
+	private static final int MAX_PALETTE_SIZE = 256;
+	private static final byte[] TRANSPARENCY_TYPE = { 't', 'R', 'N', 'S' };
+
+	/* bytes in a chunk besides its data: length, type and crc */
+	private static final int CHUNK_OVERHEAD = 12;
+
+	private final PngImage image;
+	private final PngImageType imageType;
+	private final int bitDepth;
+	private final PngChunk palette;
+	private final PngChunk transparency;
+
+	/* maps each histogram entry to its palette index, for indexed results */
+	private final PngColorHistogram histogram;
+	private final int[] paletteIndexes;
+
+	/** */
+	private PngColorReduction(PngImage image, PngImageType imageType, int bitDepth, PngChunk palette, PngChunk transparency,
+			PngColorHistogram histogram, int[] paletteIndexes) {
+		this.image = image;
+		this.imageType = imageType;
+		this.bitDepth = bitDepth;
+		this.palette = palette;
+		this.transparency = transparency;
+		this.histogram = histogram;
+		this.paletteIndexes = paletteIndexes;
+	}
+
+	/** */
+	public int getColorType() {
+		return this.imageType.getColorType();
+	}
+
+	/** */
+	public int getBitDepth() {
+		return this.bitDepth;
+	}
+
+	/** */
+	public int getSampleBitCount() {
+		return this.imageType.channelCount() * this.bitDepth;
+	}
+
+	/** @return The new palette, or null if the reduced image isn't indexed */
+	public PngChunk getPalette() {
+		return this.palette;
+	}
+
+	/** @return The new transparency chunk, or null if the reduced image doesn't need one */
+	public PngChunk getTransparency() {
+		return this.transparency;
+	}
+
+	/**
+	 * Look for a smaller form of the image.
+	 *
+	 * @param scanlines The image's de-filtered, non-interlaced scanlines
+	 * @return The reduction, or null if the image is already in its smallest form
+	 */
+	static PngColorReduction analyze(PngImage image, List<byte[]> scanlines) {
+		final int width = (int) image.getWidth();
+		final boolean wide = image.getBitDepth() == 16;
+		final PngPixelFormat format = wide ? PngPixelFormat.RGBA16 : PngPixelFormat.RGBA8;
+		final PngRowConverter converter = PngRowConverter.forImage(image);
+		final byte[] row = new byte[width * format.getBytesPerPixel()];
+
+		boolean opaque = true;
+		boolean binaryAlpha = true;
+		boolean grey = true;
+		boolean fits8 = true;
+		boolean fits1 = true;
+		boolean fits2 = true;
+		boolean fits4 = true;
+		long key = -1;
+		boolean oneKey = true;
+		PngColorHistogram histogram = new PngColorHistogram();
+
+		for (int y = 0; y < scanlines.size(); y++) {
+			converter.convert(scanlines.get(y), 0, width, format, row, 0);
+			for (int x = 0, i = 0; x < width; x++) {
+				final int r, g, b, a;
+				if (wide) {
+					r = PngRowConverter.sample16(row, i);
+					g = PngRowConverter.sample16(row, i + 2);
+					b = PngRowConverter.sample16(row, i + 4);
+					a = PngRowConverter.sample16(row, i + 6);
+					fits8 &= (r >> 8) == (r & 0xff) && (g >> 8) == (g & 0xff) && (b >> 8) == (b & 0xff) && (a >> 8) == (a & 0xff);
+					i += 8;
+				} else {
+					r = row[i] & 0xff;
+					g = row[i + 1] & 0xff;
+					b = row[i + 2] & 0xff;
+					a = row[i + 3] & 0xff;
+					i += 4;
+				}
+
+				if (a != (wide ? 0xffff : 0xff)) {
+					opaque = false;
+					if (a != 0) {
+						binaryAlpha = false;
+					} else if (oneKey) {
+						final long rgb = rgb(r, g, b, wide);
+						if (key < 0) {
+							key = rgb;
+						} else if (key != rgb) {
+							oneKey = false;
+						}
+					}
+				}
+				if (r != g || g != b) {
+					grey = false;
+				} else if (!wide) {
+					fits4 &= r % 17 == 0;
+					fits2 &= r % 85 == 0;
+					fits1 &= r == 0 || r == 0xff;
+				}
+				if (histogram != null) {
+					histogram.add(wide ? PngColorHistogram.rgba8(r >> 8, g >> 8, b >> 8, a >> 8) : PngColorHistogram.rgba8(r, g, b, a), x, y);
+					if (histogram.size() > MAX_PALETTE_SIZE) {
+						histogram = null;
+					}
+				}
+			}
+		}
+
+		// a color key only works if no opaque pixel has the key's color
+		final boolean keyed = !opaque && binaryAlpha && oneKey && !isOpaqueAnywhere(image, scanlines, key, wide);
+		final boolean needsAlpha = !opaque && !keyed;
+		final int depth = (wide && !fits8) ? 16 : 8;
+		if (wide) {
+			fits4 = fits2 = fits1 = false;
+		}
+		if (depth == 16) {
+			histogram = null;
+		}
+
+		final int height = scanlines.size();
+		final int greyDepth = (depth == 16) ? 16 : fits1 ? 1 : fits2 ? 2 : fits4 ? 4 : 8;
+
+		// the original form, which a reduction has to beat
+		final PngImageType originalType = PngImageType.forColorType(image.getColorType());
+		long bestSize = rawSize(width, height, image.getSampleBitCount())
+				+ chunkSize(image.getPalette()) + chunkSize(image.getTransparency());
+		PngImageType bestType = null;
+		int bestDepth = 0;
+
+		if (grey && !needsAlpha) {
+			final long size = rawSize(width, height, greyDepth) + (keyed ? CHUNK_OVERHEAD + 2 : 0);
+			if (size < bestSize) {
+				bestSize = size;
+				bestType = PngImageType.GREYSCALE;
+				bestDepth = greyDepth;
+			}
+		}
+		if (grey && needsAlpha) {
+			final long size = rawSize(width, height, depth * 2);
+			if (size < bestSize) {
+				bestSize = size;
+				bestType = PngImageType.GREYSCALE_ALPHA;
+				bestDepth = depth;
+			}
+		}
+		if (histogram != null) {
+			final int colors = histogram.size();
+			final int indexDepth = (colors <= 2) ? 1 : (colors <= 4) ? 2 : (colors <= 16) ? 4 : 8;
+			final long size = rawSize(width, height, indexDepth) + CHUNK_OVERHEAD + colors * 3
+					+ (opaque ? 0 : CHUNK_OVERHEAD + translucentCount(histogram));
+			if (size < bestSize) {
+				bestSize = size;
+				bestType = PngImageType.INDEXED_COLOR;
+				bestDepth = indexDepth;
+			}
+		}
+		if (!needsAlpha) {
+			final long size = rawSize(width, height, depth * 3) + (keyed ? CHUNK_OVERHEAD + 6 : 0);
+			if (size < bestSize) {
+				bestSize = size;
+				bestType = PngImageType.TRUECOLOR;
+				bestDepth = depth;
+			}
+		}
+		final long size = rawSize(width, height, depth * 4);
+		if (size < bestSize) {
+			bestType = PngImageType.TRUECOLOR_ALPHA;
+			bestDepth = depth;
+		}
+
+		if (bestType == null || (bestType == originalType && bestDepth == image.getBitDepth()
+				&& bestType != PngImageType.INDEXED_COLOR)) {
+			return null;
+		}
+
+		switch (bestType) {
+			case INDEXED_COLOR:
+				return indexed(image, histogram, bestDepth);
+
+			case GREYSCALE:
+			case TRUECOLOR:
+				final PngChunk keyChunk = keyed ? keyChunk(bestType, bestDepth, key, wide) : null;
+				return new PngColorReduction(image, bestType, bestDepth, null, keyChunk, null, null);
+
+			default:
+				return new PngColorReduction(image, bestType, bestDepth, null, null, null, null);
+		}
+	}
+
+	/**
+	 * Re-encode the image's scanlines in the reduced form.
+	 *
+	 * @param scanlines The image's de-filtered, non-interlaced scanlines
+	 * @return New unfiltered scanlines, each starting with a zero filter type byte
+	 */
+	List<byte[]> reduce(List<byte[]> scanlines) {
+		final int width = (int) image.getWidth();
+		final boolean wide = bitDepth == 16;
+		final PngPixelFormat format = wide ? PngPixelFormat.RGBA16 : PngPixelFormat.RGBA8;
+		final PngRowConverter converter = PngRowConverter.forImage(image);
+		final byte[] row = new byte[width * format.getBytesPerPixel()];
+		final int scanlineLength = (int) (((long) width * getSampleBitCount() + 7) / 8) + 1;
+
+		final List<byte[]> result = new ArrayList<>(scanlines.size());
+		for (byte[] scanline : scanlines) {
+			converter.convert(scanline, 0, width, format, row, 0);
+			final byte[] reduced = new byte[scanlineLength];
+			switch (imageType) {
+				case GREYSCALE:
+					if (bitDepth < 8) {
+						final int step = 0xff / ((1 << bitDepth) - 1);
+						for (int x = 0; x < width; x++) {
+							pack(reduced, x, bitDepth, (row[x * 4] & 0xff) / step);
+						}
+					} else {
+						copySamples(row, reduced, width, wide, 0);
+					}
+					break;
+
+				case GREYSCALE_ALPHA:
+					copySamples(row, reduced, width, wide, 0, 3);
+					break;
+
+				case INDEXED_COLOR:
+					for (int x = 0, i = 0; x < width; x++, i += 4) {
+						final long color = PngColorHistogram.rgba8(row[i] & 0xff, row[i + 1] & 0xff, row[i + 2] & 0xff, row[i + 3] & 0xff);
+						pack(reduced, x, bitDepth, paletteIndexes[histogram.indexOf(color)]);
+					}
+					break;
+
+				case TRUECOLOR:
+					copySamples(row, reduced, width, wide, 0, 1, 2);
+					break;
+
+				default:
+					copySamples(row, reduced, width, wide, 0, 1, 2, 3);
+					break;
+			}
+			result.add(reduced);
+		}
+		return result;
+	}
+
+	/* Copy the given channels of each RGBA pixel to the scanline, after its filter type byte */
+	private static void copySamples(byte[] row, byte[] scanline, int width, boolean wide, int... channels) {
+		final int sampleSize = wide ? 2 : 1;
+		for (int x = 0, o = 1; x < width; x++) {
+			final int pixel = x * 4 * sampleSize;
+			for (int channel : channels) {
+				final int i = pixel + channel * sampleSize;
+				scanline[o++] = row[i];
+				if (wide) {
+					scanline[o++] = row[i + 1];
+				}
+			}
+		}
+	}
+
+	/* Write a sample of fewer than 8 bits, packed from the high bits down, after the filter type byte */
+	private static void pack(byte[] scanline, int x, int bitDepth, int sample) {
+		if (bitDepth == 8) {
+			scanline[1 + x] = (byte) sample;
+			return;
+		}
+		final int bit = x * bitDepth;
+		scanline[1 + (bit >> 3)] |= sample << (8 - bitDepth - (bit & 7));
+	}
+
+	/*
+	 * The palette for an indexed reduction. Translucent colors go first so
+	 * that the tRNS chunk only needs an entry for each of them; otherwise
+	 * colors keep the order they were first seen in.
+	 */
+	private static PngColorReduction indexed(PngImage image, PngColorHistogram histogram, int bitDepth) {
+		final int colors = histogram.size();
+		final int translucent = translucentCount(histogram);
+		final int[] paletteIndexes = new int[colors];
+		final byte[] paletteData = new byte[colors * 3];
+		final byte[] alphaData = new byte[translucent];
+
+		for (int i = 0, nextTranslucent = 0, nextOpaque = translucent; i < colors; i++) {
+			final long color = histogram.getKey(i);
+			final int alpha = (int) (color & 0xff);
+			final int index = (alpha != 0xff) ? nextTranslucent++ : nextOpaque++;
+			paletteIndexes[i] = index;
+			paletteData[index * 3] = (byte) (color >>> 24);
+			paletteData[index * 3 + 1] = (byte) (color >>> 16);
+			paletteData[index * 3 + 2] = (byte) (color >>> 8);
+			if (alpha != 0xff) {
+				alphaData[index] = (byte) alpha;
+			}
+		}
+
+		final PngChunk palette = new PngChunk(PngChunk.PALETTE.getBytes(), paletteData);
+		final PngChunk transparency = (translucent == 0) ? null : new PngChunk(TRANSPARENCY_TYPE.clone(), alphaData);
+		return new PngColorReduction(image, PngImageType.INDEXED_COLOR, bitDepth, palette, transparency, histogram, paletteIndexes);
+	}
+
+	/* A tRNS chunk naming the given color as the transparent one */
+	private static PngChunk keyChunk(PngImageType imageType, int bitDepth, long key, boolean wide) {
+		final int shift = wide ? 16 : 8;
+		final int mask = (1 << shift) - 1;
+		final int[] samples = { (int) (key >>> (shift * 2)) & mask, (int) (key >>> shift) & mask, (int) key & mask };
+		final int count = (imageType == PngImageType.GREYSCALE) ? 1 : 3;
+		final byte[] data = new byte[count * 2];
+		for (int c = 0; c < count; c++) {
+			int sample = samples[c];
+			if (wide && bitDepth == 8) {
+				sample >>= 8;
+			} else if (bitDepth < 8) {
+				sample /= 0xff / ((1 << bitDepth) - 1);
+			}
+			data[c * 2] = (byte) (sample >> 8);
+			data[c * 2 + 1] = (byte) sample;
+		}
+		return new PngChunk(TRANSPARENCY_TYPE.clone(), data);
+	}
+
+	/* Whether any fully opaque pixel has the given color */
+	private static boolean isOpaqueAnywhere(PngImage image, List<byte[]> scanlines, long key, boolean wide) {
+		final int width = (int) image.getWidth();
+		final PngPixelFormat format = wide ? PngPixelFormat.RGBA16 : PngPixelFormat.RGBA8;
+		final PngRowConverter converter = PngRowConverter.forImage(image);
+		final byte[] row = new byte[width * format.getBytesPerPixel()];
+
+		for (byte[] scanline : scanlines) {
+			converter.convert(scanline, 0, width, format, row, 0);
+			for (int i = 0; i < row.length; i += format.getBytesPerPixel()) {
+				final long rgb = wide
+						? rgb(PngRowConverter.sample16(row, i), PngRowConverter.sample16(row, i + 2), PngRowConverter.sample16(row, i + 4), true)
+						: rgb(row[i] & 0xff, row[i + 1] & 0xff, row[i + 2] & 0xff, false);
+				final boolean transparent = wide ? PngRowConverter.sample16(row, i + 6) == 0 : row[i + 3] == 0;
+				if (!transparent && rgb == key) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/* */
+	private static long rgb(int r, int g, int b, boolean wide) {
+		return wide ? ((long) r << 32) | ((long) g << 16) | b : (r << 16) | (g << 8) | b;
+	}
+
+	/* */
+	private static int translucentCount(PngColorHistogram histogram) {
+		int count = 0;
+		for (int i = 0; i < histogram.size(); i++) {
+			if ((histogram.getKey(i) & 0xff) != 0xff) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/* The size of the scanlines, each with its filter type byte, at the given bits per pixel */
+	private static long rawSize(int width, int height, int sampleBitCount) {
+		return (((long) width * sampleBitCount + 7) / 8 + 1) * height;
+	}
+
+	/* */
+	private static long chunkSize(PngChunk chunk) {
+		return (chunk == null) ? 0 : CHUNK_OVERHEAD + chunk.getLength();
+	}
+}
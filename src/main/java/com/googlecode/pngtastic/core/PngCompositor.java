@@ -0,0 +1,190 @@
+package com.googlecode.pngtastic.core;
+
+/**
+ * Composites rows of straight (not premultiplied) RGBA pixels onto one
+ * another in place, with the source-over operator. The kernels work on the
+ * row arrays directly and allocate nothing, so a row can be composited onto
+ * by any number of layers in turn.
+ * <p>
+ * Dividing by the maximum sample value is the costly part of compositing,
+ * and almost every pixel is either fully transparent, fully opaque or
+ * composited onto an opaque pixel, where that division is a multiply
+ * and shift: round(x / 255) is (t + (t >> 8)) >> 8 with t = x + 128, which
+ * is exact for every x up to 255 * 255, and likewise for 65535 with 16 bit
+ * shifts. Only a translucent pixel composited onto another translucent
+ * pixel needs a true division.
+ * <p>
+ * Blend modes other than normal are a separate step that rewrites a copy
+ * of the source row's colours, which is then composited over as usual.
+ *
+ * @author rayvanderborght
+ */
+final class PngCompositor {
+
+	/** */
+	private PngCompositor() {
+	}
+
+	/** Round x / 255 to nearest, for x from 0 to 255 * 255 */
+	static int div255(int x) {
+		final int t = x + 128;
+		return (t + (t >>> 8)) >>> 8;
+	}
+
+	/** Round x / 65535 to nearest, for x from 0 to 65535 * 65535 */
+	static long div65535(long x) {
+		final long t = x + 32768;
+		return (t + (t >>> 16)) >>> 16;
+	}
+
+	/**
+	 * Composite RGBA8 source pixels over RGBA8 destination pixels, writing
+	 * the result over the destination.
+	 */
+	static void over8(byte[] src, int srcOffset, byte[] dst, int dstOffset, int pixels) {
+		for (int s = srcOffset, d = dstOffset, end = srcOffset + pixels * 4; s < end; s += 4, d += 4) {
+			final int sa = src[s + 3] & 0xff;
+			if (sa == 0) {
+				continue;
+			}
+			final int da = dst[d + 3] & 0xff;
+			if (sa == 0xff || da == 0) {
+				dst[d] = src[s];
+				dst[d + 1] = src[s + 1];
+				dst[d + 2] = src[s + 2];
+				dst[d + 3] = src[s + 3];
+			} else if (da == 0xff) {
+				final int ia = 0xff - sa;
+				dst[d] = (byte) div255((src[s] & 0xff) * sa + (dst[d] & 0xff) * ia);
+				dst[d + 1] = (byte) div255((src[s + 1] & 0xff) * sa + (dst[d + 1] & 0xff) * ia);
+				dst[d + 2] = (byte) div255((src[s + 2] & 0xff) * sa + (dst[d + 2] & 0xff) * ia);
+			} else {
+				// both translucent: the result's colour is the alpha weighted mean of the two
+				final int sw = sa * 0xff;
+				final int dw = da * (0xff - sa);
+				final int total = sw + dw;
+				dst[d] = (byte) (((src[s] & 0xff) * sw + (dst[d] & 0xff) * dw + total / 2) / total);
+				dst[d + 1] = (byte) (((src[s + 1] & 0xff) * sw + (dst[d + 1] & 0xff) * dw + total / 2) / total);
+				dst[d + 2] = (byte) (((src[s + 2] & 0xff) * sw + (dst[d + 2] & 0xff) * dw + total / 2) / total);
+				dst[d + 3] = (byte) (sa + div255(dw));
+			}
+		}
+	}
+
+	/**
+	 * Composite RGBA16 source pixels over RGBA16 destination pixels, writing
+	 * the result over the destination. Samples are big endian.
+	 */
+	static void over16(byte[] src, int srcOffset, byte[] dst, int dstOffset, int pixels) {
+		for (int s = srcOffset, d = dstOffset, end = srcOffset + pixels * 8; s < end; s += 8, d += 8) {
+			final int sa = sample16(src, s + 6);
+			if (sa == 0) {
+				continue;
+			}
+			final int da = sample16(dst, d + 6);
+			if (sa == 0xffff || da == 0) {
+				System.arraycopy(src, s, dst, d, 8);
+			} else if (da == 0xffff) {
+				final long ia = 0xffff - sa;
+				for (int c = 0; c < 6; c += 2) {
+					setSample16(dst, d + c, (int) div65535((long) sample16(src, s + c) * sa + sample16(dst, d + c) * ia));
+				}
+			} else {
+				// both translucent: the result's colour is the alpha weighted mean of the two
+				final long sw = (long) sa * 0xffff;
+				final long dw = (long) da * (0xffff - sa);
+				final long total = sw + dw;
+				for (int c = 0; c < 6; c += 2) {
+					setSample16(dst, d + c, (int) ((sample16(src, s + c) * sw + sample16(dst, d + c) * dw + total / 2) / total));
+				}
+				setSample16(dst, d + 6, (int) (sa + div65535(dw)));
+			}
+		}
+	}
+
+	/**
+	 * Blend the colours of RGBA8 source pixels with the destination pixels
+	 * beneath them, writing the blended pixels, with the source's alpha, to
+	 * the output. The output is then composited over the destination.
+	 */
+	static void blend8(PngBlendMode mode, byte[] src, int srcOffset, byte[] dst, int dstOffset, byte[] out, int outOffset, int pixels) {
+		for (int s = srcOffset, d = dstOffset, o = outOffset, end = srcOffset + pixels * 4; s < end; s += 4, d += 4, o += 4) {
+			final int da = dst[d + 3] & 0xff;
+			out[o + 3] = src[s + 3];
+			for (int c = 0; c < 3; c++) {
+				final int cs = src[s + c] & 0xff;
+				if (da == 0) {
+					out[o + c] = (byte) cs;
+					continue;
+				}
+				final int b = blend(mode, dst[d + c] & 0xff, cs, 0xff);
+				out[o + c] = (byte) ((da == 0xff) ? b : div255((0xff - da) * cs + da * b));
+			}
+		}
+	}
+
+	/**
+	 * Blend the colours of RGBA16 source pixels with the destination pixels
+	 * beneath them, as {@link #blend8} does.
+	 */
+	static void blend16(PngBlendMode mode, byte[] src, int srcOffset, byte[] dst, int dstOffset, byte[] out, int outOffset, int pixels) {
+		for (int s = srcOffset, d = dstOffset, o = outOffset, end = srcOffset + pixels * 8; s < end; s += 8, d += 8, o += 8) {
+			final int da = sample16(dst, d + 6);
+			out[o + 6] = src[s + 6];
+			out[o + 7] = src[s + 7];
+			for (int c = 0; c < 6; c += 2) {
+				final int cs = sample16(src, s + c);
+				if (da == 0) {
+					setSample16(out, o + c, cs);
+					continue;
+				}
+				final int b = blend(mode, sample16(dst, d + c), cs, 0xffff);
+				setSample16(out, o + c, (da == 0xffff) ? b : (int) div65535((long) (0xffff - da) * cs + (long) da * b));
+			}
+		}
+	}
+
+	/* Blend a backdrop sample with a source sample, both between 0 and max */
+	private static int blend(PngBlendMode mode, int backdrop, int source, int max) {
+		switch (mode) {
+			case MULTIPLY:
+				return multiply(backdrop, source, max);
+
+			case SCREEN:
+				return backdrop + source - multiply(backdrop, source, max);
+
+			case OVERLAY:
+				return (backdrop * 2 <= max)
+						? multiply(backdrop * 2, source, max)
+						: max - multiply((max - backdrop) * 2, max - source, max);
+
+			case DARKEN:
+				return Math.min(backdrop, source);
+
+			case LIGHTEN:
+				return Math.max(backdrop, source);
+
+			case DIFFERENCE:
+				return Math.abs(backdrop - source);
+
+			default:
+				return source;
+		}
+	}
+
+	/* Multiply two samples as fractions of max, rounding to nearest */
+	private static int multiply(int a, int b, int max) {
+		return (max == 0xff) ? div255(a * b) : (int) div65535((long) a * b);
+	}
+
+	/* */
+	private static int sample16(byte[] row, int i) {
+		return ((row[i] & 0xff) << 8) | (row[i + 1] & 0xff);
+	}
+
+	/* */
+	private static void setSample16(byte[] row, int i, int value) {
+		row[i] = (byte) (value >>> 8);
+		row[i + 1] = (byte) value;
+	}
+}
@@ -0,0 +1,108 @@
+package com.googlecode.pngtastic.core;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashes PNG files to find the ones holding the same image, so a batch can
+ * optimize each distinct image once. There are two kinds of digest:
+ * <ul>
+ * <li>of the file's bytes, which only matches byte for byte copies</li>
+ * <li>of the image as the optimizer sees it: every chunk the chunk policy keeps,
+ * before or after the image data, and the de-filtered scanlines, which also matches
+ * files that differ only in how they were filtered, compressed or interlaced, or in
+ * the chunks the policy drops</li>
+ * </ul>
+ * Two images with the same digest of the second kind hold the same image and the
+ * same kept chunks, though they may not optimize to the same bytes, so the
+ * optimized output of either one is a valid output for both.
+ *
+ * @author rayvanderborght
+ */
+public class PngDigest {
+
+	private static final String ALGORITHM = "SHA-256";
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	private final PngReader pngReader;
+
+	/** */
+	public PngDigest() {
+		this(Logger.NONE);
+	}
+
+	/** */
+	public PngDigest(String logLevel) {
+		this.pngReader = new PngReader(logLevel);
+	}
+
+	/**
+	 * @return The digest of the file's bytes, in hex
+	 */
+	public String digestFile(String fileName) throws IOException {
+		final MessageDigest digest = newDigest();
+		final byte[] block = new byte[BLOCK_SIZE];
+		try (final InputStream ins = new FileInputStream(fileName)) {
+			for (int read; (read = ins.read(block)) != -1; ) {
+				digest.update(block, 0, read);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @return The digest of the chunks the optimizer keeps by default and the
+	 * image's pixels, in hex
+	 */
+	public String digestPixels(PngImage image) throws IOException {
+		return digestPixels(image, PngChunkPolicy.required(false));
+	}
+
+	/**
+	 * @return The digest of the chunks the policy keeps and the image's pixels, in hex
+	 */
+	public String digestPixels(PngImage image, PngChunkPolicy policy) throws IOException {
+		final MessageDigest digest = newDigest();
+		for (PngChunk chunk : image.getChunks()) {
+			if (PngChunk.IMAGE_DATA.equals(chunk.getTypeString()) || !policy.keeps(chunk)) {
+				continue;
+			}
+			final byte[] data = chunk.getData();
+			// the optimized image is never interlaced, whatever the original was
+			final int length = PngChunk.IMAGE_HEADER.equals(chunk.getTypeString()) ? data.length - 1 : data.length;
+			// each chunk is framed by its type and length, so no two runs of chunks hash alike
+			digest.update(chunk.getType());
+			digest.update(new byte[] { (byte) (length >>> 24), (byte) (length >>> 16), (byte) (length >>> 8), (byte) length });
+			digest.update(data, 0, length);
+		}
+
+		try (final PngRowDecoder rows = pngReader.decodeRows(image, null)) {
+			for (byte[] scanline; (scanline = rows.readRow()) != null; ) {
+				digest.update(scanline, 1, scanline.length - 1);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	/* */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// every jvm has to provide sha-256
+			throw new PngException("No " + ALGORITHM + " digest", e);
+		}
+	}
+
+	/* */
+	private static String toHex(byte[] bytes) {
+		final StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+		}
+		return hex.toString();
+	}
+}
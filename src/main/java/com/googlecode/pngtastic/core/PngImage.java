@@ -52,8 +52,20 @@ public class PngImage {
 	private PngChunk palette;
 	public PngChunk getPalette() { return palette; }
 
+	private PngChunk transparency;
+	public PngChunk getTransparency() { return transparency; }
+
 	private PngImageType imageType;
 
+	/** maximum IDAT chunk length when writing, or 0 to write the image data as a single chunk */
+	private int idatChunkSize;
+	public int getIdatChunkSize() { return this.idatChunkSize; }
+	public void setIdatChunkSize(int idatChunkSize) { this.idatChunkSize = idatChunkSize; }
+
+	/** how long reading the chunks took, in nanoseconds, or 0 if the image wasn't read from a stream */
+	private long parseNanos;
+	public long getParseNanos() { return this.parseNanos; }
+
 	/** */
 	public PngImage() {
 		this.log = new Logger(Logger.NONE);
@@ -84,6 +96,7 @@ public class PngImage {
 	public PngImage(InputStream ins, String logLevel) {
 		this(new Logger(logLevel));
 
+		final long start = System.nanoTime();
 		try (DataInputStream dis = new DataInputStream(ins)) {
 			readSignature(dis);
 
@@ -112,6 +125,7 @@ public class PngImage {
 				addChunk(chunk);
 			} while (length > 0 && !PngChunk.IMAGE_TRAILER.equals(chunk.getTypeString()));
 
+			this.parseNanos = System.nanoTime() - start;
 		} catch (IOException e) {
 			throw new PngException("Error: " + e.getMessage(), e);
 		}
@@ -147,17 +161,38 @@ public class PngImage {
 
 		for (PngChunk chunk : chunks) {
 			log.debug("export: %s", chunk.toString());
-			outs.writeInt(chunk.getLength());
-			outs.write(chunk.getType());
-			outs.write(chunk.getData());
-			int i = (int)chunk.getCRC();
-			outs.writeInt(i);
+			if (idatChunkSize > 0 && chunk.getLength() > idatChunkSize
+					&& PngChunk.IMAGE_DATA.equals(chunk.getTypeString())) {
+				writeSplitChunk(outs, chunk);
+			} else {
+				outs.writeInt(chunk.getLength());
+				outs.write(chunk.getType());
+				outs.write(chunk.getData());
+				int i = (int)chunk.getCRC();
+				outs.writeInt(i);
+			}
 		}
 		outs.close();
 
 		return outs;
 	}
 
+	/*
+	 * Write the chunk as a run of consecutive chunks of the same type, none
+	 * longer than idatChunkSize. Each one is written straight from a range
+	 * of the original data, so the compressed bytes are never copied.
+	 */
+	private void writeSplitChunk(DataOutputStream outs, PngChunk chunk) throws IOException {
+		final byte[] data = chunk.getData();
+		for (int offset = 0; offset < data.length; offset += idatChunkSize) {
+			final int length = Math.min(idatChunkSize, data.length - offset);
+			outs.writeInt(length);
+			outs.write(chunk.getType());
+			outs.write(data, offset, length);
+			outs.writeInt((int) chunk.getCRC(offset, length));
+		}
+	}
+
 	/** */
 	public void addChunk(PngChunk chunk) {
 		switch (chunk.getTypeString()) {
@@ -173,6 +208,9 @@ public class PngImage {
 				this.palette = chunk;
 				break;
 		}
+		if (PngChunk.TRANSPARENCY.equalsIgnoreCase(chunk.getTypeString())) {
+			this.transparency = chunk;
+		}
 
 		this.chunks.add(chunk);
 	}
@@ -0,0 +1,75 @@
+package com.googlecode.pngtastic.core;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inflates an image's data chunks on demand, a requested number of bytes at
+ * a time, pulling in the next image data chunk whenever the inflater runs
+ * dry. Used by decoders that work through the image in order without ever
+ * holding all of the inflated data.
+ *
+ * @author rayvanderborght
+ */
+class PngImageDataInflater implements Closeable {
+
+	private final Iterator<PngChunk> itChunks;
+	private final Inflater inflater = new Inflater();
+
+	/**
+	 * @param chunk The first image data chunk
+	 * @param itChunks The chunks following it
+	 */
+	PngImageDataInflater(PngChunk chunk, Iterator<PngChunk> itChunks) {
+		this.itChunks = itChunks;
+		if (chunk != null && PngChunk.IMAGE_DATA.equals(chunk.getTypeString())) {
+			inflater.setInput(chunk.getData());
+		}
+	}
+
+	/**
+	 * Inflate exactly length bytes into the buffer.
+	 *
+	 * @throws EOFException If the image data ends first
+	 */
+	void inflate(byte[] buffer, int offset, int length) throws IOException {
+		try {
+			for (int end = offset + length; offset < end; ) {
+				final int read = inflater.inflate(buffer, offset, end - offset);
+				offset += read;
+				if (read == 0 && !(inflater.needsInput() && nextImageData())) {
+					throw new EOFException("Unexpected end of ZLIB input stream");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Release the inflater. Safe to call more than once.
+	 */
+	@Override
+	public void close() {
+		inflater.end();
+	}
+
+	/* */
+	private boolean nextImageData() {
+		while (itChunks.hasNext()) {
+			final PngChunk chunk = itChunks.next();
+			if (!PngChunk.IMAGE_DATA.equals(chunk.getTypeString())) {
+				return false;
+			}
+			if (chunk.getLength() > 0) {
+				inflater.setInput(chunk.getData());
+				return true;
+			}
+		}
+		return false;
+	}
+}
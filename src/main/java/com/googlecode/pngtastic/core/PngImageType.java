@@ -22,6 +22,7 @@ public enum PngImageType {
 	TRUECOLOR_ALPHA(6);
 
 	private int colorType;
+	public int getColorType() { return this.colorType; }
 
 	/** */
 	private PngImageType(int colorType) {
@@ -0,0 +1,54 @@
+package com.googlecode.pngtastic.core;
+
+/**
+ * An image to be layered over a base image, placed with its top left corner
+ * at the given position in the base image. Layers can hang over any edge of
+ * the base image; the parts that do are cut off.
+ *
+ * @author rayvanderborght
+ */
+public class PngLayer {
+
+	private final PngImage image;
+	private final int x;
+	private final int y;
+	private final PngBlendMode blendMode;
+
+	/** */
+	public PngLayer(PngImage image) {
+		this(image, 0, 0, PngBlendMode.NORMAL);
+	}
+
+	/** */
+	public PngLayer(PngImage image, int x, int y) {
+		this(image, x, y, PngBlendMode.NORMAL);
+	}
+
+	/** */
+	public PngLayer(PngImage image, int x, int y, PngBlendMode blendMode) {
+		this.image = image;
+		this.x = x;
+		this.y = y;
+		this.blendMode = (blendMode == null) ? PngBlendMode.NORMAL : blendMode;
+	}
+
+	/** */
+	public PngImage getImage() {
+		return this.image;
+	}
+
+	/** */
+	public int getX() {
+		return this.x;
+	}
+
+	/** */
+	public int getY() {
+		return this.y;
+	}
+
+	/** */
+	public PngBlendMode getBlendMode() {
+		return this.blendMode;
+	}
+}
@@ -1,24 +1,33 @@
 package com.googlecode.pngtastic.core;
 
-import com.googlecode.pngtastic.core.processing.PngByteArrayOutputStream;
-
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
 import java.util.List;
 
 /**
- * Layers PNG images on top of one another. Currently expects two images of the same size.
- * Both images must be truecolor images, and the layer image (foreground) must have an alpha channel.
+ * Layers PNG images on top of one another. Any number of layers can be placed anywhere over the
+ * base image, each with its own blend mode, and any of the images can be of any color type and
+ * bit depth. The result is the size of the base image, and is a truecolor image with an alpha
+ * channel, with 16 bit samples if any of the images has them.
+ * <p>
+ * The images are composited and encoded a row at a time: each output row is built from the
+ * matching rows of the base image and the layers covering it, then filtered and deflated before
+ * the next is started, so no image is ever fully decoded. Given an optimizer, the layerer instead
+ * keeps the composited rows and hands them to the optimizer's search for the filter and
+ * compression that give the smallest result, which saves optimizing the layered image afterwards.
  *
  * @author rayvanderborght
  */
 public class PngLayerer extends PngProcessor {
 
+	private final PngReader pngReader;
+
+	private PngOptimizer optimizer;
+	public void setOptimizer(PngOptimizer optimizer) { this.optimizer = optimizer; }
+
 	/** */
 	public PngLayerer() {
 		this(Logger.NONE);
@@ -27,198 +36,217 @@ public class PngLayerer extends PngProcessor {
 	/** */
 	public PngLayerer(String logLevel) {
 		super(logLevel);
+		this.pngReader = new PngReader(logLevel);
 	}
 
-	/** */
+	/**
+	 * Layer one image of the same size over another.
+	 *
+	 * @deprecated The concurrent flag has no effect, since rows are now
+	 * compressed as they are composited, and only the optimizer's search,
+	 * which always runs concurrently, compresses in parallel. Use
+	 * {@link #layer(PngImage, List, Integer)} with a single {@link PngLayer}.
+	 */
+	@Deprecated
 	public PngImage layer(PngImage baseImage, PngImage layerImage, Integer compressionLevel, boolean concurrent) throws IOException {
-		log.debug("=== LAYERING: " + baseImage.getFileName() + ", " + layerImage.getFileName() + " ===");
+		final List<PngLayer> layers = Collections.singletonList(new PngLayer(layerImage));
+		return layer(baseImage, layers, compressionLevel);
+	}
+
+	/**
+	 * Layer the given layers over the base image, bottom layer first.
+	 *
+	 * @param compressionLevel The deflate level, or null for the best compression;
+	 * with an optimizer, null tries every level
+	 */
+	public PngImage layer(PngImage baseImage, List<PngLayer> layers, Integer compressionLevel) throws IOException {
+		log.debug("=== LAYERING: %s, %d layers ===", baseImage.getFileName(), layers.size());
 		final long start = System.currentTimeMillis();
 
-		// FIXME: support low bit depth interlaced images
-		if (baseImage.getInterlace() == 1 && baseImage.getSampleBitCount() < 8) {
-			return baseImage;
+		checkCriticalChunks(baseImage);
+		for (PngLayer layer : layers) {
+			checkCriticalChunks(layer.getImage());
 		}
 
-		final PngImage result = new PngImage(log);
-		result.setInterlace((short) 0);
-
-		final Iterator<PngChunk> itBaseChunks = baseImage.getChunks().iterator();
+		final int width = (int) baseImage.getWidth();
+		final int height = (int) baseImage.getHeight();
 
-		final PngChunk lastBaseChunk = processHeadChunks(new PngImage(), itBaseChunks);
-		final PngByteArrayOutputStream inflatedBaseImageData = getInflatedImageData(lastBaseChunk, itBaseChunks);
-		final List<byte[]> baseImageScanlines = getScanlines(baseImage, inflatedBaseImageData);
-
-		final Iterator<PngChunk> itLayerChunks = layerImage.getChunks().iterator();
-
-		final PngChunk lastLayerChunk = processHeadChunks(result, itLayerChunks);
-		final PngByteArrayOutputStream inflatedLayerImageData = getInflatedImageData(lastLayerChunk, itLayerChunks);
-		final List<byte[]> layerImageScanlines = getScanlines(layerImage, inflatedLayerImageData);
-
-		final List<byte[]> newImageScanlines = doLayering(baseImage, layerImage, baseImageScanlines, layerImageScanlines);
+		boolean wide = baseImage.getBitDepth() == 16;
+		for (PngLayer layer : layers) {
+			wide |= layer.getImage().getBitDepth() == 16;
+		}
+		final PngPixelFormat format = wide ? PngPixelFormat.RGBA16 : PngPixelFormat.RGBA8;
+		final int pixelSize = format.getBytesPerPixel();
 
-		pngFilterHandler.applyFiltering(PngFilterType.NONE, newImageScanlines, layerImage.getSampleBitCount());
+		final PngImage result = new PngImage(log);
+		processHeadChunks(result, baseImage, wide ? 16 : 8);
+
+		final List<LayerRows> layerRows = new ArrayList<>(layers.size());
+		final PngRowDecoder baseRows = pngReader.decodeRows(baseImage, format);
+		final PngRowEncoder encoder = (optimizer == null)
+				? new PngRowEncoder(pngFilterHandler, 1 + width * pixelSize, pixelSize * 8, compressionLevel) : null;
+		final List<byte[]> scanlines = (optimizer == null) ? null : new ArrayList<byte[]>(height);
+		try {
+			int blendedLength = 0;
+			for (PngLayer layer : layers) {
+				final LayerRows rows = LayerRows.open(pngReader, layer, format, width, height);
+				if (rows != null) {
+					layerRows.add(rows);
+					blendedLength = Math.max(blendedLength, rows.decoder.getWidth() * pixelSize);
+				}
+			}
 
-		final byte[] imageResult = pngCompressionHandler.deflate(serialize(newImageScanlines), compressionLevel, concurrent);
+			final byte[] row = new byte[1 + width * pixelSize];
+			final byte[] blended = new byte[blendedLength];
+			for (int y = 0; y < height; y++) {
+				System.arraycopy(baseRows.readRow(), 0, row, 1, width * pixelSize);
+				for (LayerRows rows : layerRows) {
+					if (y >= rows.top && rows.decoder.hasNext()) {
+						composite(rows, rows.decoder.readRow(), row, blended, wide);
+					}
+				}
+				if (encoder != null) {
+					encoder.write(row);
+				} else {
+					scanlines.add(row.clone());
+				}
+			}
 
-		final PngChunk imageChunk = new PngChunk(PngChunk.IMAGE_DATA.getBytes(), imageResult);
-		result.addChunk(imageChunk);
+			final byte[] imageData = (encoder != null) ? encoder.finish()
+					: optimizer.compressScanlines(scanlines, pixelSize * 8, null, compressionLevel);
+			result.addChunk(new PngChunk(PngChunk.IMAGE_DATA.getBytes(), imageData));
+		} finally {
+			if (encoder != null) {
+				encoder.close();
+			}
+			baseRows.close();
+			for (LayerRows rows : layerRows) {
+				rows.decoder.close();
+			}
+		}
 
-		processTailChunks(result, itBaseChunks, lastBaseChunk);
+		processTailChunks(result, baseImage);
 
 		log.debug("Layered in %d milliseconds", (System.currentTimeMillis() - start));
 
 		return result;
 	}
 
-	/* */
-	private List<byte[]> getScanlines(PngImage image, PngByteArrayOutputStream inflatedImageData) {
-		final int scanlineLength = Double.valueOf(Math.ceil(Long.valueOf(image.getWidth() * image.getSampleBitCount()) / 8F)).intValue() + 1;
-
-		final List<byte[]> originalScanlines = (image.getInterlace() == 1)
-				? pngInterlaceHandler.deInterlace((int)image.getWidth(), (int)image.getHeight(), image.getSampleBitCount(), inflatedImageData)
-				: getScanlines(inflatedImageData, image.getSampleBitCount(), scanlineLength, image.getHeight());
+	/* Composite one decoded layer row onto the output row, blending it first if need be */
+	private static void composite(LayerRows rows, byte[] layerRow, byte[] row, byte[] blended, boolean wide) {
+		final int pixels = rows.decoder.getWidth();
+		final int offset = 1 + rows.left * (wide ? 8 : 4);
+		byte[] source = layerRow;
+
+		if (rows.blendMode != PngBlendMode.NORMAL) {
+			if (wide) {
+				PngCompositor.blend16(rows.blendMode, layerRow, 0, row, offset, blended, 0, pixels);
+			} else {
+				PngCompositor.blend8(rows.blendMode, layerRow, 0, row, offset, blended, 0, pixels);
+			}
+			source = blended;
+		}
 
-		return originalScanlines;
+		if (wide) {
+			PngCompositor.over16(source, 0, row, offset, pixels);
+		} else {
+			PngCompositor.over8(source, 0, row, offset, pixels);
+		}
 	}
 
-	/* */
-	private PngChunk processHeadChunks(PngImage result, Iterator<PngChunk> itChunks) throws IOException {
-		PngChunk chunk = null;
-		while (itChunks.hasNext()) {
-			chunk = itChunks.next();
-			if (PngChunk.IMAGE_DATA.equals(chunk.getTypeString())) {
+	/*
+	 * Copy the chunks before the base image's data that still apply to the result: a new header
+	 * for truecolor with alpha, and the color space chunks, but not the palette or transparency.
+	 */
+	private void processHeadChunks(PngImage result, PngImage baseImage, int bitDepth) throws IOException {
+		for (PngChunk chunk : baseImage.getChunks()) {
+			final String type = chunk.getTypeString();
+			if (PngChunk.IMAGE_DATA.equals(type)) {
 				break;
 			}
 
-			if (chunk.isRequired()) {
+			if (PngChunk.IMAGE_HEADER.equals(type)) {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunk.getLength());
+				final DataOutputStream data = new DataOutputStream(bytes);
+
+				data.writeInt((int) baseImage.getWidth());
+				data.writeInt((int) baseImage.getHeight());
+				data.writeByte(bitDepth);
+				data.writeByte(PngImageType.TRUECOLOR_ALPHA.getColorType());
+				data.writeByte(0);	// compression
+				data.writeByte(0);	// filter
+				data.writeByte(0);	// interlace
+				data.close();
+
+				result.addChunk(new PngChunk(chunk.getType(), bytes.toByteArray()));
+			} else if (chunk.isRequired() && !PngChunk.PALETTE.equals(type)
+					&& !PngChunk.TRANSPARENCY.equalsIgnoreCase(type)) {
 				final ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunk.getLength());
 				final DataOutputStream data = new DataOutputStream(bytes);
 
 				data.write(chunk.getData());
 				data.close();
 
-				final PngChunk newChunk = new PngChunk(chunk.getType(), bytes.toByteArray());
-				if (PngChunk.IMAGE_HEADER.equals(chunk.getTypeString())) {
-					newChunk.setInterlace((byte) 0);
-				}
-				result.addChunk(newChunk);
+				result.addChunk(new PngChunk(chunk.getType(), bytes.toByteArray()));
 			}
 		}
-		return chunk;
 	}
 
-	/* */
-	private PngChunk processTailChunks(PngImage result, Iterator<PngChunk> itBaseChunks, PngChunk lastBaseChunk) throws IOException {
-		while (lastBaseChunk != null) {
-			if (lastBaseChunk.isCritical()) {
-				final ByteArrayOutputStream bytes = new ByteArrayOutputStream(lastBaseChunk.getLength());
+	/*
+	 * Copy the critical chunks that follow the base image's data. The chunk
+	 * iterator can't be used for this, as inflating the image data consumes
+	 * the chunk after the last image data chunk.
+	 */
+	private void processTailChunks(PngImage result, PngImage baseImage) throws IOException {
+		boolean afterImageData = false;
+		for (PngChunk chunk : baseImage.getChunks()) {
+			if (PngChunk.IMAGE_DATA.equals(chunk.getTypeString())) {
+				afterImageData = true;
+			} else if (afterImageData && chunk.isCritical()) {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunk.getLength());
 				final DataOutputStream data = new DataOutputStream(bytes);
 
-				data.write(lastBaseChunk.getData());
+				data.write(chunk.getData());
 				data.close();
 
-				final PngChunk newChunk = new PngChunk(lastBaseChunk.getType(), bytes.toByteArray());
+				final PngChunk newChunk = new PngChunk(chunk.getType(), bytes.toByteArray());
 				result.addChunk(newChunk);
 			}
-			lastBaseChunk = itBaseChunks.hasNext() ? itBaseChunks.next() : null;
 		}
-		return lastBaseChunk;
 	}
 
-	/* */
-	private PngByteArrayOutputStream serialize(List<byte[]> scanlines) {
-		final int scanlineLength = scanlines.get(0).length;
-		final byte[] imageData = new byte[scanlineLength * scanlines.size()];
-
-		for (int i = 0; i < scanlines.size(); i++) {
-			final int offset = i * scanlineLength;
-			final byte[] scanline = scanlines.get(i);
-			System.arraycopy(scanline, 0, imageData, offset, scanlineLength);
+	/**
+	 * The part of a layer that falls inside the base image, decoded a row at
+	 * a time as the output reaches it.
+	 */
+	private static class LayerRows {
+		final PngRowDecoder decoder;
+		final PngBlendMode blendMode;
+		final int left;
+		final int top;
+
+		LayerRows(PngRowDecoder decoder, PngBlendMode blendMode, int left, int top) {
+			this.decoder = decoder;
+			this.blendMode = blendMode;
+			this.left = left;
+			this.top = top;
 		}
 
-		return new PngByteArrayOutputStream(imageData);
-	}
-
-	/* */
-	private List<byte[]> doLayering(PngImage baseImage, PngImage layerImage, List<byte[]> baseRows, List<byte[]> layerRows) throws IOException {
-		final List<byte[]> result = new ArrayList<>(baseRows.size());
-
-		final PngImageType baseImageType = PngImageType.forColorType(baseImage.getColorType());
-		final PngImageType layerImageType = PngImageType.forColorType(layerImage.getColorType());
-		final int sampleSize = baseImage.getSampleBitCount();
-
-		for (int rowIndex = 0; rowIndex < baseRows.size(); rowIndex++) {
-			final byte[] baseRow = baseRows.get(rowIndex);
-			final byte[] layerRow = layerRows.get(rowIndex);
-			final int sampleCount = ((baseRow.length - 1) * 8) / sampleSize;
-
-			final ByteArrayInputStream baseIn = new ByteArrayInputStream(baseRow);
-			final DataInputStream baseDin = new DataInputStream(baseIn);
-			final int filterByte = baseDin.readUnsignedByte();
-
-			final ByteArrayInputStream layerIn = new ByteArrayInputStream(layerRow);
-			final DataInputStream layerDin = new DataInputStream(layerIn);
-			layerDin.readUnsignedByte();	// skip filter byte
-
-			final ByteArrayOutputStream outs = new ByteArrayOutputStream(baseRow.length);
-			final DataOutputStream dos = new DataOutputStream(outs);
-			dos.writeByte(filterByte);
-
-			for (int i = 0; i < sampleCount; i++) {
-				// Zero alpha represents a completely transparent pixel,
-				// maximum alpha represents a completely opaque pixel.
-				int baseRed, baseGreen, baseBlue, baseAlpha = 0;
-				int layerRed, layerGreen, layerBlue, layerAlpha = 0;
-
-				if (baseImage.getBitDepth() == 8) {
-					baseRed = baseDin.readUnsignedByte();
-					baseGreen = baseDin.readUnsignedByte();
-					baseBlue = baseDin.readUnsignedByte();
-				} else {
-					baseRed = baseDin.readUnsignedShort();
-					baseGreen = baseDin.readUnsignedShort();
-					baseBlue = baseDin.readUnsignedShort();
-				}
-
-				if (baseImageType == PngImageType.TRUECOLOR_ALPHA) {
-					baseAlpha = (baseImage.getBitDepth() == 8)
-						? baseDin.readUnsignedByte()
-						: baseDin.readUnsignedShort();
-				} else {
-					baseAlpha = 255;
-				}
-
-				if (layerImage.getBitDepth() == 8) {
-					layerRed = layerDin.readUnsignedByte();
-					layerGreen = layerDin.readUnsignedByte();
-					layerBlue = layerDin.readUnsignedByte();
-				} else {
-					layerRed = layerDin.readUnsignedShort();
-					layerGreen = layerDin.readUnsignedShort();
-					layerBlue = layerDin.readUnsignedShort();
-				}
-
-				if (layerImageType == PngImageType.TRUECOLOR_ALPHA) {
-					layerAlpha = (layerImage.getBitDepth() == 8)
-						? layerDin.readUnsignedByte()
-						: layerDin.readUnsignedShort();
-				}
-
-				if (layerAlpha == 0) {
-					dos.writeByte(baseRed);
-					dos.writeByte(baseGreen);
-					dos.writeByte(baseBlue);
-					dos.writeByte(baseAlpha);
-				} else {
-					dos.writeByte((baseRed * (255 - layerAlpha) + layerRed * layerAlpha) / 255);
-					dos.writeByte((baseGreen * (255 - layerAlpha) + layerGreen * layerAlpha) / 255);
-					dos.writeByte((baseBlue * (255 - layerAlpha) + layerBlue * layerAlpha) / 255);
-					dos.writeByte(255);
-				}
+		/* Open a decoder for the visible part of the layer, or return null if none of it is */
+		static LayerRows open(PngReader pngReader, PngLayer layer, PngPixelFormat format, int width, int height) throws IOException {
+			final PngImage image = layer.getImage();
+			final long fromX = Math.max(0, -(long) layer.getX());
+			final long fromY = Math.max(0, -(long) layer.getY());
+			final long toX = Math.min(image.getWidth(), (long) width - layer.getX());
+			final long toY = Math.min(image.getHeight(), (long) height - layer.getY());
+			if (fromX >= toX || fromY >= toY) {
+				return null;
 			}
-			dos.flush();
-			result.add(outs.toByteArray());
+
+			final PngRowDecoder decoder = pngReader.decodeRows(image, format,
+					(int) fromX, (int) fromY, (int) (toX - fromX), (int) (toY - fromY), 1);
+			return new LayerRows(decoder, layer.getBlendMode(),
+					(int) (layer.getX() + fromX), (int) (layer.getY() + fromY));
 		}
-		return result;
 	}
 }
@@ -0,0 +1,227 @@
+package com.googlecode.pngtastic.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Where the time went in optimizing one image: a measurement of each stage
+ * it went through, in the order they ran, with the bytes each one took in
+ * and gave out, and which of the filter and compression trials won.
+ * <p>
+ * Compression trials can run on several threads at once, so recording is
+ * synchronized.
+ *
+ * @author rayvanderborght
+ */
+public class PngMetrics {
+
+	/** the stages of an optimization, in the order they run */
+	public enum Stage {
+		/** reading the file's chunks */
+		PARSE,
+		/** decompressing the image data */
+		INFLATE,
+		/** undoing the filtering, and the interlacing, of the image data */
+		DEFILTER,
+		/** a quick compression, judging a color reduction or palette ordering */
+		ESTIMATE,
+		/** applying one filter type to every row */
+		FILTER,
+		/** one deflate of the filtered data, with one strategy and level or with zopfli */
+		COMPRESS,
+		/** serializing the chunks and writing the output file */
+		WRITE
+	}
+
+	/** the label of the compression trials of the image's original filtering */
+	public static final String ORIGINAL_FILTERING = "ORIGINAL";
+
+	/** the strategy of compression trials done with zopfli */
+	public static final String ZOPFLI = "zopfli";
+
+	/**
+	 * One stage, or one trial of a stage
+	 */
+	public static class Measurement {
+		private final Stage stage;
+		public Stage getStage() { return stage; }
+
+		/** the filter type of a filter or compression trial */
+		private final String filter;
+		public String getFilter() { return filter; }
+
+		/** the deflate strategy of a compression trial */
+		private final String strategy;
+		public String getStrategy() { return strategy; }
+
+		/** the compression level of a compression trial, or null for zopfli */
+		private final Integer level;
+		public Integer getLevel() { return level; }
+
+		/** the number of zopfli iterations of a compression trial */
+		private final int iterations;
+		public int getIterations() { return iterations; }
+
+		private final long nanos;
+		public long getNanos() { return nanos; }
+
+		private final long bytesIn;
+		public long getBytesIn() { return bytesIn; }
+
+		private final long bytesOut;
+		public long getBytesOut() { return bytesOut; }
+
+		public Measurement(Stage stage, String filter, String strategy, Integer level, int iterations,
+				long nanos, long bytesIn, long bytesOut) {
+			this.stage = stage;
+			this.filter = filter;
+			this.strategy = strategy;
+			this.level = level;
+			this.iterations = iterations;
+			this.nanos = nanos;
+			this.bytesIn = bytesIn;
+			this.bytesOut = bytesOut;
+		}
+
+		/** */
+		@Override
+		public String toString() {
+			final StringBuilder result = new StringBuilder(stage.name());
+			if (filter != null) {
+				result.append(' ').append(filter);
+			}
+			if (strategy != null) {
+				result.append(' ').append(strategy);
+			}
+			if (level != null) {
+				result.append(" level=").append(level);
+			}
+			if (iterations > 0) {
+				result.append(" iterations=").append(iterations);
+			}
+			result.append(String.format(" %.3fms %dB -> %dB", nanos / 1e6, bytesIn, bytesOut));
+			return result.toString();
+		}
+	}
+
+	private final List<Measurement> measurements = new ArrayList<>();
+
+	/* the filter type of the data being compressed, which the compression handler doesn't know */
+	private volatile String compressing;
+
+	private String winningFilter;
+	public synchronized String getWinningFilter() { return winningFilter; }
+
+	private String winningStrategy;
+	public synchronized String getWinningStrategy() { return winningStrategy; }
+
+	private Integer winningLevel;
+	public synchronized Integer getWinningLevel() { return winningLevel; }
+
+	/**
+	 * Record a stage that started at the given {@link System#nanoTime()}
+	 * and has just ended.
+	 */
+	public void record(Stage stage, long startNanos, long bytesIn, long bytesOut) {
+		recordNanos(stage, System.nanoTime() - startNanos, bytesIn, bytesOut);
+	}
+
+	/** Record a stage that took the given time, measured elsewhere */
+	public void recordNanos(Stage stage, long nanos, long bytesIn, long bytesOut) {
+		add(new Measurement(stage, null, null, null, 0, nanos, bytesIn, bytesOut));
+	}
+
+	/** Record a filter trial that started at the given time and has just ended */
+	public void recordFilter(String filter, long startNanos, long bytes) {
+		add(new Measurement(Stage.FILTER, filter, null, null, 0, System.nanoTime() - startNanos, bytes, bytes));
+	}
+
+	/** Record a compression trial that started at the given time and has just ended */
+	public void recordCompression(String strategy, Integer level, int iterations, long startNanos, long bytesIn, long bytesOut) {
+		add(new Measurement(Stage.COMPRESS, compressing, strategy, level, iterations, System.nanoTime() - startNanos, bytesIn, bytesOut));
+	}
+
+	/**
+	 * Label the compression trials recorded from now on with the filter type
+	 * of the data they compress.
+	 */
+	public void compressing(String filter) {
+		this.compressing = filter;
+	}
+
+	/**
+	 * Mark the compression trial of the filter type that gave the chosen
+	 * image data as the winner.
+	 *
+	 * @param length The length of the chosen image data
+	 */
+	public synchronized void chose(String filter, int length) {
+		// the latest trials first, since the same filter may have been tried on another encoding of the image
+		for (int i = measurements.size() - 1; i >= 0; i--) {
+			final Measurement measurement = measurements.get(i);
+			if (measurement.stage == Stage.COMPRESS && measurement.bytesOut == length
+					&& (filter == null ? measurement.filter == null : filter.equals(measurement.filter))) {
+				winningFilter = filter;
+				winningStrategy = measurement.strategy;
+				winningLevel = measurement.level;
+				return;
+			}
+		}
+	}
+
+	/* Set the winner outright, or clear it when the image data is kept as it came, without a trial winning */
+	synchronized void win(String filter, String strategy, Integer level) {
+		winningFilter = filter;
+		winningStrategy = strategy;
+		winningLevel = level;
+	}
+
+	/** */
+	public synchronized List<Measurement> getMeasurements() {
+		return new ArrayList<>(measurements);
+	}
+
+	/**
+	 * @return The time spent in the stage, over all its trials
+	 */
+	public synchronized long getNanos(Stage stage) {
+		long nanos = 0;
+		for (Measurement measurement : measurements) {
+			if (measurement.stage == stage) {
+				nanos += measurement.nanos;
+			}
+		}
+		return nanos;
+	}
+
+	/**
+	 * @return The time spent in every stage; compression trials that ran
+	 * concurrently are each counted in full
+	 */
+	public synchronized long getTotalNanos() {
+		long nanos = 0;
+		for (Measurement measurement : measurements) {
+			nanos += measurement.nanos;
+		}
+		return nanos;
+	}
+
+	/** */
+	@Override
+	public synchronized String toString() {
+		final StringBuilder result = new StringBuilder();
+		for (Measurement measurement : measurements) {
+			result.append(measurement).append('\n');
+		}
+		result.append("Winner: ").append(winningFilter).append(' ').append(winningStrategy);
+		if (winningLevel != null) {
+			result.append(" level=").append(winningLevel);
+		}
+		return result.toString();
+	}
+
+	/* */
+	private synchronized void add(Measurement measurement) {
+		measurements.add(measurement);
+	}
+}
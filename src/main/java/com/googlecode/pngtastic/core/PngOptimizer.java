@@ -1,21 +1,34 @@
 package com.googlecode.pngtastic.core;
 
 import com.googlecode.pngtastic.core.processing.PngByteArrayOutputStream;
+import com.googlecode.pngtastic.core.processing.PngImageBuffer;
 import com.googlecode.pngtastic.core.processing.ZopfliCompressionHandler;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Optimizes PNG images for smallest possible filesize.
@@ -24,12 +37,53 @@ import java.util.Map.Entry;
  */
 public class PngOptimizer extends PngProcessor {
 
+	/** the deflate level for quick estimates of compressed size */
+	private static final int ESTIMATE_COMPRESSION_LEVEL = 6;
+
 	private boolean generateDataUriCss = false;
 	public void setGenerateDataUriCss(boolean generateDataUriCss) { this.generateDataUriCss = generateDataUriCss; }
 
-	private final List<OptimizerResult> results = new ArrayList<>();
+	private int idatChunkSize = 0;
+	public void setIdatChunkSize(int idatChunkSize) { this.idatChunkSize = idatChunkSize; }
+
+	/** the chunks that refer to palette indexes or sample values, which change when the pixels are recoded */
+	private static final Set<String> ENCODING_DEPENDENT_CHUNKS = new HashSet<>(Arrays.asList(
+			PngChunk.BACKGROUND_COLOR, PngChunk.IMAGE_HISTOGRAM, PngChunk.SIGNIFICANT_BITS));
+
+	/** which chunks to keep; if set, this replaces the removeGamma option */
+	private PngChunkPolicy chunkPolicy;
+	public void setChunkPolicy(PngChunkPolicy chunkPolicy) { this.chunkPolicy = chunkPolicy; }
+
+	/** ancillary chunks written into every image, in place of any chunks of the same types, like a pHYs for the dpi */
+	private List<PngChunk> extraChunks = Collections.emptyList();
+	public void setExtraChunks(List<PngChunk> extraChunks) { this.extraChunks = extraChunks; }
+
+	/** losslessly reduce the color type and bit depth where the pixels allow it */
+	private boolean reduceColors = false;
+	public void setReduceColors(boolean reduceColors) { this.reduceColors = reduceColors; }
+
+	/** try reordering the palettes of indexed images for better compression */
+	private boolean reorderPalette = false;
+	public void setReorderPalette(boolean reorderPalette) { this.reorderPalette = reorderPalette; }
+
+	/** how to rewrite the colour of fully transparent pixels, which changes no visible pixel */
+	private PngAlphaCleanup alphaCleanup = PngAlphaCleanup.NONE;
+	public void setAlphaCleanup(PngAlphaCleanup alphaCleanup) { this.alphaCleanup = alphaCleanup; }
+
+	private final List<OptimizerResult> results = Collections.synchronizedList(new ArrayList<OptimizerResult>());
 	public List<OptimizerResult> getResults() { return results; }
 
+	/** runs the async optimizations; defaults to a shared pool sized to the number of cores */
+	private Executor executor;
+	public void setExecutor(Executor executor) { this.executor = executor; }
+
+	/** runs the file reads and writes of async optimizations; defaults to virtual threads where the jvm has them */
+	private Executor ioExecutor;
+	public void setIoExecutor(Executor ioExecutor) { this.ioExecutor = ioExecutor; }
+
+	private static ExecutorService defaultExecutor;
+	private static ExecutorService defaultIoExecutor;
+
 	public PngOptimizer() {
 		this(Logger.NONE);
 	}
@@ -42,27 +96,265 @@ public class PngOptimizer extends PngProcessor {
 	public void optimize(PngImage image, String outputFileName, boolean removeGamma, Integer compressionLevel)
 			throws IOException {
 
+		optimizeToFile(image, outputFileName, removeGamma, compressionLevel);
+	}
+
+	/**
+	 * Optimize the image and write it to the output file, as
+	 * {@link #optimize(PngImage, String, boolean, Integer)} does, returning
+	 * the result that is also added to {@link #getResults()}.
+	 */
+	public OptimizerResult optimizeToFile(PngImage image, String outputFileName, boolean removeGamma, Integer compressionLevel)
+			throws IOException {
+
+		final OptimizerResult result = writeOptimized(image, outputFileName, removeGamma, compressionLevel);
+		results.add(result);
+		return result;
+	}
+
+	/**
+	 * Write the output of an image already optimized for a duplicate of it,
+	 * a file holding the same image, rather than optimizing it again. As
+	 * with any optimization, the duplicate's own bytes are written instead if
+	 * they're smaller, unless there are extra chunks to add. The result is also added to {@link #getResults()}.
+	 *
+	 * @param optimized The result of optimizing the image
+	 * @param optimizedFileName The file the optimized image was written to
+	 * @see PngDigest
+	 */
+	public OptimizerResult exportDuplicate(OptimizerResult optimized, String optimizedFileName, String fileName, String outputFileName)
+			throws IOException {
+
+		final long start = System.currentTimeMillis();
+		final long startNanos = System.nanoTime();
+
+		final File optimizedFile = new File(optimizedFileName);
+		final File originalFile = new File(fileName);
+		final long originalFileSize = originalFile.length();
+
+		final File source = (optimizedFile.length() < originalFileSize || !extraChunks.isEmpty()) ? optimizedFile : originalFile;
+		final byte[] optimalBytes = getFileBytes(source, source.length());
+
+		final File exported = new File(outputFileName);
+		final FileOutputStream outs = new FileOutputStream(exported);
+		try {
+			outs.write(optimalBytes);
+		} finally {
+			outs.close();
+		}
+
+		log.debug("Copied the optimized duplicate %s in %d milliseconds", optimized.getFileName(), System.currentTimeMillis() - start);
+
+		final PngMetrics metrics = new PngMetrics();
+		metrics.record(PngMetrics.Stage.WRITE, startNanos, source.length(), exported.length());
+		final OptimizerResult result = result(fileName, originalFileSize, exported.length(), outputFileName,
+				optimalBytes, optimized.getWidth(), optimized.getHeight(), metrics);
+		results.add(result);
+		return result;
+	}
+
+	/**
+	 * Optimize the image and write it to the output file on the optimizer's
+	 * executor, rather than on the calling thread. The result is also added
+	 * to {@link #getResults()} as with the blocking version.
+	 * <p>
+	 * Cancelling the returned future interrupts the optimization if it is
+	 * already running, which stops any compression trials in progress.
+	 */
+	public CompletableFuture<OptimizerResult> optimizeAsync(final PngImage image, final String outputFileName,
+			final boolean removeGamma, final Integer compressionLevel) {
+
+		final InterruptibleFuture<OptimizerResult> future = new InterruptibleFuture<>();
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				future.run(new Callable<OptimizerResult>() {
+					@Override
+					public OptimizerResult call() throws Exception {
+						final OptimizerResult result = writeOptimized(image, outputFileName, removeGamma, compressionLevel);
+						results.add(result);
+						return result;
+					}
+				});
+			}
+		});
+
+		return future;
+	}
+
+	/**
+	 * Read, optimize and write the image file asynchronously. Reading and
+	 * writing happen on the i/o executor while the filtering and compression
+	 * happen on the optimizer's executor, so that slow storage doesn't tie up
+	 * the threads doing the compression.
+	 * <p>
+	 * Cancelling the returned future stops the work at whichever stage it's in.
+	 */
+	public CompletableFuture<OptimizerResult> optimizeAsync(String fileName, String outputFileName,
+			boolean removeGamma, Integer compressionLevel) {
+
+		final InterruptibleFuture<OptimizerResult> future = new InterruptibleFuture<>();
+		getIoExecutor().execute(new FileOptimization(future, fileName, outputFileName, removeGamma, compressionLevel));
+
+		return future;
+	}
+
+	/* */
+	private Executor getExecutor() {
+		if (executor != null) {
+			return executor;
+		}
+		synchronized (PngOptimizer.class) {
+			if (defaultExecutor == null) {
+				defaultExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						final Thread thread = new Thread(r, "pngtastic-optimizer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			return defaultExecutor;
+		}
+	}
+
+	/*
+	 * Use virtual threads when running on a jvm that has them (java 21+),
+	 * looked up reflectively since we still build for java 8.
+	 */
+	private Executor getIoExecutor() {
+		if (ioExecutor != null) {
+			return ioExecutor;
+		}
+		synchronized (PngOptimizer.class) {
+			if (defaultIoExecutor == null) {
+				try {
+					defaultIoExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				} catch (ReflectiveOperationException e) {
+					defaultIoExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							final Thread thread = new Thread(r, "pngtastic-io");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+				}
+			}
+			return defaultIoExecutor;
+		}
+	}
+
+	/* */
+	private OptimizerResult writeOptimized(PngImage image, String outputFileName, boolean removeGamma, Integer compressionLevel)
+			throws IOException {
+
+		final long start = System.currentTimeMillis();
+		final PngMetrics metrics = parseMetrics(image);
+		final PngByteArrayOutputStream optimizedBytes = optimizeToBytes(image, removeGamma, compressionLevel, metrics);
+
+		return export(image, optimizedBytes, outputFileName, start, metrics);
+	}
+
+	/* Start the metrics of an image's optimization with how long it took to read */
+	private static PngMetrics parseMetrics(PngImage image) {
+		final PngMetrics metrics = new PngMetrics();
+		if (image.getParseNanos() > 0) {
+			long length = 8;
+			for (PngChunk chunk : image.getChunks()) {
+				length += chunkLength(chunk);
+			}
+			metrics.recordNanos(PngMetrics.Stage.PARSE, image.getParseNanos(), length, length);
+		}
+		return metrics;
+	}
+
+	/* */
+	private PngByteArrayOutputStream optimizeToBytes(PngImage image, boolean removeGamma, Integer compressionLevel,
+			PngMetrics metrics) throws IOException {
+
 		log.debug("=== OPTIMIZING ===");
 
+		final PngImage optimized = optimize(image, removeGamma, compressionLevel, metrics);
+
+		final long start = System.nanoTime();
+		final PngByteArrayOutputStream optimizedBytes = new PngByteArrayOutputStream();
+		optimized.writeDataOutputStream(optimizedBytes);
+		metrics.record(PngMetrics.Stage.WRITE, start, optimizedBytes.len(), optimizedBytes.len());
+
+		return optimizedBytes;
+	}
+
+	/**
+	 * Write the image file with only the chunks the chunk policy keeps, or by
+	 * default the chunks the optimizer would keep with the given removeGamma
+	 * option, plus the extra chunks, copying each kept chunk's bytes as they
+	 * are. The image data is never decompressed, or even read, so this is far
+	 * quicker than optimizing when only metadata needs adding or stripping.
+	 * The result is also added to {@link #getResults()}.
+	 *
+	 * @see PngChunkCopier
+	 */
+	public OptimizerResult copyChunks(String fileName, String outputFileName, boolean removeGamma) throws IOException {
 		final long start = System.currentTimeMillis();
-		final PngImage optimized = optimize(image, removeGamma, compressionLevel);
+		final long startNanos = System.nanoTime();
 
-		final ByteArrayOutputStream optimizedBytes = new ByteArrayOutputStream();
-		final long optimizedSize = optimized.writeDataOutputStream(optimizedBytes).size();
+		final File originalFile = new File(fileName);
+		final long originalFileSize = originalFile.length();
+		final File exported = new File(outputFileName);
+
+		final PngChunkCopier copier = new PngChunkCopier((chunkPolicy == null) ? PngChunkPolicy.required(removeGamma) : chunkPolicy);
+		for (PngChunk extra : extraChunks) {
+			copier.replace(extra);
+		}
+		copier.copy(fileName, outputFileName);
+
+		log.debug("Copied chunks in %d milliseconds", System.currentTimeMillis() - start);
+
+		final PngMetrics metrics = new PngMetrics();
+		metrics.record(PngMetrics.Stage.WRITE, startNanos, originalFileSize, exported.length());
+		final byte[] optimalBytes = (generateDataUriCss) ? getFileBytes(exported, exported.length()) : null;
+		final PngChunk header = copier.getHeader();
+		final OptimizerResult result = result(fileName, originalFileSize, exported.length(), outputFileName, optimalBytes,
+				(header == null) ? 0 : header.getWidth(), (header == null) ? 0 : header.getHeight(), metrics);
+		results.add(result);
+		return result;
+	}
+
+	/*
+	 * Write whichever is smaller of the optimized and the original image to
+	 * the output file, or the optimized one if it has extra chunks added;
+	 * all the file system access of an optimization is here.
+	 */
+	private OptimizerResult export(PngImage image, PngByteArrayOutputStream optimizedBytes, String outputFileName, long start,
+			PngMetrics metrics) throws IOException {
+
+		final long optimizedSize = optimizedBytes.len();
 
 		final File originalFile = new File(image.getFileName());
 		final long originalFileSize = originalFile.length();
 
-		final byte[] optimalBytes = (optimizedSize < originalFileSize)
+		// the original doesn't hold the extra chunks, so it can't stand in for the optimized image
+		final byte[] optimalBytes = (optimizedSize < originalFileSize || !extraChunks.isEmpty())
 				? optimizedBytes.toByteArray() : getFileBytes(originalFile, originalFileSize);
 
-		final File exported = optimized.export(outputFileName, optimalBytes);
+		final long exportStart = System.nanoTime();
+		final File exported = image.export(outputFileName, optimalBytes);
+		metrics.record(PngMetrics.Stage.WRITE, exportStart, optimalBytes.length, exported.length());
+
+		log.debug("Optimized in %d milliseconds, size %d", System.currentTimeMillis() - start, optimizedSize);
+		log.debug("Stages:\n%s", metrics);
+
+		return result(image.getFileName(), originalFileSize, exported.length(), outputFileName,
+				optimalBytes, image.getWidth(), image.getHeight(), metrics);
+	}
 
-		final long optimizedFileSize = exported.length();
-		final long time = System.currentTimeMillis() - start;
+	/* Log the outcome of writing an image's output file, and make its result */
+	private OptimizerResult result(String fileName, long originalFileSize, long optimizedFileSize, String outputFileName,
+			byte[] optimalBytes, long width, long height, PngMetrics metrics) {
 
-		log.debug("Optimized in %d milliseconds, size %d", time, optimizedSize);
-		log.debug("Original length in bytes: %d (%s)", originalFileSize, image.getFileName());
+		log.debug("Original length in bytes: %d (%s)", originalFileSize, fileName);
 		log.debug("Final length in bytes: %d (%s)", optimizedFileSize, outputFileName);
 
 		final long fileSizeDifference = (optimizedFileSize <= originalFileSize)
@@ -74,7 +366,7 @@ public class PngOptimizer extends PngProcessor {
 
 		final String dataUri = (generateDataUriCss) ? pngCompressionHandler.encodeBytes(optimalBytes) : null;
 
-		results.add(new OptimizerResult(image.getFileName(), originalFileSize, optimizedFileSize, image.getWidth(), image.getHeight(), dataUri));
+		return new OptimizerResult(fileName, originalFileSize, optimizedFileSize, width, height, dataUri, metrics);
 	}
 
 	/** */
@@ -84,44 +376,287 @@ public class PngOptimizer extends PngProcessor {
 
 	/** */
 	public PngImage optimize(PngImage image, boolean removeGamma, Integer compressionLevel) throws IOException {
-		// FIXME: support low bit depth interlaced images
-		if (image.getInterlace() == 1 && image.getSampleBitCount() < 8) {
-			return image;
-		}
+		return optimize(image, removeGamma, compressionLevel, new PngMetrics());
+	}
+
+	/**
+	 * Optimize the image, recording the time taken by each stage, and which
+	 * filter and compression trials won, in the metrics.
+	 */
+	public PngImage optimize(PngImage image, boolean removeGamma, Integer compressionLevel, PngMetrics metrics)
+			throws IOException {
+
+		checkCriticalChunks(image);
 
 		final PngImage result = new PngImage(log);
 		result.setInterlace((short) 0);
+		result.setIdatChunkSize(idatChunkSize);
 
 		final Iterator<PngChunk> itChunks = image.getChunks().iterator();
-		PngChunk chunk = processHeadChunks(result, removeGamma, itChunks);
+		final PngImage head = new PngImage(log);
+		final PngChunkPolicy policy = (chunkPolicy == null) ? PngChunkPolicy.required(removeGamma) : chunkPolicy;
+		final PngChunk chunk = processHeadChunks(head, policy, itChunks);
 
 		// collect image data chunks
-		final PngByteArrayOutputStream inflatedImageData = getInflatedImageData(chunk, itChunks);
+		final long inflateStart = System.nanoTime();
+		final PngImageBuffer inflatedImageData = getInflatedImageData(image, chunk, itChunks);
+		metrics.record(PngMetrics.Stage.INFLATE, inflateStart, imageDataLength(image), inflatedImageData.len());
 
 		final int scanlineLength = (int)(Math.ceil(image.getWidth() * image.getSampleBitCount() / 8F)) + 1;
 
+		final long defilterStart = System.nanoTime();
 		final List<byte[]> originalScanlines = (image.getInterlace() == 1)
 				? pngInterlaceHandler.deInterlace((int) image.getWidth(), (int) image.getHeight(), image.getSampleBitCount(), inflatedImageData)
 				: getScanlines(inflatedImageData, image.getSampleBitCount(), scanlineLength, image.getHeight());
+		metrics.record(PngMetrics.Stage.DEFILTER, defilterStart, inflatedImageData.len(), length(originalScanlines));
+
+		// before the color reduction, which may find fewer colors once transparent pixels match
+		final boolean cleaned = cleanTransparentPixels(image, originalScanlines);
+
+		PngColorReduction reduction = reduceColors ? PngColorReduction.analyze(image, originalScanlines) : null;
+		List<byte[]> reducedScanlines = null;
+		if (reduction != null) {
+			// fewer raw bytes don't always compress smaller, a palette can cost more than it saves on a small image
+			reducedScanlines = reduction.reduce(originalScanlines);
+			final long reducedSize = estimateCompressedSize(reducedScanlines, reduction.getSampleBitCount(), metrics)
+					+ chunkLength(reduction.getPalette()) + chunkLength(reduction.getTransparency());
+			final long originalSize = estimateCompressedSize(originalScanlines, image.getSampleBitCount(), metrics)
+					+ chunkLength(image.getPalette()) + chunkLength(image.getTransparency());
+			log.debug("Reducing color type %d, bit depth %d to color type %d, bit depth %d: estimated %d bytes, was %d",
+					image.getColorType(), image.getBitDepth(), reduction.getColorType(), reduction.getBitDepth(), reducedSize, originalSize);
+			if (reducedSize >= originalSize) {
+				reduction = null;
+			}
+		}
+
+		List<byte[]> scanlines = (reduction == null) ? originalScanlines : reducedScanlines;
+		PngChunk palette = (reduction == null) ? image.getPalette() : reduction.getPalette();
+		PngChunk transparency = (reduction == null) ? image.getTransparency() : reduction.getTransparency();
+		final int colorType = (reduction == null) ? image.getColorType() : reduction.getColorType();
+		final int bitDepth = (reduction == null) ? image.getBitDepth() : reduction.getBitDepth();
+		final int sampleBitCount = (reduction == null) ? image.getSampleBitCount() : reduction.getSampleBitCount();
+
+		PngPaletteOrdering ordering = null;
+		if (reorderPalette && colorType == PngImageType.INDEXED_COLOR.getColorType() && palette != null) {
+			// each ordering is judged by a quick estimate, so only the best one goes through the full search
+			long bestSize = estimateCompressedSize(scanlines, sampleBitCount, metrics) + chunkLength(palette) + chunkLength(transparency);
+			List<byte[]> bestScanlines = scanlines;
+			for (PngPaletteOrdering candidate : PngPaletteOrdering.candidates(scanlines, (int) image.getWidth(), bitDepth, palette, transparency)) {
+				final List<byte[]> reordered = candidate.reorder(scanlines);
+				final long size = estimateCompressedSize(reordered, sampleBitCount, metrics)
+						+ chunkLength(candidate.getPalette()) + chunkLength(candidate.getTransparency());
+				log.debug("Palette ordered by %s: estimated %d bytes, best was %d", candidate, size, bestSize);
+				if (size < bestSize) {
+					bestSize = size;
+					bestScanlines = reordered;
+					ordering = candidate;
+				}
+			}
+			if (ordering != null) {
+				scanlines = bestScanlines;
+				palette = ordering.getPalette();
+				transparency = ordering.getTransparency();
+			}
+		}
+		// interlaced data can't be used as it is, since the result is never interlaced, and neither can rewritten data
+		final PngImageBuffer filteredImageData = (image.getInterlace() == 1 || cleaned) ? null : inflatedImageData;
+		byte[] deflatedImageData;
+		try {
+			if (reduction != null || ordering != null) {
+				deflatedImageData = compressScanlines(scanlines, sampleBitCount, null, compressionLevel, metrics);
+
+				// the estimates that chose the recoding are only a guide, so rather than search the original
+				// too, the recoding is checked against the image data as it came, which is kept if it's smaller
+				final long recodedSize = deflatedImageData.length + chunkLength(palette) + chunkLength(transparency);
+				final long originalSize = imageDataLength(image) + chunkLength(image.getPalette())
+						+ chunkLength(image.getTransparency()) + encodingDependentLength(head);
+				log.debug("Recoded image data %d bytes, was %d", recodedSize, originalSize);
+				if (filteredImageData != null && originalSize <= recodedSize) {
+					reduction = null;
+					ordering = null;
+					palette = image.getPalette();
+					transparency = image.getTransparency();
+					deflatedImageData = imageData(image);
+					metrics.win(null, null, null);
+				}
+			} else {
+				deflatedImageData = compressScanlines(originalScanlines, image.getSampleBitCount(),
+						filteredImageData, compressionLevel, metrics);
+			}
+		} finally {
+			inflatedImageData.release();
+		}
+		processHeadChunks(result, head, reduction, reduction != null || ordering != null, palette, transparency);
+
+		final PngChunk imageChunk = new PngChunk(PngChunk.IMAGE_DATA.getBytes(), deflatedImageData);
+		result.addChunk(imageChunk);
+
+		// finish it; the chunk iterator can't be used, as inflating the image data consumed the chunk after it
+		boolean afterImageData = false;
+		for (PngChunk tail : image.getChunks()) {
+			if (PngChunk.IMAGE_DATA.equals(tail.getTypeString())) {
+				afterImageData = true;
+			} else if (afterImageData && !isExtraType(tail)
+					&& (tail.isCritical() || (!tail.isRequired() && policy.keeps(tail)))) {
+				result.addChunk(tail);
+			}
+		}
+
+		// make sure we have the IEND chunk
+		final List<PngChunk> chunks = result.getChunks();
+		if (chunks != null && !PngChunk.IMAGE_TRAILER.equals(chunks.get(chunks.size() - 1).getTypeString())) {
+			result.addChunk(new PngChunk(PngChunk.IMAGE_TRAILER.getBytes(), new byte[] { }));
+		}
+
+		return result;
+	}
+
+	/*
+	 * Rewrite the colour under fully transparent pixels in place, for images
+	 * with an alpha channel, returning whether any colour was changed.
+	 */
+	private boolean cleanTransparentPixels(PngImage image, List<byte[]> scanlines) {
+		final PngImageType imageType = PngImageType.forColorType(image.getColorType());
+		if (alphaCleanup == null || alphaCleanup == PngAlphaCleanup.NONE
+				|| (imageType != PngImageType.GREYSCALE_ALPHA && imageType != PngImageType.TRUECOLOR_ALPHA)) {
+			return false;
+		}
+
+		final PngAlphaCleaner cleaner = new PngAlphaCleaner(alphaCleanup, scanlines.get(0).length, image.getBitDepth(), imageType.channelCount());
+		boolean cleaned = false;
+		for (byte[] scanline : scanlines) {
+			cleaned |= cleaner.clean(scanline);
+		}
+		log.debug("Colors under transparent pixels changed by %s cleanup: %b", alphaCleanup, cleaned);
+		return cleaned;
+	}
+
+	/*
+	 * Copy the head chunks to the result, with a header for the new color
+	 * type and bit depth if there is a color reduction, and the given palette
+	 * and transparency in place of the old. The palette and transparency go
+	 * after the chunks that have to come before them, and ahead of the rest.
+	 * Chunks whose meaning depends on how the pixels are encoded are dropped
+	 * if the pixels were recoded, and the extra chunks take the place of any
+	 * of their types, each on its own side of the palette.
+	 */
+	private void processHeadChunks(PngImage result, PngImage head, PngColorReduction reduction, boolean recoded,
+			PngChunk palette, PngChunk transparency) {
+
+		boolean paletteAdded = false;
+		for (PngChunk chunk : head.getChunks()) {
+			final String type = chunk.getTypeString().toUpperCase();
+			if (PngChunk.PALETTE.equals(type) || PngChunk.TRANSPARENCY.equals(type)
+					|| (recoded && ENCODING_DEPENDENT_CHUNKS.contains(type)) || isExtraType(chunk)) {
+				continue;
+			}
+			if (!paletteAdded && !PngChunk.IMAGE_HEADER.equals(type) && !chunk.isBeforePalette()) {
+				addPalette(result, palette, transparency);
+				paletteAdded = true;
+			}
+
+			if (reduction != null && PngChunk.IMAGE_HEADER.equals(type)) {
+				final byte[] header = chunk.getData().clone();
+				header[8] = (byte) reduction.getBitDepth();
+				header[9] = (byte) reduction.getColorType();
+				result.addChunk(new PngChunk(chunk.getType(), header));
+			} else {
+				result.addChunk(chunk);
+			}
+		}
+		if (!paletteAdded) {
+			addPalette(result, palette, transparency);
+		}
+		addExtraChunks(result, false);
+	}
+
+	/* The palette and transparency, after the extra chunks that have to come before them */
+	private void addPalette(PngImage result, PngChunk palette, PngChunk transparency) {
+		addExtraChunks(result, true);
+		if (palette != null) {
+			result.addChunk(palette);
+		}
+		if (transparency != null) {
+			result.addChunk(transparency);
+		}
+	}
+
+	/* The length of the head chunks that are dropped if the pixels are recoded */
+	private long encodingDependentLength(PngImage head) {
+		long length = 0;
+		for (PngChunk chunk : head.getChunks()) {
+			if (ENCODING_DEPENDENT_CHUNKS.contains(chunk.getTypeString().toUpperCase()) && !isExtraType(chunk)) {
+				length += chunkLength(chunk);
+			}
+		}
+		return length;
+	}
+
+	/* */
+	private void addExtraChunks(PngImage result, boolean beforePalette) {
+		for (PngChunk extra : extraChunks) {
+			if (extra.isBeforePalette() == beforePalette) {
+				result.addChunk(extra);
+			}
+		}
+	}
+
+	/* */
+	private boolean isExtraType(PngChunk chunk) {
+		for (PngChunk extra : extraChunks) {
+			if (extra.getTypeString().equalsIgnoreCase(chunk.getTypeString())) {
+				return true;
+			}
+		}
+		return false;
+	}
 
-		// TODO: use this for bit depth reduction
-//		Map<PngPixel, Integer> colors = getColors(image, originalScanlines, 32);
+	/**
+	 * Filter and compress unfiltered scanlines held in memory, trying each
+	 * filter type and adaptive filtering at the given compression level, or
+	 * at every level if it is null.
+	 *
+	 * @param scanlines The scanlines to compress, left as they are
+	 * @param filteredImageData The image data as it was originally filtered,
+	 * which stands in for the adaptively filtered data, or null if there is none
+	 * @return The smallest deflated image data found
+	 */
+	byte[] compressScanlines(List<byte[]> scanlines, int sampleBitCount, PngImageBuffer filteredImageData, Integer compressionLevel)
+			throws IOException {
+
+		return compressScanlines(scanlines, sampleBitCount, filteredImageData, compressionLevel, new PngMetrics());
+	}
+
+	/*
+	 * As above, recording each filter and compression trial, and the winner,
+	 * in the metrics.
+	 */
+	private byte[] compressScanlines(List<byte[]> scanlines, int sampleBitCount, PngImageBuffer filteredImageData,
+			Integer compressionLevel, PngMetrics metrics) throws IOException {
+
+		final long length = length(scanlines);
 
 		// apply each type of filtering
 		final Map<PngFilterType, List<byte[]>> filteredScanlines = new HashMap<>();
 		for (PngFilterType filterType : PngFilterType.standardValues()) {
 			log.debug("Applying filter: %s", filterType);
-			final List<byte[]> scanlines = copyScanlines(originalScanlines);
-			pngFilterHandler.applyFiltering(filterType, scanlines, image.getSampleBitCount());
+			final long start = System.nanoTime();
+			final List<byte[]> filtered = copyScanlines(scanlines);
+			pngFilterHandler.applyFiltering(filterType, filtered, sampleBitCount);
+			metrics.recordFilter(filterType.name(), start, length);
 
-			filteredScanlines.put(filterType, scanlines);
+			filteredScanlines.put(filterType, filtered);
 		}
 
 		// pick the filter that compresses best
 		PngFilterType bestFilterType = null;
 		byte[] deflatedImageData = null;
+		final PngImageBuffer serialized = allocateImageBuffer(scanlines.get(0).length * scanlines.size());
 		for (Entry<PngFilterType, List<byte[]>> entry : filteredScanlines.entrySet()) {
-			final byte[] imageResult = pngCompressionHandler.deflate(serialize(entry.getValue()), compressionLevel, true);
+			serialized.reset();
+			serialize(entry.getValue(), serialized);
+			metrics.compressing(entry.getKey().name());
+			final byte[] imageResult = pngCompressionHandler.deflate(serialized, compressionLevel, true, metrics);
 			if (deflatedImageData == null || imageResult.length < deflatedImageData.length) {
 				deflatedImageData = imageResult;
 				bestFilterType = entry.getKey();
@@ -129,43 +664,90 @@ public class PngOptimizer extends PngProcessor {
 		}
 
 		// see if adaptive filtering results in even better compression
-		final List<byte[]> scanlines = copyScanlines(originalScanlines);
-		pngFilterHandler.applyAdaptiveFiltering(inflatedImageData, scanlines, filteredScanlines, image.getSampleBitCount());
-
-		final byte[] adaptiveImageData = pngCompressionHandler.deflate(inflatedImageData, compressionLevel, true);
-		log.debug("Original=%d, Adaptive=%d, %s=%d", image.getImageData().length, adaptiveImageData.length,
+		if (filteredImageData == null) {
+			final long start = System.nanoTime();
+			final List<byte[]> adaptive = copyScanlines(scanlines);
+			pngFilterHandler.applyAdaptiveFiltering(null, adaptive, filteredScanlines, sampleBitCount);
+			metrics.recordFilter(PngFilterType.ADAPTIVE.name(), start, length);
+			serialized.reset();
+			serialize(adaptive, serialized);
+		}
+		final String adaptiveFilter = (filteredImageData == null) ? PngFilterType.ADAPTIVE.name() : PngMetrics.ORIGINAL_FILTERING;
+		metrics.compressing(adaptiveFilter);
+		final byte[] adaptiveImageData = pngCompressionHandler.deflate(
+				(filteredImageData == null) ? serialized : filteredImageData, compressionLevel, true, metrics);
+		serialized.release();
+		log.debug("Adaptive=%d, %s=%d", adaptiveImageData.length,
 				bestFilterType, (deflatedImageData == null) ? 0 : deflatedImageData.length);
 
 		if (deflatedImageData == null || adaptiveImageData.length < deflatedImageData.length) {
 			deflatedImageData = adaptiveImageData;
-			bestFilterType = PngFilterType.ADAPTIVE;
+			metrics.chose(adaptiveFilter, deflatedImageData.length);
+		} else {
+			metrics.chose(bestFilterType.name(), deflatedImageData.length);
 		}
 
-		final PngChunk imageChunk = new PngChunk(PngChunk.IMAGE_DATA.getBytes(), deflatedImageData);
-		result.addChunk(imageChunk);
+		return deflatedImageData;
+	}
 
-		// finish it
-		while (chunk != null) {
-			if (chunk.isCritical() && !PngChunk.IMAGE_DATA.equals(chunk.getTypeString())) {
-				ByteArrayOutputStream bytes = new ByteArrayOutputStream(chunk.getLength());
-				DataOutputStream data = new DataOutputStream(bytes);
+	/*
+	 * A quick estimate of how small the scanlines compress: the better of no
+	 * filtering, which usually suits indexed and low bit depth images, and
+	 * adaptive filtering, each deflated once at the default level. Together
+	 * these cost about as much as two of the many trials of the full search.
+	 */
+	private long estimateCompressedSize(List<byte[]> scanlines, int sampleBitCount, PngMetrics metrics) {
+		final long start = System.nanoTime();
+		long best = Long.MAX_VALUE;
+		for (PngFilterType filterType : new PngFilterType[] { PngFilterType.NONE, PngFilterType.ADAPTIVE }) {
+			try (final PngRowEncoder encoder = new PngRowEncoder(pngFilterHandler, scanlines.get(0).length, sampleBitCount,
+					ESTIMATE_COMPRESSION_LEVEL, filterType)) {
+				for (byte[] scanline : scanlines) {
+					encoder.write(scanline);
+				}
+				best = Math.min(best, encoder.finish().length);
+			}
+		}
+		metrics.record(PngMetrics.Stage.ESTIMATE, start, length(scanlines), best);
+		return best;
+	}
 
-				data.write(chunk.getData());
-				data.close();
+	/* */
+	private static long chunkLength(PngChunk chunk) {
+		return (chunk == null) ? 0 : chunk.getLength() + 12;
+	}
 
-				PngChunk newChunk = new PngChunk(chunk.getType(), bytes.toByteArray());
-				result.addChunk(newChunk);
+	/* The compressed length of the image's data, over all its image data chunks */
+	private static long imageDataLength(PngImage image) {
+		long length = 0;
+		for (PngChunk chunk : image.getChunks()) {
+			if (PngChunk.IMAGE_DATA.equals(chunk.getTypeString())) {
+				length += chunk.getLength();
 			}
-			chunk = itChunks.hasNext() ? itChunks.next() : null;
 		}
+		return length;
+	}
 
-		// make sure we have the IEND chunk
-		final List<PngChunk> chunks = result.getChunks();
-		if (chunks != null && !PngChunk.IMAGE_TRAILER.equals(chunks.get(chunks.size() - 1).getTypeString())) {
-			result.addChunk(new PngChunk(PngChunk.IMAGE_TRAILER.getBytes(), new byte[] { }));
+	/* The image's compressed data as it is, joined from all its image data chunks */
+	private static byte[] imageData(PngImage image) {
+		final byte[] data = new byte[(int) imageDataLength(image)];
+		int offset = 0;
+		for (PngChunk chunk : image.getChunks()) {
+			if (PngChunk.IMAGE_DATA.equals(chunk.getTypeString())) {
+				System.arraycopy(chunk.getData(), 0, data, offset, chunk.getLength());
+				offset += chunk.getLength();
+			}
 		}
+		return data;
+	}
 
-		return result;
+	/* */
+	private static long length(List<byte[]> scanlines) {
+		long length = 0;
+		for (byte[] scanline : scanlines) {
+			length += scanline.length;
+		}
+		return length;
 	}
 
 	/* */
@@ -179,16 +761,121 @@ public class PngOptimizer extends PngProcessor {
 	}
 
 	/* */
-	private PngByteArrayOutputStream serialize(List<byte[]> scanlines) {
-		final int scanlineLength = scanlines.get(0).length;
-		final byte[] imageData = new byte[scanlineLength * scanlines.size()];
-		for (int i = 0; i < scanlines.size(); i++) {
-			final int offset = i * scanlineLength;
-			final byte[] scanline = scanlines.get(i);
-			System.arraycopy(scanline, 0, imageData, offset, scanlineLength);
+	private void serialize(List<byte[]> scanlines, PngImageBuffer imageData) {
+		for (byte[] scanline : scanlines) {
+			imageData.write(scanline, 0, scanline.length);
 		}
+	}
+
+	/*
+	 * The stages of an async file optimization, each one running on the
+	 * appropriate executor and then handing itself off to the next.
+	 */
+	private class FileOptimization implements Runnable {
+		private final InterruptibleFuture<OptimizerResult> future;
+		private final String fileName;
+		private final String outputFileName;
+		private final boolean removeGamma;
+		private final Integer compressionLevel;
+
+		private int stage = 0;
+		private long start;
+		private PngImage image;
+		private PngMetrics metrics;
+		private PngByteArrayOutputStream optimizedBytes;
+
+		FileOptimization(InterruptibleFuture<OptimizerResult> future, String fileName, String outputFileName,
+				boolean removeGamma, Integer compressionLevel) {
+			this.future = future;
+			this.fileName = fileName;
+			this.outputFileName = outputFileName;
+			this.removeGamma = removeGamma;
+			this.compressionLevel = compressionLevel;
+		}
+
+		@Override
+		public void run() {
+			if (!future.begin()) {
+				return;
+			}
 
-		return new PngByteArrayOutputStream(imageData);
+			final Executor next;
+			try {
+				switch (stage++) {
+					case 0:
+						start = System.currentTimeMillis();
+						image = new PngImage(fileName, log.getLogLevel());
+						metrics = parseMetrics(image);
+						next = getExecutor();
+						break;
+
+					case 1:
+						optimizedBytes = optimizeToBytes(image, removeGamma, compressionLevel, metrics);
+						next = getIoExecutor();
+						break;
+
+					default:
+						final OptimizerResult result = export(image, optimizedBytes, outputFileName, start, metrics);
+						results.add(result);
+						future.complete(result);
+						return;
+				}
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+				return;
+			} finally {
+				future.end();
+			}
+			next.execute(this);
+		}
+	}
+
+	/*
+	 * A future whose cancellation interrupts the thread running it, which
+	 * CompletableFuture on its own doesn't do.
+	 */
+	private static class InterruptibleFuture<T> extends CompletableFuture<T> {
+		private Thread worker;
+
+		void run(Callable<T> task) {
+			if (!begin()) {
+				return;
+			}
+			try {
+				complete(task.call());
+			} catch (Throwable e) {
+				completeExceptionally(e);
+			} finally {
+				end();
+			}
+		}
+
+		/* mark the calling thread as the one working on this future, unless it's already done */
+		synchronized boolean begin() {
+			if (isDone()) {
+				return false;
+			}
+			worker = Thread.currentThread();
+			return true;
+		}
+
+		/* */
+		synchronized void end() {
+			worker = null;
+			// don't leave an interrupt meant for this task on a pooled thread
+			Thread.interrupted();
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			final boolean cancelled = super.cancel(mayInterruptIfRunning);
+			synchronized (this) {
+				if (cancelled && worker != null) {
+					worker.interrupt();
+				}
+			}
+			return cancelled;
+		}
 	}
 
 	/**
@@ -202,17 +889,33 @@ public class PngOptimizer extends PngProcessor {
 		public long getOptimizedFileSize() { return optimizedFileSize; }
 
 		private String fileName;
+		public String getFileName() { return fileName; }
+
 		private long width;
+		public long getWidth() { return width; }
+
 		private long height;
+		public long getHeight() { return height; }
+
 		private String dataUri;
+		public String getDataUri() { return dataUri; }
+
+		private PngMetrics metrics;
+		public PngMetrics getMetrics() { return metrics; }
 
 		public OptimizerResult(String fileName, long originalFileSize, long optimizedFileSize, long width, long height, String dataUri) {
+			this(fileName, originalFileSize, optimizedFileSize, width, height, dataUri, new PngMetrics());
+		}
+
+		public OptimizerResult(String fileName, long originalFileSize, long optimizedFileSize, long width, long height, String dataUri,
+				PngMetrics metrics) {
 			this.originalFileSize = originalFileSize;
 			this.optimizedFileSize = optimizedFileSize;
 			this.fileName = fileName;
 			this.width = width;
 			this.height = height;
 			this.dataUri = dataUri;
+			this.metrics = metrics;
 		}
 	}
 
@@ -223,13 +926,73 @@ public class PngOptimizer extends PngProcessor {
 	 */
 	public long getTotalSavings() {
 		long totalSavings = 0;
-		for (OptimizerResult result : results) {
-			totalSavings += (result.getOriginalFileSize() - result.getOptimizedFileSize());
+		synchronized (results) {
+			for (OptimizerResult result : results) {
+				totalSavings += (result.getOriginalFileSize() - result.getOptimizedFileSize());
+			}
 		}
 
 		return totalSavings;
 	}
 
+	/**
+	 * Get the time spent in each stage over all images processed so far
+	 *
+	 * @return The nanoseconds spent in each stage that ran
+	 */
+	public Map<PngMetrics.Stage, Long> getTotalNanos() {
+		final Map<PngMetrics.Stage, Long> totals = new EnumMap<>(PngMetrics.Stage.class);
+		synchronized (results) {
+			for (OptimizerResult result : results) {
+				for (PngMetrics.Measurement measurement : result.getMetrics().getMeasurements()) {
+					final Long total = totals.get(measurement.getStage());
+					totals.put(measurement.getStage(), (total == null ? 0 : total) + measurement.getNanos());
+				}
+			}
+		}
+
+		return totals;
+	}
+
+	/**
+	 * Get how many of the images processed so far each filter type won for,
+	 * and each compression strategy and level, like "FILTERED level=9"
+	 *
+	 * @return The number of wins of each, most first
+	 */
+	public Map<String, Integer> getWinners() {
+		final Map<String, Integer> wins = new HashMap<>();
+		synchronized (results) {
+			for (OptimizerResult result : results) {
+				final PngMetrics metrics = result.getMetrics();
+				if (metrics.getWinningFilter() != null) {
+					countWin(wins, metrics.getWinningFilter());
+					countWin(wins, metrics.getWinningStrategy()
+							+ ((metrics.getWinningLevel() == null) ? "" : " level=" + metrics.getWinningLevel()));
+				}
+			}
+		}
+
+		final List<Entry<String, Integer>> sorted = new ArrayList<>(wins.entrySet());
+		Collections.sort(sorted, new Comparator<Entry<String, Integer>>() {
+			@Override
+			public int compare(Entry<String, Integer> a, Entry<String, Integer> b) {
+				return Integer.compare(b.getValue(), a.getValue());
+			}
+		});
+		final Map<String, Integer> result = new LinkedHashMap<>();
+		for (Entry<String, Integer> entry : sorted) {
+			result.put(entry.getKey(), entry.getValue());
+		}
+		return result;
+	}
+
+	/* */
+	private static void countWin(Map<String, Integer> wins, String winner) {
+		final Integer count = wins.get(winner);
+		wins.put(winner, (count == null) ? 1 : count + 1);
+	}
+
 	/**
 	 * Get the css containing data uris of the images processed by the optimizer
 	 */
@@ -237,29 +1000,31 @@ public class PngOptimizer extends PngProcessor {
 		final String path = (dir == null) ? "" : dir + File.separator;
 		final PrintWriter out = new PrintWriter(path + "DataUriCss.html");
 
-		try {
-			out.append("<html>\n<head>\n\t<style>");
+		synchronized (results) {
+			try {
+				out.append("<html>\n<head>\n\t<style>");
 
-			for (OptimizerResult result : results) {
-				final String name = result.fileName.replaceAll("[^A-Za-z0-9]", "_");
-				out.append('#').append(name).append(" {\n")
-						.append("\tbackground: url(\"data:image/png;base64,")
-						.append(result.dataUri).append("\") no-repeat left top;\n")
-						.append("\twidth: ").append(String.valueOf(result.width)).append("px;\n")
-						.append("\theight: ").append(String.valueOf(result.height)).append("px;\n")
-						.append("}\n");
-			}
-			out.append("\t</style>\n</head>\n<body>\n");
+				for (OptimizerResult result : results) {
+					final String name = result.fileName.replaceAll("[^A-Za-z0-9]", "_");
+					out.append('#').append(name).append(" {\n")
+							.append("\tbackground: url(\"data:image/png;base64,")
+							.append(result.dataUri).append("\") no-repeat left top;\n")
+							.append("\twidth: ").append(String.valueOf(result.width)).append("px;\n")
+							.append("\theight: ").append(String.valueOf(result.height)).append("px;\n")
+							.append("}\n");
+				}
+				out.append("\t</style>\n</head>\n<body>\n");
 
-			for (OptimizerResult result : results) {
-				final String name = result.fileName.replaceAll("[^A-Za-z0-9]", "_");
-				out.append("\t<div id=\"").append(name).append("\"></div>\n");
-			}
+				for (OptimizerResult result : results) {
+					final String name = result.fileName.replaceAll("[^A-Za-z0-9]", "_");
+					out.append("\t<div id=\"").append(name).append("\"></div>\n");
+				}
 
-			out.append("</body>\n</html>");
-		} finally {
-			if (out != null) {
-				out.close();
+				out.append("</body>\n</html>");
+			} finally {
+				if (out != null) {
+					out.close();
+				}
 			}
 		}
 	}
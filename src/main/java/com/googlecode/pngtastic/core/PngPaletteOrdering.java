@@ -0,0 +1,291 @@
+package com.googlecode.pngtastic.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A new order for the entries of an indexed image's palette. The order of
+ * the entries doesn't change what the image looks like, but it does change
+ * the index values that get filtered and deflated, and with them how well
+ * the image compresses. The candidates are:
+ * <ul>
+ * <li>by frequency, most used first, so the commonest indexes are small and alike</li>
+ * <li>by luminance, translucent entries first, so similar colors get nearby indexes</li>
+ * <li>by adjacency, a greedy tour through the colors that most often touch one another,
+ * so neighbouring pixels get nearby indexes and filter to small differences</li>
+ * </ul>
+ * Every candidate drops the entries no pixel uses. None is always best, so
+ * each is tried, and the bit depth is left as it is.
+ *
+ * @author rayvanderborght
+ */
+final class PngPaletteOrdering {
+
+	private static final byte[] TRANSPARENCY_TYPE = { 't', 'R', 'N', 'S' };
+
+	private final String name;
+	private final int bitDepth;
+	private final int width;
+	private final PngChunk palette;
+	private final PngChunk transparency;
+
+	/* the new index of each old index, for every byte value of packed indexes */
+	private final byte[] byteMap;
+
+	/** */
+	private PngPaletteOrdering(String name, int bitDepth, int width, PngChunk palette, PngChunk transparency, byte[] byteMap) {
+		this.name = name;
+		this.bitDepth = bitDepth;
+		this.width = width;
+		this.palette = palette;
+		this.transparency = transparency;
+		this.byteMap = byteMap;
+	}
+
+	/** @return The new palette */
+	public PngChunk getPalette() {
+		return this.palette;
+	}
+
+	/** @return The new transparency chunk, or null if every entry is opaque */
+	public PngChunk getTransparency() {
+		return this.transparency;
+	}
+
+	/** */
+	@Override
+	public String toString() {
+		return this.name;
+	}
+
+	/**
+	 * Work out the candidate orderings for an indexed image, from one pass
+	 * counting how often each index is used and how often each pair of
+	 * indexes are neighbours, to the left or above.
+	 *
+	 * @param scanlines The image's de-filtered, non-interlaced scanlines
+	 * @return The distinct candidates, or none if the image uses an index that is outside its palette
+	 */
+	static List<PngPaletteOrdering> candidates(List<byte[]> scanlines, int width, int bitDepth, PngChunk palette, PngChunk transparency) {
+		final int entries = palette.getLength() / 3;
+		final int mask = (1 << bitDepth) - 1;
+		final long[] counts = new long[entries];
+		final long[] adjacency = new long[entries * entries];
+
+		int[] above = new int[width];
+		int[] current = new int[width];
+		for (int y = 0; y < scanlines.size(); y++) {
+			final byte[] scanline = scanlines.get(y);
+			for (int x = 0; x < width; x++) {
+				final int bit = x * bitDepth;
+				final int index = ((scanline[1 + (bit >> 3)] & 0xff) >> (8 - bitDepth - (bit & 7))) & mask;
+				if (index >= entries) {
+					return Collections.emptyList();
+				}
+				current[x] = index;
+				counts[index]++;
+				if (x > 0 && current[x - 1] != index) {
+					adjacency[current[x - 1] * entries + index]++;
+					adjacency[index * entries + current[x - 1]]++;
+				}
+				if (y > 0 && above[x] != index) {
+					adjacency[above[x] * entries + index]++;
+					adjacency[index * entries + above[x]]++;
+				}
+			}
+			final int[] swap = above;
+			above = current;
+			current = swap;
+		}
+
+		final byte[] colors = palette.getData();
+		final byte[] alphas = (transparency == null) ? new byte[0] : transparency.getData();
+		final List<Integer> used = new ArrayList<>(entries);
+		for (int i = 0; i < entries; i++) {
+			if (counts[i] > 0) {
+				used.add(i);
+			}
+		}
+
+		final List<int[]> orders = new ArrayList<>(3);
+		final List<String> names = new ArrayList<>(3);
+		addOrder(orders, names, "frequency", byFrequency(used, counts));
+		addOrder(orders, names, "luminance", byLuminance(used, colors, alphas));
+		addOrder(orders, names, "adjacency", byAdjacency(used, counts, adjacency, entries));
+
+		final List<PngPaletteOrdering> candidates = new ArrayList<>(orders.size());
+		for (int c = 0; c < orders.size(); c++) {
+			candidates.add(create(names.get(c), orders.get(c), bitDepth, width, entries, colors, alphas));
+		}
+		return candidates;
+	}
+
+	/**
+	 * Re-index the image's scanlines for the new palette.
+	 *
+	 * @param scanlines The image's de-filtered, non-interlaced scanlines
+	 * @return New unfiltered scanlines, each starting with a zero filter type byte
+	 */
+	List<byte[]> reorder(List<byte[]> scanlines) {
+		// bits past the last pixel of a row are left zero
+		final int usedBits = (width * bitDepth) & 7;
+		final byte lastMask = (byte) ((usedBits == 0) ? 0xff : (0xff << (8 - usedBits)));
+
+		final List<byte[]> result = new ArrayList<>(scanlines.size());
+		for (byte[] scanline : scanlines) {
+			final byte[] reordered = new byte[scanline.length];
+			for (int i = 1; i < scanline.length; i++) {
+				reordered[i] = byteMap[scanline[i] & 0xff];
+			}
+			reordered[reordered.length - 1] &= lastMask;
+			result.add(reordered);
+		}
+		return result;
+	}
+
+	/* */
+	private static void addOrder(List<int[]> orders, List<String> names, String name, int[] order) {
+		for (int[] existing : orders) {
+			if (Arrays.equals(existing, order)) {
+				return;
+			}
+		}
+		orders.add(order);
+		names.add(name);
+	}
+
+	/* Build the candidate for an order, which lists the old index of each new entry */
+	private static PngPaletteOrdering create(String name, int[] order, int bitDepth, int width, int entries, byte[] colors, byte[] alphas) {
+		final int[] newIndexes = new int[entries];
+		final byte[] paletteData = new byte[order.length * 3];
+		final byte[] alphaData = new byte[order.length];
+		int alphaLength = 0;
+		for (int i = 0; i < order.length; i++) {
+			final int old = order[i];
+			newIndexes[old] = i;
+			System.arraycopy(colors, old * 3, paletteData, i * 3, 3);
+			alphaData[i] = (old < alphas.length) ? alphas[old] : (byte) 0xff;
+			if (alphaData[i] != (byte) 0xff) {
+				alphaLength = i + 1;
+			}
+		}
+
+		// every pixel packed into a byte is mapped at once
+		final int mask = (1 << bitDepth) - 1;
+		final byte[] byteMap = new byte[256];
+		for (int b = 0; b < 256; b++) {
+			int mapped = 0;
+			for (int shift = 8 - bitDepth; shift >= 0; shift -= bitDepth) {
+				final int index = (b >> shift) & mask;
+				mapped |= ((index < entries) ? newIndexes[index] : 0) << shift;
+			}
+			byteMap[b] = (byte) mapped;
+		}
+
+		final PngChunk palette = new PngChunk(PngChunk.PALETTE.getBytes(), paletteData);
+		final PngChunk transparency = (alphaLength == 0) ? null
+				: new PngChunk(TRANSPARENCY_TYPE.clone(), Arrays.copyOf(alphaData, alphaLength));
+		return new PngPaletteOrdering(name, bitDepth, width, palette, transparency, byteMap);
+	}
+
+	/* */
+	private static int[] byFrequency(List<Integer> used, final long[] counts) {
+		final List<Integer> sorted = new ArrayList<>(used);
+		Collections.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Long.compare(counts[b], counts[a]);
+			}
+		});
+		return toArray(sorted);
+	}
+
+	/* Translucent entries first, by alpha, then by luminance */
+	private static int[] byLuminance(List<Integer> used, final byte[] colors, final byte[] alphas) {
+		final List<Integer> sorted = new ArrayList<>(used);
+		Collections.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				final int byAlpha = Integer.compare(alpha(alphas, a), alpha(alphas, b));
+				return (byAlpha != 0) ? byAlpha : Integer.compare(luminance(colors, a), luminance(colors, b));
+			}
+		});
+		return toArray(sorted);
+	}
+
+	/*
+	 * A greedy tour through the colors, weighting each pair by how often they
+	 * are neighbours: starting from the commonest color, the unplaced color
+	 * most often next to either end of the tour so far is added to that end.
+	 */
+	private static int[] byAdjacency(List<Integer> used, long[] counts, long[] adjacency, int entries) {
+		final int size = used.size();
+		if (size == 0) {
+			return new int[0];
+		}
+
+		final int[] tour = new int[size * 2];
+		int head = size;
+		int tail = size;
+		final boolean[] placed = new boolean[entries];
+
+		int first = used.get(0);
+		for (int index : used) {
+			if (counts[index] > counts[first]) {
+				first = index;
+			}
+		}
+		tour[tail++] = first;
+		placed[first] = true;
+
+		for (int n = 1; n < size; n++) {
+			final int front = tour[head];
+			final int back = tour[tail - 1];
+			int best = -1;
+			long bestWeight = -1;
+			boolean atFront = false;
+			for (int index : used) {
+				if (placed[index]) {
+					continue;
+				}
+				final long toFront = adjacency[front * entries + index];
+				final long toBack = adjacency[back * entries + index];
+				final long weight = Math.max(toFront, toBack);
+				if (weight > bestWeight || (weight == bestWeight && counts[index] > counts[best])) {
+					best = index;
+					bestWeight = weight;
+					atFront = toFront > toBack;
+				}
+			}
+			placed[best] = true;
+			if (atFront) {
+				tour[--head] = best;
+			} else {
+				tour[tail++] = best;
+			}
+		}
+		return Arrays.copyOfRange(tour, head, tail);
+	}
+
+	/* */
+	private static int alpha(byte[] alphas, int index) {
+		return (index < alphas.length) ? alphas[index] & 0xff : 0xff;
+	}
+
+	/* Rec. 601 luma, scaled by 1000 */
+	private static int luminance(byte[] colors, int index) {
+		return 299 * (colors[index * 3] & 0xff) + 587 * (colors[index * 3 + 1] & 0xff) + 114 * (colors[index * 3 + 2] & 0xff);
+	}
+
+	/* */
+	private static int[] toArray(List<Integer> list) {
+		final int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++) {
+			array[i] = list.get(i);
+		}
+		return array;
+	}
+}
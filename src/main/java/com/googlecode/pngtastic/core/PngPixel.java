@@ -50,10 +50,11 @@ public class PngPixel {
 	}
 
 	public double rgba16Distance(PngPixel other) {
-		int rdiff = this.red - other.red;
-		int gdiff = this.green - other.green;
-		int bdiff = this.blue - other.blue;
+		long rdiff = this.red - other.red;
+		long gdiff = this.green - other.green;
+		long bdiff = this.blue - other.blue;
 
+		// squares of 16 bit differences overflow an int
 		long result = (rdiff * rdiff) + (gdiff * gdiff) + (bdiff * bdiff);
 
 		// max is 65535^2 * 3
@@ -116,6 +117,18 @@ public class PngPixel {
 		return String.format("%02X%02X%02X.%02X@%d,%d:%d", red, green, blue, alpha, x, y, freq);
 	}
 
+	public int getRed() {
+		return red;
+	}
+
+	public int getGreen() {
+		return green;
+	}
+
+	public int getBlue() {
+		return blue;
+	}
+
 	public int getAlpha() {
 		return alpha;
 	}
@@ -0,0 +1,37 @@
+package com.googlecode.pngtastic.core;
+
+/**
+ * Pixel layouts that PngReader can decode into.
+ * <pre>
+ * Format				Bytes per pixel	Layout
+ * RGBA8				4				R, G, B, A
+ * BGRA8				4				B, G, R, A
+ * RGBA8_PREMULTIPLIED	4				R, G, B, A with the colour samples multiplied by alpha
+ * BGRA8_PREMULTIPLIED	4				B, G, R, A with the colour samples multiplied by alpha
+ * RGBA16				8				R, G, B, A as big endian 16 bit samples
+ * </pre>
+ * Images with fewer than 16 bits per sample are widened to RGBA16 by
+ * repeating each byte, so 0xff becomes 0xffff. Decoding to int packed ARGB
+ * is done with PngReader.readARGB.
+ *
+ * @author rayvanderborght
+ */
+public enum PngPixelFormat {
+	RGBA8(4),
+	BGRA8(4),
+	RGBA8_PREMULTIPLIED(4),
+	BGRA8_PREMULTIPLIED(4),
+	RGBA16(8);
+
+	private final int bytesPerPixel;
+
+	/** */
+	private PngPixelFormat(int bytesPerPixel) {
+		this.bytesPerPixel = bytesPerPixel;
+	}
+
+	/** */
+	public int getBytesPerPixel() {
+		return this.bytesPerPixel;
+	}
+}
@@ -1,19 +1,25 @@
 package com.googlecode.pngtastic.core;
 
 import com.googlecode.pngtastic.core.processing.PngByteArrayOutputStream;
+import com.googlecode.pngtastic.core.processing.PngCodecPool;
 import com.googlecode.pngtastic.core.processing.PngCompressionHandler;
+import com.googlecode.pngtastic.core.processing.PngDirectByteBuffer;
 import com.googlecode.pngtastic.core.processing.PngFilterHandler;
+import com.googlecode.pngtastic.core.processing.PngImageBuffer;
 import com.googlecode.pngtastic.core.processing.PngInterlaceHandler;
 import com.googlecode.pngtastic.core.processing.PngtasticCompressionHandler;
 import com.googlecode.pngtastic.core.processing.PngtasticFilterHandler;
 import com.googlecode.pngtastic.core.processing.PngtasticInterlaceHandler;
 
 import java.io.ByteArrayInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 /**
@@ -29,6 +35,10 @@ public abstract class PngProcessor {
 
 	protected PngCompressionHandler pngCompressionHandler;
 
+	/** image data buffers of at least this many bytes are kept off-heap; negative keeps everything on-heap */
+	private int offHeapThreshold = -1;
+	public void setOffHeapThreshold(int offHeapThreshold) { this.offHeapThreshold = offHeapThreshold; }
+
 	protected PngProcessor(String logLevel) {
 		this.log = new Logger(logLevel);
 		this.pngFilterHandler = new PngtasticFilterHandler(log);
@@ -37,20 +47,56 @@ public abstract class PngProcessor {
 
 	}
 
-	protected PngByteArrayOutputStream getInflatedImageData(PngChunk chunk, Iterator<PngChunk> itChunks)
+	/**
+	 * Allocate a buffer for image data, off-heap if it's at least as large
+	 * as the off-heap threshold. Callers should release it when done.
+	 */
+	protected PngImageBuffer allocateImageBuffer(int size) {
+		return (offHeapThreshold >= 0 && size >= offHeapThreshold)
+				? new PngDirectByteBuffer(size)
+				: new PngByteArrayOutputStream(size);
+	}
+
+	/**
+	 * Inflate the image data chunks starting at the given chunk into a buffer
+	 * sized from the image header. The chunks are fed to the inflater as they
+	 * are, without first gathering the compressed data into one array.
+	 */
+	protected PngImageBuffer getInflatedImageData(PngImage image, PngChunk chunk, Iterator<PngChunk> itChunks)
 			throws IOException {
 
-		final PngByteArrayOutputStream imageBytes = new PngByteArrayOutputStream(chunk == null ? 0 : chunk.getLength());
-		try (final DataOutputStream imageData = new DataOutputStream(imageBytes)) {
+		final int sampleBitCount = image.getSampleBitCount();
+		final int inflatedLength = (image.getInterlace() == 1)
+				? PngtasticInterlaceHandler.getInterlacedLength((int) image.getWidth(), (int) image.getHeight(), sampleBitCount)
+				: ((int) (Math.ceil(image.getWidth() * sampleBitCount / 8F)) + 1) * (int) image.getHeight();
+
+		final PngImageBuffer imageData = allocateImageBuffer(inflatedLength);
+		final PngCodecPool pool = PngCodecPool.get();
+		final Inflater inflater = pool.inflater();
+		try {
+			final byte[] block = pool.block();
 			while (chunk != null) {
 				if (PngChunk.IMAGE_DATA.equals(chunk.getTypeString())) {
-					imageData.write(chunk.getData());
+					inflater.setInput(chunk.getData());
+					int readLength;
+					while ((readLength = inflater.inflate(block)) > 0) {
+						imageData.write(block, 0, readLength);
+					}
 				} else {
 					break;
 				}
 				chunk = itChunks.hasNext() ? itChunks.next() : null;
 			}
-			return inflate(imageBytes);
+			if (!inflater.finished()) {
+				imageData.release();
+				throw new EOFException("Unexpected end of ZLIB input stream");
+			}
+			return imageData;
+		} catch (DataFormatException e) {
+			imageData.release();
+			throw new IOException(e.getMessage(), e);
+		} finally {
+			pool.trim();
 		}
 	}
 
@@ -61,27 +107,32 @@ public abstract class PngProcessor {
 	 * @return A byte array containing the uncompressed data
 	 */
 	public PngByteArrayOutputStream inflate(PngByteArrayOutputStream bytes) throws IOException {
-		try (final PngByteArrayOutputStream inflatedOut = new PngByteArrayOutputStream();
-		     final InflaterInputStream inflater = new InflaterInputStream(new ByteArrayInputStream(bytes.get(), 0, bytes.len()))) {
+		final PngCodecPool pool = PngCodecPool.get();
+		try (final PngByteArrayOutputStream inflatedOut = new PngByteArrayOutputStream(bytes.len() * 2);
+		     final InflaterInputStream inflater = new InflaterInputStream(new ByteArrayInputStream(bytes.get(), 0, bytes.len()), pool.inflater())) {
 
 			int readLength;
-			final byte[] block = new byte[8192];
+			final byte[] block = pool.block();
 
 			while ((readLength = inflater.read(block)) != -1) {
 				inflatedOut.write(block, 0, readLength);
 			}
 			return inflatedOut;
+		} finally {
+			pool.trim();
 		}
 	}
 
-	protected List<byte[]> getScanlines(PngByteArrayOutputStream inflatedImageData, int sampleBitCount, int rowLength, long height) {
+	protected List<byte[]> getScanlines(PngImageBuffer inflatedImageData, int sampleBitCount, int rowLength, long height) {
 		final List<byte[]> rows = new ArrayList<>(Math.max((int) height, 0));
+		final ByteBuffer data = inflatedImageData.getByteBuffer();
 		byte[] previousRow = new byte[rowLength];
 
 		for (int i = 0; i < height; i++) {
 			final int offset = i * rowLength;
 			final byte[] row = new byte[rowLength];
-			System.arraycopy(inflatedImageData.get(), offset, row, 0, rowLength);
+			data.position(offset);
+			data.get(row, 0, rowLength);
 			try {
 				pngFilterHandler.deFilter(row, previousRow, sampleBitCount);
 				rows.add(row);
@@ -94,6 +145,16 @@ public abstract class PngProcessor {
 	}
 
 	protected PngChunk processHeadChunks(PngImage result, boolean removeGamma, Iterator<PngChunk> itChunks) throws IOException {
+		return processHeadChunks(result, PngChunkPolicy.required(removeGamma), itChunks);
+	}
+
+	/**
+	 * Add the chunks ahead of the image data that the policy keeps to the
+	 * result, and return the first image data chunk. Chunks are shared with
+	 * the result rather than copied, except for the header, which is marked
+	 * as not interlaced.
+	 */
+	protected PngChunk processHeadChunks(PngImage result, PngChunkPolicy policy, Iterator<PngChunk> itChunks) throws IOException {
 		PngChunk chunk = null;
 		while (itChunks.hasNext()) {
 			chunk = itChunks.next();
@@ -101,21 +162,32 @@ public abstract class PngProcessor {
 				break;
 			}
 
-			if (result != null && chunk.isRequired()) {
-				if (removeGamma && PngChunk.IMAGE_GAMA.equalsIgnoreCase(chunk.getTypeString())) {
-					continue;
-				}
-
-				PngChunk newChunk = new PngChunk(chunk.getType(), chunk.getData().clone());
+			if (result != null && policy.keeps(chunk)) {
 				if (PngChunk.IMAGE_HEADER.equals(chunk.getTypeString())) {
-					newChunk.setInterlace((byte) 0);
+					final PngChunk header = new PngChunk(chunk.getType(), chunk.getData().clone());
+					header.setInterlace((byte) 0);
+					result.addChunk(header);
+				} else {
+					result.addChunk(chunk);
 				}
-				result.addChunk(newChunk);
 			}
 		}
 		return chunk;
 	}
 
+	/**
+	 * Reject an image with a critical chunk this library doesn't know, like
+	 * CgBI, since its image data can't be assumed to be standard and can't be
+	 * re-encoded, nor the chunk copied alongside data that was re-encoded.
+	 */
+	protected void checkCriticalChunks(PngImage image) {
+		for (PngChunk chunk : image.getChunks()) {
+			if (PngChunkPolicy.isCritical(chunk.getType()) && !chunk.isCritical()) {
+				throw new PngException(String.format("Unknown critical chunk %s in %s", chunk.getTypeString(), image.getFileName()));
+			}
+		}
+	}
+
 	/* */
 	@SuppressWarnings("unused")
 	protected void printData(byte[] inflatedImageData) {
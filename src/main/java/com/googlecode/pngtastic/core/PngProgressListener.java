@@ -0,0 +1,25 @@
+package com.googlecode.pngtastic.core;
+
+import java.io.IOException;
+
+/**
+ * Receives successively sharper versions of an image as PngReader decodes
+ * its Adam7 passes.
+ *
+ * @author rayvanderborght
+ */
+public interface PngProgressListener {
+
+	/**
+	 * Called after passes 1, 3 and 5 of an interlaced image with a full size
+	 * preview, each known pixel repeated over the 8x8, 4x4 or 2x2 block it
+	 * stands for, then once more with the finished image after pass 7. Non
+	 * interlaced images only get the final call.
+	 *
+	 * @param passes The number of passes decoded so far
+	 * @param pixels The image, one row after another in the pixel format
+	 *        asked for; previews share one array that is overwritten by the
+	 *        next preview, so they must be copied to be kept
+	 */
+	public void progress(int passes, byte[] pixels) throws IOException;
+}
@@ -1,12 +1,12 @@
 package com.googlecode.pngtastic.core;
 
-import com.googlecode.pngtastic.core.processing.PngByteArrayOutputStream;
+import com.googlecode.pngtastic.core.processing.PngImageBuffer;
 import com.googlecode.pngtastic.core.processing.PngInterlaceHandler;
 import com.googlecode.pngtastic.core.processing.PngtasticInterlaceHandler;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
 import java.util.Iterator;
 import java.util.List;
 
@@ -36,234 +36,308 @@ public class PngReader extends PngProcessor {
 
 	/** */
 	public byte[] readRGBA8(final PngImage image) throws IOException {
-		log.debug("=== READING ===");
+		final int width = (int) image.getWidth();
+		final byte[] rgba = new byte[width * 4 * (int) image.getHeight()];
+		read(image, PngPixelFormat.RGBA8, rgba, 0, width * 4);
+
+		return rgba;
+	}
+
+	/**
+	 * Decode the image into a caller supplied array, one row every stride
+	 * bytes starting at offset, in the given pixel format. Bytes between the
+	 * end of one row and the start of the next are left untouched.
+	 */
+	public void read(final PngImage image, final PngPixelFormat format, final byte[] dest, final int offset, final int stride) throws IOException {
+		final int width = (int) image.getWidth();
+		checkBounds(image, format.getBytesPerPixel(), offset, stride, dest.length);
+
+		final List<byte[]> rows = readScanlines(image);
+		final PngRowConverter converter = PngRowConverter.forImage(image);
+		for (int y = 0; y < rows.size(); y++) {
+			converter.convert(rows.get(y), 0, width, format, dest, offset + y * stride);
+		}
+	}
+
+	/**
+	 * Decode the image into a caller supplied buffer, one row every stride
+	 * bytes starting at the buffer's position, in the given pixel format.
+	 * The buffer's position and limit are left as they were. Direct buffers
+	 * are filled a row at a time through a single row sized scratch array.
+	 */
+	public void read(final PngImage image, final PngPixelFormat format, final ByteBuffer dest, final int stride) throws IOException {
+		if (dest.hasArray()) {
+			read(image, format, dest.array(), dest.arrayOffset() + dest.position(), stride);
+			return;
+		}
+
+		final int width = (int) image.getWidth();
+		final int rowLength = width * format.getBytesPerPixel();
+		checkBounds(image, format.getBytesPerPixel(), 0, stride, dest.remaining());
+
+		final List<byte[]> rows = readScanlines(image);
+		final PngRowConverter converter = PngRowConverter.forImage(image);
+		final byte[] scratch = new byte[rowLength];
+		final ByteBuffer out = dest.duplicate();
+		for (int y = 0; y < rows.size(); y++) {
+			converter.convert(rows.get(y), 0, width, format, scratch, 0);
+			out.position(dest.position() + y * stride);
+			out.put(scratch, 0, rowLength);
+		}
+	}
+
+	/**
+	 * Decode the image into a caller supplied array of int packed ARGB
+	 * pixels (alpha in the high byte, as used by TYPE_INT_ARGB images), one
+	 * row every stride ints starting at offset.
+	 */
+	public void readARGB(final PngImage image, final int[] dest, final int offset, final int stride, final boolean premultiplied) throws IOException {
+		final int width = (int) image.getWidth();
+		checkBounds(image, 1, offset, stride, dest.length);
+
+		final List<byte[]> rows = readScanlines(image);
+		final PngRowConverter converter = PngRowConverter.forImage(image);
+		final PngPixelFormat format = (premultiplied) ? PngPixelFormat.RGBA8_PREMULTIPLIED : PngPixelFormat.RGBA8;
+		final byte[] scratch = new byte[width * 4];
+		for (int y = 0; y < rows.size(); y++) {
+			converter.convert(rows.get(y), 0, width, format, scratch, 0);
+			packARGB(scratch, width, dest, offset + y * stride);
+		}
+	}
+
+	/**
+	 * Decode the image into a caller supplied buffer of int packed ARGB
+	 * pixels, one row every stride ints starting at the buffer's position.
+	 * The buffer's position and limit are left as they were.
+	 */
+	public void readARGB(final PngImage image, final IntBuffer dest, final int stride, final boolean premultiplied) throws IOException {
+		if (dest.hasArray()) {
+			readARGB(image, dest.array(), dest.arrayOffset() + dest.position(), stride, premultiplied);
+			return;
+		}
 
-		// FIXME: support low bit depth interlaced images
-		if (image.getInterlace() == 1 && image.getSampleBitCount() < 8) {
-			throw new PngException("not supported");
+		final int width = (int) image.getWidth();
+		checkBounds(image, 1, 0, stride, dest.remaining());
+
+		final List<byte[]> rows = readScanlines(image);
+		final PngRowConverter converter = PngRowConverter.forImage(image);
+		final PngPixelFormat format = (premultiplied) ? PngPixelFormat.RGBA8_PREMULTIPLIED : PngPixelFormat.RGBA8;
+		final byte[] scratch = new byte[width * 4];
+		final int[] packed = new int[width];
+		final IntBuffer out = dest.duplicate();
+		for (int y = 0; y < rows.size(); y++) {
+			converter.convert(rows.get(y), 0, width, format, scratch, 0);
+			packARGB(scratch, width, packed, 0);
+			out.position(dest.position() + y * stride);
+			out.put(packed, 0, width);
+		}
+	}
+
+	/**
+	 * Open a decoder that hands out the image's rows one at a time, in the
+	 * given pixel format, or as de-filtered scanlines if the format is null.
+	 */
+	public PngRowDecoder decodeRows(final PngImage image, final PngPixelFormat format) throws IOException {
+		if (image.getInterlace() == 1) {
+			return new PngRowDecoder(image, format, readScanlines(image));
 		}
 
 		final Iterator<PngChunk> itChunks = image.getChunks().iterator();
 		final PngChunk chunk = processHeadChunks(null, false, itChunks);
 
-		// collect image data chunks
-		final PngByteArrayOutputStream inflatedImageData = getInflatedImageData(chunk, itChunks);
+		return new PngRowDecoder(image, format, pngFilterHandler, chunk, itChunks);
+	}
 
-		final long width = image.getWidth();
-		final long height = image.getHeight();
-		final int scanlineLength = (int) (Math.ceil(width * image.getSampleBitCount() / 8F)) + 1;
+	/**
+	 * Open a decoder for the given rectangle of the image, shrunk by an
+	 * integer scale factor with each scale x scale block of pixels averaged
+	 * into one. Rows outside the rectangle are never converted, and rows
+	 * below it are never inflated.
+	 * @see PngRowDecoder
+	 */
+	public PngRowDecoder decodeRows(final PngImage image, final PngPixelFormat format,
+			final int x, final int y, final int width, final int height, final int scale) throws IOException {
 
-		final List<byte[]> originalScanlines = (image.getInterlace() == 1)
-				? pngInterlaceHandler.deInterlace((int) width, (int) height, image.getSampleBitCount(), inflatedImageData)
-				: getScanlines(inflatedImageData, image.getSampleBitCount(), scanlineLength, height);
+		if (format == null) {
+			throw new IllegalArgumentException("A pixel format is needed to decode part of an image");
+		}
+		if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + (long) width > image.getWidth() || y + (long) height > image.getHeight()) {
+			throw new IllegalArgumentException("Region " + width + "x" + height + "+" + x + "+" + y
+					+ " is not inside the " + image.getWidth() + "x" + image.getHeight() + " image");
+		}
+		if (scale < 1) {
+			throw new IllegalArgumentException("Scale must be at least 1: " + scale);
+		}
 
-		final byte[] rgba = getRGBA8(image, originalScanlines);
+		final PngRowDecoder decoder = decodeRows(image, format);
+		decoder.setRegion(x, y, width, height, scale);
 
-		return rgba;
+		return decoder;
 	}
 
-	private byte[] getRGBA8(final PngImage original, final List<byte[]> rows) throws IOException {
-		final PngImageType imageType = PngImageType.forColorType(original.getColorType());
-		final int sampleSize = original.getSampleBitCount();
-
-		final int perRow = ((rows.get(0).length - 1) * 8) / sampleSize;
-		byte[] result = new byte[perRow * 4 * rows.size()];
-		int y = 0;
-		for (byte[] row : rows) {
-			final int sampleCount = ((row.length - 1) * 8) / sampleSize;
-
-			final byte[] normalized = normalize(row, original.getBitDepth());
-			final ByteArrayInputStream ins = new ByteArrayInputStream(normalized);
-			final DataInputStream dis = new DataInputStream(ins);
-
-			for (int x = 0; x < sampleCount; x++) {
-				switch (imageType) {
-					case INDEXED_COLOR: {
-						final int offset = dis.readUnsignedByte() * 3;
-						final int r = original.getPalette().getUnsignedByte(offset);
-						final int g = original.getPalette().getUnsignedByte(offset + 1);
-						final int b = original.getPalette().getUnsignedByte(offset + 2);
-
-						final int index = (y * perRow + x) * 4;
-						result[index] = (byte) r;
-						result[index + 1] = (byte) g;
-						result[index + 2] = (byte) b;
-						result[index + 3] = (byte) 255;
-						break;
-					}
+	/**
+	 * Decode the given rectangle of the image, shrunk by an integer scale
+	 * factor, into a new array of ceil(width / scale) x ceil(height / scale)
+	 * pixels. Suited to thumbnails of large images, since neither the full
+	 * size pixels nor the full set of scanlines are ever held in memory.
+	 */
+	public byte[] read(final PngImage image, final PngPixelFormat format,
+			final int x, final int y, final int width, final int height, final int scale) throws IOException {
 
-					case GREYSCALE: {
-						if (original.getBitDepth() == 16) {
-							final int p = ((dis.readUnsignedByte() << 8) + dis.readUnsignedByte()) * 255;
-							final int v = Integer.divideUnsigned(p, 65535) + (Integer.remainderUnsigned(p, 65535) > 32767 ? 1 : 0);
-							final int index = (y * perRow + x) * 4;
-							result[index]     = (byte) v;
-							result[index + 1] = (byte) v;
-							result[index + 2] = (byte) v;
-							result[index + 3] = (byte) 255;
-						} else {
-							final int p = dis.readUnsignedByte() * 255;
-							final int max = (int) (Math.pow(2, original.getBitDepth()) - 1);
-							final int v = Integer.divideUnsigned(p, max) + (Integer.remainderUnsigned(p, max) > (max / 2) ? 1 : 0);
-							final int index = (y * perRow + x) * 4;
-							result[index] = (byte) v;
-							result[index + 1] = (byte) v;
-							result[index + 2] = (byte) v;
-							result[index + 3] = (byte) 255;
-						}
-						break;
-					}
+		try (final PngRowDecoder decoder = decodeRows(image, format, x, y, width, height, scale)) {
+			final int rowLength = decoder.getWidth() * format.getBytesPerPixel();
+			final byte[] result = new byte[rowLength * decoder.getHeight()];
+			for (int offset = 0; decoder.hasNext(); offset += rowLength) {
+				System.arraycopy(decoder.readRow(), 0, result, offset, rowLength);
+			}
+			return result;
+		}
+	}
 
-					case GREYSCALE_ALPHA: {
-						if (original.getBitDepth() == 8) {
-							final int p = dis.readUnsignedByte() * 255;
-							final int a = dis.readUnsignedByte() * 255;
-							final int max = (int) (Math.pow(2, original.getBitDepth()) - 1);
-							final int v = Integer.divideUnsigned(p, max) + (Integer.remainderUnsigned(p, max) > max / 2 ? 1 : 0);
-							final int index = (y * perRow + x) * 4;
-							result[index] = (byte) v;
-							result[index + 1] = (byte) v;
-							result[index + 2] = (byte) v;
-							result[index + 3] = (byte) (Integer.divideUnsigned(a, max) + (Integer.remainderUnsigned(a, max) > max / 2 ? 1 : 0));
-						} else if (original.getBitDepth() == 16) {
-							final int p = ((dis.readUnsignedByte() << 8) + dis.readUnsignedByte()) * 255;
-							final int a = ((dis.readUnsignedByte() << 8) + dis.readUnsignedByte()) * 255;
-							final int v = Integer.divideUnsigned(p, 65535) + (Integer.remainderUnsigned(p, 65535) > 32767 ? 1 : 0);
-							final int index = (y * perRow + x) * 4;
-							result[index]     = (byte) v;
-							result[index + 1] = (byte) v;
-							result[index + 2] = (byte) v;
-							result[index + 3] = (byte) (Integer.divideUnsigned(a, 65535) + (Integer.remainderUnsigned(a, 65535) > 32767 ? 1 : 0));
-						}
-						break;
-					}
+	/**
+	 * Decode the image a row at a time, passing each row to the listener in
+	 * the given pixel format, or as de-filtered scanlines if the format is null.
+	 * @see PngRowDecoder
+	 */
+	public void read(final PngImage image, final PngPixelFormat format, final PngRowListener listener) throws IOException {
+		try (final PngRowDecoder decoder = decodeRows(image, format)) {
+			while (decoder.hasNext()) {
+				final int y = decoder.getY();
+				listener.row(y, decoder.readRow());
+			}
+		}
+	}
+
+	/**
+	 * Decode the image pass by pass, handing the listener a pixel replicated
+	 * preview after Adam7 passes 1, 3 and 5, and the finished image at the
+	 * end. Image data is only inflated as far as the pass being decoded, so
+	 * the first preview comes after roughly 1/64th of the work.
+	 *
+	 * @return The decoded image, the same array as passed in the final call
+	 * @see PngProgressListener
+	 */
+	public byte[] readProgressive(final PngImage image, final PngPixelFormat format, final PngProgressListener listener) throws IOException {
+		final int width = (int) image.getWidth();
+		final int height = (int) image.getHeight();
+		final int pixelSize = format.getBytesPerPixel();
+		final byte[] pixels = new byte[width * height * pixelSize];
+
+		if (image.getInterlace() != 1) {
+			read(image, format, pixels, 0, width * pixelSize);
+			listener.progress(7, pixels);
+			return pixels;
+		}
+
+		final Iterator<PngChunk> itChunks = image.getChunks().iterator();
+		final PngChunk chunk = processHeadChunks(null, false, itChunks);
+		final PngRowConverter converter = PngRowConverter.forImage(image);
+		final int sampleBitCount = image.getSampleBitCount();
+		byte[] preview = null;
+
+		try (final PngImageDataInflater inflater = new PngImageDataInflater(chunk, itChunks)) {
+			for (int pass = 0; pass < 7; pass++) {
+				final int subImageRows = PngtasticInterlaceHandler.getPassRows(pass, height);
+				final int subImageCols = PngtasticInterlaceHandler.getPassCols(pass, width);
+				if (subImageRows > 0 && subImageCols > 0) {
+					final int rowLength = (int) (((long) subImageCols * sampleBitCount + 7) / 8) + 1;
+					final byte[] converted = new byte[subImageCols * pixelSize];
+					byte[] row = new byte[rowLength];
+					byte[] previousRow = new byte[rowLength];
 
-					case TRUECOLOR: {
-						if (original.getBitDepth() == 8) {
-							final int r = dis.readUnsignedByte();
-							final int g = dis.readUnsignedByte();
-							final int b = dis.readUnsignedByte();
-							final int index = (y * perRow + x) * 4;
-							result[index] = (byte) r;
-							result[index + 1] = (byte) g;
-							result[index + 2] = (byte) b;
-							result[index + 3] = (byte) 255;
-						} else if (original.getBitDepth() == 16) {
-							final int r = ((dis.readUnsignedByte() << 8) + dis.readUnsignedByte()) * 255;
-							final int g = ((dis.readUnsignedByte() << 8) + dis.readUnsignedByte()) * 255;
-							final int b = ((dis.readUnsignedByte() << 8) + dis.readUnsignedByte()) * 255;
-							final int index = (y * perRow + x) * 4;
-							result[index]     = (byte) (Integer.divideUnsigned(r, 65535) + (Integer.remainderUnsigned(r, 65535) > 32767 ? 1 : 0));
-							result[index + 1] = (byte) (Integer.divideUnsigned(g, 65535) + (Integer.remainderUnsigned(g, 65535) > 32767 ? 1 : 0));
-							result[index + 2] = (byte) (Integer.divideUnsigned(b, 65535) + (Integer.remainderUnsigned(b, 65535) > 32767 ? 1 : 0));
-							result[index + 3] = (byte) 255;
+					for (int i = 0; i < subImageRows; i++) {
+						inflater.inflate(row, 0, rowLength);
+						pngFilterHandler.deFilter(row, previousRow, sampleBitCount);
+						converter.convert(row, 0, subImageCols, format, converted, 0);
+
+						final int rowOffset = PngtasticInterlaceHandler.getImageY(pass, i) * width;
+						for (int col = 0, c = 0; col < subImageCols; col++) {
+							int p = (rowOffset + PngtasticInterlaceHandler.getImageX(pass, col)) * pixelSize;
+							for (int b = 0; b < pixelSize; b++) {
+								pixels[p++] = converted[c++];
+							}
 						}
-						break;
+
+						final byte[] swap = previousRow;
+						previousRow = row;
+						row = swap;
 					}
+				}
 
-					case TRUECOLOR_ALPHA: {
-						if (original.getBitDepth() == 16) {
-							final int r = ((dis.readUnsignedByte() << 8) + dis.readUnsignedByte()) * 255;
-							final int g = ((dis.readUnsignedByte() << 8) + dis.readUnsignedByte()) * 255;
-							final int b = ((dis.readUnsignedByte() << 8) + dis.readUnsignedByte()) * 255;
-							final int a = ((dis.readUnsignedByte() << 8) + dis.readUnsignedByte()) * 255;
-							final int index = (y * perRow + x) * 4;
-							result[index]     = (byte) (Integer.divideUnsigned(r, 65535) + (Integer.remainderUnsigned(r, 65535) > 32767 ? 1 : 0));
-							result[index + 1] = (byte) (Integer.divideUnsigned(g, 65535) + (Integer.remainderUnsigned(g, 65535) > 32767 ? 1 : 0));
-							result[index + 2] = (byte) (Integer.divideUnsigned(b, 65535) + (Integer.remainderUnsigned(b, 65535) > 32767 ? 1 : 0));
-							result[index + 3] = (byte) (Integer.divideUnsigned(a, 65535) + (Integer.remainderUnsigned(a, 65535) > 32767 ? 1 : 0));
-						} else {
-							final int r = dis.readUnsignedByte();
-							final int g = dis.readUnsignedByte();
-							final int b = dis.readUnsignedByte();
-							final int a = dis.readUnsignedByte();
-							final int index = (y * perRow + x) * 4;
-							result[index] = (byte) r;
-							result[index + 1] = (byte) g;
-							result[index + 2] = (byte) b;
-							result[index + 3] = (byte) a;
-						}
-						break;
+				if (pass == 0 || pass == 2 || pass == 4) {
+					if (preview == null) {
+						preview = new byte[pixels.length];
 					}
+					// after passes 1, 3 and 5 every pixel on an 8, 4 or 2 pixel grid is known
+					replicate(pixels, preview, width, height, pixelSize, 7 >> (pass / 2));
+					listener.progress(pass + 1, preview);
+				}
+			}
+		}
+		listener.progress(7, pixels);
+
+		return pixels;
+	}
 
-					default:
-						throw new IllegalArgumentException();
+	/* Fill the preview with the known pixels, each repeated over the block up to the next grid line */
+	private static void replicate(byte[] pixels, byte[] preview, int width, int height, int pixelSize, int mask) {
+		final int rowLength = width * pixelSize;
+		for (int y = 0; y < height; y++) {
+			final int offset = y * rowLength;
+			if ((y & mask) != 0) {
+				System.arraycopy(preview, offset - rowLength, preview, offset, rowLength);
+				continue;
+			}
+			for (int x = 0, p = offset; x < width; x++) {
+				final int source = offset + (x & ~mask) * pixelSize;
+				for (int b = 0; b < pixelSize; b++) {
+					preview[p++] = pixels[source + b];
 				}
 			}
-			y++;
 		}
+	}
+
+	/* */
+	private List<byte[]> readScanlines(final PngImage image) throws IOException {
+		log.debug("=== READING ===");
+
+		final Iterator<PngChunk> itChunks = image.getChunks().iterator();
+		final PngChunk chunk = processHeadChunks(null, false, itChunks);
+
+		// collect image data chunks
+		final PngImageBuffer inflatedImageData = getInflatedImageData(image, chunk, itChunks);
+
+		final long width = image.getWidth();
+		final long height = image.getHeight();
+		final int scanlineLength = (int) (Math.ceil(width * image.getSampleBitCount() / 8F)) + 1;
+
+		final List<byte[]> originalScanlines = (image.getInterlace() == 1)
+				? pngInterlaceHandler.deInterlace((int) width, (int) height, image.getSampleBitCount(), inflatedImageData)
+				: getScanlines(inflatedImageData, image.getSampleBitCount(), scanlineLength, height);
+		inflatedImageData.release();
 
-		return result;
+		return originalScanlines;
 	}
 
-	/**
-	 * normalize bit depths less than 8 to all fit into one byte per sample
+	/*
+	 * Make sure every row fits before decoding anything, so a bad stride or
+	 * undersized destination fails up front instead of part way through.
 	 */
-	private byte[] normalize(final byte[] imageData, final int bitDepth) {
-		byte[] scaled;
-
-		int length = imageData.length - 1; // remove filter byte
-		switch (bitDepth) {
-			default:
-				throw new PngException("unrecognised depth");
-			case 16:
-			case 8:
-				scaled = new byte[length];
-				System.arraycopy(imageData, 1, scaled, 0, length);
-				return scaled;
-			case 4:
-				scaled = new byte[length * 2];
-				break;
-			case 2:
-				scaled = new byte[length * 4];
-				break;
-			case 1:
-				scaled = new byte[length * 8];
-				break;
+	private static void checkBounds(PngImage image, int unitsPerPixel, int offset, int stride, int capacity) {
+		final long width = image.getWidth();
+		final long height = image.getHeight();
+		if (offset < 0 || stride < width * unitsPerPixel) {
+			throw new IllegalArgumentException("Stride " + stride + " is too small for image width " + width);
 		}
+		if (height > 0 && offset + (height - 1) * stride + width * unitsPerPixel > capacity) {
+			throw new IllegalArgumentException("Destination is too small for a " + width + "x" + height + " image");
+		}
+	}
 
-		int i = 0;
-		while (i < length) {
-			byte byte8, byte7, byte6, byte5, byte4, byte3, byte2, byte1;
-			byte b = imageData[i + 1];	// skip filter byte
-			switch (bitDepth) {
-				case 4:
-					byte2 = (byte) (b & 0x0f);
-					byte1 = (byte) (b >> 4);
-					scaled[i * 2] = byte1;
-					scaled[i * 2 + 1] = byte2;
-					break;
-				case 2:
-					byte4 = (byte) (b & 3);
-					byte3 = (byte) (b >> 2 & 3);
-					byte2 = (byte) (b >> 4 & 3);
-					byte1 = (byte) (b >> 6 & 3);
-					scaled[i * 4] = byte1;
-					scaled[i * 4 + 1] = byte2;
-					scaled[i * 4 + 2] = byte3;
-					scaled[i * 4 + 3] = byte4;
-					break;
-				case 1:
-					byte8 = (byte) (b & 1);
-					byte7 = (byte) (b >> 1 & 1);
-					byte6 = (byte) (b >> 2 & 1);
-					byte5 = (byte) (b >> 3 & 1);
-					byte4 = (byte) (b >> 4 & 1);
-					byte3 = (byte) (b >> 5 & 1);
-					byte2 = (byte) (b >> 6 & 1);
-					byte1 = (byte) (b >> 7 & 1);
-					scaled[i * 8] = byte1;
-					scaled[i * 8 + 1] = byte2;
-					scaled[i * 8 + 2] = byte3;
-					scaled[i * 8 + 3] = byte4;
-					scaled[i * 8 + 4] = byte5;
-					scaled[i * 8 + 5] = byte6;
-					scaled[i * 8 + 6] = byte7;
-					scaled[i * 8 + 7] = byte8;
-					break;
-			}
-			i += 1;
+	/* */
+	private static void packARGB(byte[] rgba, int width, int[] out, int offset) {
+		for (int i = 0, o = offset; i < width * 4; i += 4, o++) {
+			out[o] = ((rgba[i + 3] & 0xff) << 24) | ((rgba[i] & 0xff) << 16) | ((rgba[i + 1] & 0xff) << 8) | (rgba[i + 2] & 0xff);
 		}
-		return scaled;
 	}
 }
@@ -0,0 +1,382 @@
+package com.googlecode.pngtastic.core;
+
+/**
+ * Converts de-filtered scanlines of one particular image format to RGBA8,
+ * or to one of the other PngPixelFormat layouts. The converter is picked
+ * once per image, so the per pixel work is a table lookup or a few shifts
+ * rather than a switch on the image type. Transparency from a tRNS chunk
+ * is applied: palette entries get their alpha from it, and for greyscale
+ * and truecolor images the one sample value it names is made transparent.
+ *
+ * @author rayvanderborght
+ */
+abstract class PngRowConverter {
+
+	/**
+	 * Convert the pixels from fromX (inclusive) to toX (exclusive) of a
+	 * de-filtered scanline, writing four bytes per pixel into the output.
+	 *
+	 * @param row The scanline, starting with its filter type byte
+	 * @param out The array to write RGBA8 pixels to
+	 * @param offset Where in the output to write the pixel at fromX
+	 */
+	abstract void toRGBA8(byte[] row, int fromX, int toX, byte[] out, int offset);
+
+	/**
+	 * Convert the pixels from fromX (inclusive) to toX (exclusive) of a
+	 * de-filtered scanline, writing eight bytes per pixel into the output.
+	 * Images with 16 bit samples override this to copy their samples
+	 * unscaled; everything else is converted to RGBA8 in the back half of
+	 * the output and widened in place.
+	 */
+	void toRGBA16(byte[] row, int fromX, int toX, byte[] out, int offset) {
+		final int samples = (toX - fromX) * 4;
+		toRGBA8(row, fromX, toX, out, offset + samples);
+
+		// each write lands at or before the byte it is read from, so nothing is read after being overwritten
+		for (int i = 0, o = offset, end = offset + samples * 2; o < end; i++, o += 2) {
+			final byte v = out[offset + samples + i];
+			out[o] = v;
+			out[o + 1] = v;
+		}
+	}
+
+	/**
+	 * Convert part of a de-filtered scanline to the given pixel format,
+	 * doing any swizzling or premultiplication on the output while it is
+	 * still in cache rather than as a separate pass over the image.
+	 */
+	final void convert(byte[] row, int fromX, int toX, PngPixelFormat format, byte[] out, int offset) {
+		switch (format) {
+			case RGBA8:
+				toRGBA8(row, fromX, toX, out, offset);
+				break;
+
+			case BGRA8:
+				toRGBA8(row, fromX, toX, out, offset);
+				swapRedBlue(out, offset, toX - fromX);
+				break;
+
+			case RGBA8_PREMULTIPLIED:
+				toRGBA8(row, fromX, toX, out, offset);
+				premultiply(out, offset, toX - fromX);
+				break;
+
+			case BGRA8_PREMULTIPLIED:
+				toRGBA8(row, fromX, toX, out, offset);
+				premultiply(out, offset, toX - fromX);
+				swapRedBlue(out, offset, toX - fromX);
+				break;
+
+			case RGBA16:
+				toRGBA16(row, fromX, toX, out, offset);
+				break;
+
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+
+	/** */
+	static PngRowConverter forImage(PngImage image) {
+		final int bitDepth = image.getBitDepth();
+		final PngChunk transparency = image.getTransparency();
+		switch (PngImageType.forColorType(image.getColorType())) {
+			case INDEXED_COLOR:
+				return new Indexed(bitDepth, paletteTable(image.getPalette(), transparency));
+
+			case GREYSCALE:
+				return (bitDepth == 16) ? new Greyscale16(transparentSample(transparency, 0))
+						: new Indexed(bitDepth, greyscaleTable(bitDepth, transparentSample(transparency, 0)));
+
+			case GREYSCALE_ALPHA:
+				return (bitDepth == 16) ? new GreyscaleAlpha16() : new GreyscaleAlpha8();
+
+			case TRUECOLOR:
+				if (transparency != null && transparency.getLength() >= 6) {
+					final int r = transparentSample(transparency, 0);
+					final int g = transparentSample(transparency, 2);
+					final int b = transparentSample(transparency, 4);
+					return (bitDepth == 16) ? new Truecolor16(((long) r << 32) | ((long) g << 16) | b)
+							: new Truecolor8((r | g | b) > 0xff ? -1 : (r << 16) | (g << 8) | b);
+				}
+				return (bitDepth == 16) ? new Truecolor16(-1) : new Truecolor8(-1);
+
+			case TRUECOLOR_ALPHA:
+				return (bitDepth == 16) ? new TruecolorAlpha16() : new TruecolorAlpha8();
+
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+
+	/*
+	 * Scale a 16 bit sample to 8 bits, rounding to nearest: x * 255 / 65535 is x / 257.
+	 */
+	static int scale16(byte hi, byte lo) {
+		return ((((hi & 0xff) << 8) | (lo & 0xff)) + 128) / 257;
+	}
+
+	/* The big endian 16 bit sample at the given index */
+	static int sample16(byte[] row, int i) {
+		return ((row[i] & 0xff) << 8) | (row[i + 1] & 0xff);
+	}
+
+	/* Swap the first and third byte of each four byte pixel */
+	private static void swapRedBlue(byte[] out, int offset, int pixels) {
+		for (int o = offset, end = offset + pixels * 4; o < end; o += 4) {
+			final byte r = out[o];
+			out[o] = out[o + 2];
+			out[o + 2] = r;
+		}
+	}
+
+	/* Multiply the colour samples of each RGBA8 pixel by its alpha, rounding to nearest */
+	private static void premultiply(byte[] out, int offset, int pixels) {
+		for (int o = offset, end = offset + pixels * 4; o < end; o += 4) {
+			final int a = out[o + 3] & 0xff;
+			if (a == 0) {
+				out[o] = 0;
+				out[o + 1] = 0;
+				out[o + 2] = 0;
+			} else if (a != 0xff) {
+				out[o] = (byte) (((out[o] & 0xff) * a + 127) / 255);
+				out[o + 1] = (byte) (((out[o + 1] & 0xff) * a + 127) / 255);
+				out[o + 2] = (byte) (((out[o + 2] & 0xff) * a + 127) / 255);
+			}
+		}
+	}
+
+	/* The 16 bit transparent sample value at the given offset of a tRNS chunk, or -1 if there isn't one */
+	private static int transparentSample(PngChunk transparency, int offset) {
+		return (transparency == null || transparency.getLength() < offset + 2) ? -1 : transparency.getUnsignedShort(offset);
+	}
+
+	/*
+	 * Palette entries packed as RGBA ints, with alpha from the transparency
+	 * chunk if there is one; indexes past the end of the palette are opaque black.
+	 */
+	private static int[] paletteTable(PngChunk palette, PngChunk transparency) {
+		final int[] table = new int[256];
+		final int entries = (palette == null) ? 0 : Math.min(256, palette.getLength() / 3);
+		final int alphas = (transparency == null) ? 0 : Math.min(entries, transparency.getLength());
+		for (int i = 0; i < 256; i++) {
+			final int alpha = (i < alphas) ? transparency.getUnsignedByte(i) : 0xff;
+			table[i] = (i < entries)
+					? (palette.getUnsignedByte(i * 3) << 24) | (palette.getUnsignedByte(i * 3 + 1) << 16)
+						| (palette.getUnsignedByte(i * 3 + 2) << 8) | alpha
+					: 0xff;
+		}
+		return table;
+	}
+
+	/*
+	 * Every grey level of the given bit depth, scaled to 8 bits and packed as
+	 * RGBA ints, with the transparent level, if any, given zero alpha.
+	 */
+	private static int[] greyscaleTable(int bitDepth, int transparent) {
+		final int max = (1 << bitDepth) - 1;
+		final int[] table = new int[1 << bitDepth];
+		for (int i = 0; i <= max; i++) {
+			final int p = i * 255;
+			final int v = p / max + ((p % max > max / 2) ? 1 : 0);
+			table[i] = (v << 24) | (v << 16) | (v << 8) | ((i == transparent) ? 0 : 0xff);
+		}
+		return table;
+	}
+
+	/**
+	 * Palette and low bit depth greyscale images, where every sample value
+	 * maps to a precomputed RGBA value.
+	 */
+	private static class Indexed extends PngRowConverter {
+		private final int bitDepth;
+		private final int mask;
+		private final int[] table;
+
+		Indexed(int bitDepth, int[] table) {
+			this.bitDepth = bitDepth;
+			this.mask = (1 << bitDepth) - 1;
+			this.table = table;
+		}
+
+		@Override
+		void toRGBA8(byte[] row, int fromX, int toX, byte[] out, int offset) {
+			for (int x = fromX, o = offset; x < toX; x++, o += 4) {
+				final int bit = x * bitDepth;
+				final int sample = (row[1 + (bit >> 3)] >> (8 - bitDepth - (bit & 7))) & mask;
+				final int rgba = table[sample];
+				out[o] = (byte) (rgba >>> 24);
+				out[o + 1] = (byte) (rgba >>> 16);
+				out[o + 2] = (byte) (rgba >>> 8);
+				out[o + 3] = (byte) rgba;
+			}
+		}
+	}
+
+	/** */
+	private static class Greyscale16 extends PngRowConverter {
+		private final int transparent;
+
+		Greyscale16(int transparent) {
+			this.transparent = transparent;
+		}
+
+		@Override
+		void toRGBA8(byte[] row, int fromX, int toX, byte[] out, int offset) {
+			for (int i = 1 + fromX * 2, o = offset, end = 1 + toX * 2; i < end; i += 2, o += 4) {
+				final byte v = (byte) scale16(row[i], row[i + 1]);
+				out[o] = v;
+				out[o + 1] = v;
+				out[o + 2] = v;
+				out[o + 3] = (byte) ((sample16(row, i) == transparent) ? 0 : 0xff);
+			}
+		}
+
+		@Override
+		void toRGBA16(byte[] row, int fromX, int toX, byte[] out, int offset) {
+			for (int i = 1 + fromX * 2, o = offset, end = 1 + toX * 2; i < end; i += 2, o += 8) {
+				final byte hi = row[i];
+				final byte lo = row[i + 1];
+				out[o] = hi;
+				out[o + 1] = lo;
+				out[o + 2] = hi;
+				out[o + 3] = lo;
+				out[o + 4] = hi;
+				out[o + 5] = lo;
+				final byte alpha = (byte) ((sample16(row, i) == transparent) ? 0 : 0xff);
+				out[o + 6] = alpha;
+				out[o + 7] = alpha;
+			}
+		}
+	}
+
+	/** */
+	private static class GreyscaleAlpha8 extends PngRowConverter {
+		@Override
+		void toRGBA8(byte[] row, int fromX, int toX, byte[] out, int offset) {
+			for (int i = 1 + fromX * 2, o = offset, end = 1 + toX * 2; i < end; i += 2, o += 4) {
+				final byte v = row[i];
+				out[o] = v;
+				out[o + 1] = v;
+				out[o + 2] = v;
+				out[o + 3] = row[i + 1];
+			}
+		}
+	}
+
+	/** */
+	private static class GreyscaleAlpha16 extends PngRowConverter {
+		@Override
+		void toRGBA8(byte[] row, int fromX, int toX, byte[] out, int offset) {
+			for (int i = 1 + fromX * 4, o = offset, end = 1 + toX * 4; i < end; i += 4, o += 4) {
+				final byte v = (byte) scale16(row[i], row[i + 1]);
+				out[o] = v;
+				out[o + 1] = v;
+				out[o + 2] = v;
+				out[o + 3] = (byte) scale16(row[i + 2], row[i + 3]);
+			}
+		}
+
+		@Override
+		void toRGBA16(byte[] row, int fromX, int toX, byte[] out, int offset) {
+			for (int i = 1 + fromX * 4, o = offset, end = 1 + toX * 4; i < end; i += 4, o += 8) {
+				final byte hi = row[i];
+				final byte lo = row[i + 1];
+				out[o] = hi;
+				out[o + 1] = lo;
+				out[o + 2] = hi;
+				out[o + 3] = lo;
+				out[o + 4] = hi;
+				out[o + 5] = lo;
+				out[o + 6] = row[i + 2];
+				out[o + 7] = row[i + 3];
+			}
+		}
+	}
+
+	/** */
+	private static class Truecolor8 extends PngRowConverter {
+		/* the transparent colour packed as RGB, or -1 */
+		private final int transparent;
+
+		Truecolor8(int transparent) {
+			this.transparent = transparent;
+		}
+
+		@Override
+		void toRGBA8(byte[] row, int fromX, int toX, byte[] out, int offset) {
+			for (int i = 1 + fromX * 3, o = offset, end = 1 + toX * 3; i < end; i += 3, o += 4) {
+				out[o] = row[i];
+				out[o + 1] = row[i + 1];
+				out[o + 2] = row[i + 2];
+				out[o + 3] = (byte) 0xff;
+				if (transparent >= 0 && (((row[i] & 0xff) << 16) | ((row[i + 1] & 0xff) << 8) | (row[i + 2] & 0xff)) == transparent) {
+					out[o + 3] = 0;
+				}
+			}
+		}
+	}
+
+	/** */
+	private static class Truecolor16 extends PngRowConverter {
+		/* the transparent colour packed as 16 bit RGB, or -1 */
+		private final long transparent;
+
+		Truecolor16(long transparent) {
+			this.transparent = transparent;
+		}
+
+		@Override
+		void toRGBA8(byte[] row, int fromX, int toX, byte[] out, int offset) {
+			for (int i = 1 + fromX * 6, o = offset, end = 1 + toX * 6; i < end; i += 6, o += 4) {
+				out[o] = (byte) scale16(row[i], row[i + 1]);
+				out[o + 1] = (byte) scale16(row[i + 2], row[i + 3]);
+				out[o + 2] = (byte) scale16(row[i + 4], row[i + 5]);
+				out[o + 3] = (byte) (isTransparent(row, i) ? 0 : 0xff);
+			}
+		}
+
+		@Override
+		void toRGBA16(byte[] row, int fromX, int toX, byte[] out, int offset) {
+			for (int i = 1 + fromX * 6, o = offset, end = 1 + toX * 6; i < end; i += 6, o += 8) {
+				System.arraycopy(row, i, out, o, 6);
+				final byte alpha = (byte) (isTransparent(row, i) ? 0 : 0xff);
+				out[o + 6] = alpha;
+				out[o + 7] = alpha;
+			}
+		}
+
+		/* */
+		private boolean isTransparent(byte[] row, int i) {
+			return transparent >= 0
+					&& (((long) sample16(row, i) << 32) | ((long) sample16(row, i + 2) << 16) | sample16(row, i + 4)) == transparent;
+		}
+	}
+
+	/** Already RGBA8, so this is a straight copy */
+	private static class TruecolorAlpha8 extends PngRowConverter {
+		@Override
+		void toRGBA8(byte[] row, int fromX, int toX, byte[] out, int offset) {
+			System.arraycopy(row, 1 + fromX * 4, out, offset, (toX - fromX) * 4);
+		}
+	}
+
+	/** */
+	private static class TruecolorAlpha16 extends PngRowConverter {
+		@Override
+		void toRGBA8(byte[] row, int fromX, int toX, byte[] out, int offset) {
+			for (int i = 1 + fromX * 8, o = offset, end = 1 + toX * 8; i < end; i += 8, o += 4) {
+				out[o] = (byte) scale16(row[i], row[i + 1]);
+				out[o + 1] = (byte) scale16(row[i + 2], row[i + 3]);
+				out[o + 2] = (byte) scale16(row[i + 4], row[i + 5]);
+				out[o + 3] = (byte) scale16(row[i + 6], row[i + 7]);
+			}
+		}
+
+		@Override
+		void toRGBA16(byte[] row, int fromX, int toX, byte[] out, int offset) {
+			System.arraycopy(row, 1 + fromX * 8, out, offset, (toX - fromX) * 8);
+		}
+	}
+}
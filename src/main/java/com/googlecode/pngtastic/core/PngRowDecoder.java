@@ -0,0 +1,275 @@
+package com.googlecode.pngtastic.core;
+
+import com.googlecode.pngtastic.core.processing.PngFilterHandler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Decodes an image a row at a time, top to bottom. For non-interlaced
+ * images only as much of the image data stream as is needed for the next
+ * row is inflated, and only the current and previous scanline are kept, so
+ * the decoded data takes O(width) memory however tall the image is.
+ * Interlaced images spread every row over all seven passes, so for those
+ * the whole image is de-interlaced up front and handed out a row at a time.
+ * <p>
+ * A decoder can be limited to a region of the image and can shrink that
+ * region by an integer factor, averaging each block of pixels. Rows above
+ * the region still have to be de-filtered, since each row is filtered
+ * against the one before it, but they are never converted; rows below it
+ * are never inflated at all, and columns outside it are skipped by the
+ * conversion kernel.
+ * <p>
+ * The array returned for each row is reused for a later one, so copy it if
+ * it needs to outlive the next call to {@link #next()}, and don't modify
+ * it. Close the decoder when done with it, whether or not every row was
+ * read.
+ *
+ * @author rayvanderborght
+ */
+public class PngRowDecoder implements Iterator<byte[]>, Closeable {
+
+	private final PngPixelFormat format;
+	private final PngRowConverter converter;
+	private final int width;
+	private final int height;
+
+	private int regionX;
+	private int regionY;
+	private int regionWidth;
+	private int regionHeight;
+	private int scale = 1;
+	private int outputWidth;
+	private int outputHeight;
+
+	private final PngFilterHandler pngFilterHandler;
+	private final int sampleBitCount;
+	private final PngImageDataInflater inflater;
+
+	private final List<byte[]> rows;
+
+	private byte[] scanline;
+	private byte[] previousScanline;
+	private byte[] row;
+	private byte[] scratch;
+	private long[] sums;
+	private int sourceY;
+	private int y;
+
+	/**
+	 * Streaming decoder for a non-interlaced image whose first image data
+	 * chunk is the given chunk.
+	 */
+	PngRowDecoder(PngImage image, PngPixelFormat format, PngFilterHandler pngFilterHandler, PngChunk chunk, Iterator<PngChunk> itChunks) {
+		this(image, format, pngFilterHandler, chunk, itChunks, null);
+	}
+
+	/**
+	 * Decoder handing out rows that have already been de-filtered.
+	 */
+	PngRowDecoder(PngImage image, PngPixelFormat format, List<byte[]> rows) {
+		this(image, format, null, null, null, rows);
+	}
+
+	/* */
+	private PngRowDecoder(PngImage image, PngPixelFormat format, PngFilterHandler pngFilterHandler,
+			PngChunk chunk, Iterator<PngChunk> itChunks, List<byte[]> rows) {
+
+		this.format = format;
+		this.converter = (format == null) ? null : PngRowConverter.forImage(image);
+		this.width = (int) image.getWidth();
+		this.height = (rows == null) ? (int) image.getHeight() : rows.size();
+		this.pngFilterHandler = pngFilterHandler;
+		this.sampleBitCount = image.getSampleBitCount();
+		this.rows = rows;
+
+		final int scanlineLength = (int) (Math.ceil(image.getWidth() * sampleBitCount / 8F)) + 1;
+		if (rows == null) {
+			this.inflater = new PngImageDataInflater(chunk, itChunks);
+			this.scanline = new byte[scanlineLength];
+			this.previousScanline = new byte[scanlineLength];
+		} else {
+			this.inflater = null;
+		}
+		setRegion(0, 0, width, height, 1);
+	}
+
+	/*
+	 * Limit decoding to the given rectangle of the image, shrunk by the given
+	 * factor. Blocks at the right and bottom edges that are cut short by the
+	 * region are averaged over the pixels they do have. Called by PngReader,
+	 * which validates the region, before any row is read.
+	 */
+	void setRegion(int x, int y, int width, int height, int scale) {
+		this.regionX = x;
+		this.regionY = y;
+		this.regionWidth = width;
+		this.regionHeight = height;
+		this.scale = scale;
+		this.outputWidth = (width + scale - 1) / scale;
+		this.outputHeight = (height + scale - 1) / scale;
+
+		if (format != null) {
+			this.row = new byte[outputWidth * format.getBytesPerPixel()];
+			if (scale > 1) {
+				this.scratch = new byte[width * format.getBytesPerPixel()];
+				this.sums = new long[outputWidth * 4];
+			}
+		}
+	}
+
+	/**
+	 * @return The width in pixels of the rows this decoder returns
+	 */
+	public int getWidth() {
+		return this.outputWidth;
+	}
+
+	/**
+	 * @return The number of rows this decoder returns
+	 */
+	public int getHeight() {
+		return this.outputHeight;
+	}
+
+	/**
+	 * @return The number of the row the next call to {@link #next()} returns
+	 */
+	public int getY() {
+		return this.y;
+	}
+
+	/** */
+	@Override
+	public boolean hasNext() {
+		return y < outputHeight;
+	}
+
+	/**
+	 * Decode the next row, in the pixel format the decoder was opened with.
+	 * If it was opened without a format, this is the de-filtered scanline,
+	 * starting with its filter type byte.
+	 *
+	 * @throws PngException If the image data is corrupt or ends early
+	 */
+	@Override
+	public byte[] next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		try {
+			return readRow();
+		} catch (IOException e) {
+			throw new PngException(e);
+		}
+	}
+
+	/**
+	 * Decode the next row, as {@link #next()} does.
+	 *
+	 * @return The row, or null if every row has been read
+	 */
+	public byte[] readRow() throws IOException {
+		if (!hasNext()) {
+			return null;
+		}
+
+		// rows above the region have to be de-filtered for the rows below them, but are not converted
+		while (sourceY < regionY) {
+			nextScanline();
+		}
+		y++;
+
+		if (format == null) {
+			return nextScanline();
+		}
+		if (scale == 1) {
+			converter.convert(nextScanline(), regionX, regionX + regionWidth, format, row, 0);
+			return row;
+		}
+
+		Arrays.fill(sums, 0);
+		final int blockHeight = Math.min(scale, regionY + regionHeight - sourceY);
+		for (int i = 0; i < blockHeight; i++) {
+			converter.convert(nextScanline(), regionX, regionX + regionWidth, format, scratch, 0);
+			accumulate();
+		}
+		average(blockHeight);
+
+		return row;
+	}
+
+	/* Add every sample of the converted scratch row to the sums for the block it falls in */
+	private void accumulate() {
+		final boolean wide = format.getBytesPerPixel() == 8;
+		for (int x = 0, s = 0, n = 0, i = 0; x < regionWidth; x++) {
+			for (int c = 0; c < 4; c++) {
+				if (wide) {
+					sums[s + c] += ((scratch[i] & 0xff) << 8) | (scratch[i + 1] & 0xff);
+					i += 2;
+				} else {
+					sums[s + c] += scratch[i++] & 0xff;
+				}
+			}
+			if (++n == scale) {
+				n = 0;
+				s += 4;
+			}
+		}
+	}
+
+	/* Write the rounded mean of each block's samples to the output row */
+	private void average(int blockHeight) {
+		final boolean wide = format.getBytesPerPixel() == 8;
+		for (int x = 0, s = 0, o = 0; x < outputWidth; x++, s += 4) {
+			final long count = (long) blockHeight * Math.min(scale, regionWidth - x * scale);
+			for (int c = 0; c < 4; c++) {
+				final long mean = (sums[s + c] + count / 2) / count;
+				if (wide) {
+					row[o++] = (byte) (mean >> 8);
+				}
+				row[o++] = (byte) mean;
+			}
+		}
+	}
+
+	/* The next de-filtered scanline of the image */
+	private byte[] nextScanline() throws IOException {
+		final byte[] line;
+		if (rows == null) {
+			inflater.inflate(scanline, 0, scanline.length);
+			pngFilterHandler.deFilter(scanline, previousScanline, sampleBitCount);
+			line = scanline;
+
+			// the scanline just decoded is the one the next row is filtered against
+			scanline = previousScanline;
+			previousScanline = line;
+		} else {
+			line = rows.get(sourceY);
+		}
+		sourceY++;
+
+		return line;
+	}
+
+	/** */
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Release the inflater. Safe to call more than once.
+	 */
+	@Override
+	public void close() {
+		if (inflater != null) {
+			inflater.close();
+		}
+		y = outputHeight;
+	}
+}
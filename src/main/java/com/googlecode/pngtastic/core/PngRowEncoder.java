@@ -0,0 +1,114 @@
+package com.googlecode.pngtastic.core;
+
+import com.googlecode.pngtastic.core.processing.PngCodecPool;
+import com.googlecode.pngtastic.core.processing.PngFilterHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.util.zip.Deflater;
+
+/**
+ * Encodes an image a row at a time, top to bottom: each row is filtered as
+ * it arrives and fed straight to the deflater, so only the current and
+ * previous row are ever held, along with the compressed output. Unless
+ * the encoder is given one filter type for every row, the filter for each
+ * row is picked the way adaptive filtering picks it, as the one giving the
+ * smallest sum of absolute differences.
+ * <p>
+ * This is the counterpart of PngRowDecoder. It does a single compression
+ * pass at one level and strategy, so it trades some output size for not
+ * keeping the image around to try others.
+ *
+ * @author rayvanderborght
+ */
+class PngRowEncoder implements Closeable {
+
+	private final PngFilterHandler pngFilterHandler;
+	private final int sampleBitCount;
+	private final Deflater deflater;
+	private final byte[] block;
+	private final ByteArrayOutputStream output;
+
+	private final PngFilterType[] filterTypes;
+	private final byte[][] candidates;
+	private byte[] previousRow;
+
+	/**
+	 * @param scanlineLength The length of each row, including its filter type byte
+	 * @param compressionLevel The deflate level, or null for the best compression
+	 */
+	PngRowEncoder(PngFilterHandler pngFilterHandler, int scanlineLength, int sampleBitCount, Integer compressionLevel) {
+		this(pngFilterHandler, scanlineLength, sampleBitCount, compressionLevel, PngFilterType.ADAPTIVE);
+	}
+
+	/**
+	 * @param filterType The filter type for every row, or ADAPTIVE to pick one per row
+	 */
+	PngRowEncoder(PngFilterHandler pngFilterHandler, int scanlineLength, int sampleBitCount, Integer compressionLevel,
+			PngFilterType filterType) {
+		this.pngFilterHandler = pngFilterHandler;
+		this.sampleBitCount = sampleBitCount;
+		this.filterTypes = (filterType == PngFilterType.ADAPTIVE) ? PngFilterType.standardValues() : new PngFilterType[] { filterType };
+
+		final int level = (compressionLevel == null || compressionLevel > Deflater.BEST_COMPRESSION || compressionLevel < Deflater.NO_COMPRESSION)
+				? Deflater.BEST_COMPRESSION : compressionLevel;
+		final PngCodecPool pool = PngCodecPool.get();
+		this.deflater = pool.deflater(level, Deflater.DEFAULT_STRATEGY);
+		this.block = pool.block();
+		this.output = new ByteArrayOutputStream(scanlineLength);
+
+		this.candidates = new byte[filterTypes.length][scanlineLength];
+		this.previousRow = new byte[scanlineLength];
+	}
+
+	/**
+	 * Filter and compress the next row. The row holds unfiltered pixels
+	 * after its filter type byte, and is left as it was.
+	 */
+	void write(byte[] row) throws PngException {
+		byte[] best = null;
+		long bestSum = Long.MAX_VALUE;
+		for (int f = 0; f < filterTypes.length; f++) {
+			final byte[] candidate = candidates[f];
+			System.arraycopy(row, 1, candidate, 1, row.length - 1);
+			candidate[0] = filterTypes[f].getValue();
+			pngFilterHandler.filter(candidate, previousRow, sampleBitCount);
+
+			long sum = 0;
+			for (int i = 1; i < candidate.length; i++) {
+				sum += Math.abs(candidate[i]);
+			}
+			if (sum < bestSum) {
+				best = candidate;
+				bestSum = sum;
+			}
+		}
+
+		deflater.setInput(best);
+		while (!deflater.needsInput()) {
+			output.write(block, 0, deflater.deflate(block));
+		}
+		System.arraycopy(row, 1, previousRow, 1, row.length - 1);
+	}
+
+	/**
+	 * Finish the stream after the last row.
+	 *
+	 * @return The compressed image data
+	 */
+	byte[] finish() {
+		deflater.finish();
+		while (!deflater.finished()) {
+			output.write(block, 0, deflater.deflate(block));
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * Hand the deflater back to the pool. Safe to call more than once.
+	 */
+	@Override
+	public void close() {
+		PngCodecPool.get().trim();
+	}
+}
@@ -0,0 +1,20 @@
+package com.googlecode.pngtastic.core;
+
+import java.io.IOException;
+
+/**
+ * Receives decoded rows from PngReader, top to bottom.
+ *
+ * @author rayvanderborght
+ */
+public interface PngRowListener {
+
+	/**
+	 * Called once for every row of the image.
+	 *
+	 * @param y The row number, counting from the top
+	 * @param row The decoded row; this array is reused for later rows and
+	 *        must not be kept or modified
+	 */
+	public void row(int y, byte[] row) throws IOException;
+}
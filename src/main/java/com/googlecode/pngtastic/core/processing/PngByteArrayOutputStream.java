@@ -1,13 +1,14 @@
 package com.googlecode.pngtastic.core.processing;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Allows access to the underlying buf without doing deep copies on it
  *
  * @author ray
  */
-public class PngByteArrayOutputStream extends ByteArrayOutputStream {
+public class PngByteArrayOutputStream extends ByteArrayOutputStream implements PngImageBuffer {
 
 	private final int initialSize;
 
@@ -30,6 +31,7 @@ public class PngByteArrayOutputStream extends ByteArrayOutputStream {
 		return buf;
 	}
 
+	@Override
 	public void reset() {
 		super.reset();
 		if (buf.length > initialSize) {
@@ -37,7 +39,19 @@ public class PngByteArrayOutputStream extends ByteArrayOutputStream {
 		}
 	}
 
+	@Override
 	public int len() {
 		return count;
 	}
+
+	@Override
+	public ByteBuffer getByteBuffer() {
+		return ByteBuffer.wrap(buf, 0, count).slice();
+	}
+
+	@Override
+	public void release() {
+		count = 0;
+		buf = new byte[0];
+	}
 }
@@ -0,0 +1,103 @@
+package com.googlecode.pngtastic.core.processing;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Per-thread deflaters, inflaters and scratch buffers. These are reset and
+ * reused rather than created for every image, so a long running optimizer
+ * settles into doing very little allocation per image. Scratch buffers that
+ * had to grow past {@link #MAX_RETAINED_SIZE} for an unusually large image
+ * are dropped after use instead of being kept around.
+ *
+ * @author ray
+ */
+public final class PngCodecPool {
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+	private static final int INITIAL_OUTPUT_SIZE = 64 * 1024;
+	private static final int MAX_RETAINED_SIZE = 4 * 1024 * 1024;
+	private static final byte[] NO_INPUT = new byte[0];
+
+	private static final ThreadLocal<PngCodecPool> pools = new ThreadLocal<PngCodecPool>() {
+		@Override
+		protected PngCodecPool initialValue() {
+			return new PngCodecPool();
+		}
+	};
+
+	private Deflater deflater;
+	private Inflater inflater;
+	private final byte[] block = new byte[BLOCK_SIZE];
+	private byte[] output = new byte[INITIAL_OUTPUT_SIZE];
+
+	private PngCodecPool() { }
+
+	/**
+	 * @return The pool belonging to the calling thread
+	 */
+	public static PngCodecPool get() {
+		return pools.get();
+	}
+
+	/**
+	 * Get this thread's deflater, reset and set up with the given level and strategy.
+	 */
+	public Deflater deflater(int level, int strategy) {
+		if (deflater == null) {
+			deflater = new Deflater(level);
+		} else {
+			deflater.reset();
+			deflater.setLevel(level);
+		}
+		deflater.setStrategy(strategy);
+		return deflater;
+	}
+
+	/**
+	 * Get this thread's inflater, reset and ready for a new zlib stream.
+	 */
+	public Inflater inflater() {
+		if (inflater == null) {
+			inflater = new Inflater();
+		} else {
+			inflater.reset();
+		}
+		return inflater;
+	}
+
+	/**
+	 * @return A scratch block for staging input or output data
+	 */
+	public byte[] block() {
+		return block;
+	}
+
+	/**
+	 * Get the scratch output buffer, grown to hold at least the given number of bytes.
+	 */
+	public byte[] output(int size) {
+		if (output.length < size) {
+			output = Arrays.copyOf(output, Math.max(size, output.length << 1));
+		}
+		return output;
+	}
+
+	/**
+	 * Called when done with the pool: drops the codecs' references to the
+	 * last input, and gives up the scratch output buffer if it grew beyond
+	 * what we want to keep.
+	 */
+	public void trim() {
+		if (deflater != null) {
+			deflater.setInput(NO_INPUT);
+		}
+		if (inflater != null) {
+			inflater.setInput(NO_INPUT);
+		}
+		if (output.length > MAX_RETAINED_SIZE) {
+			output = new byte[INITIAL_OUTPUT_SIZE];
+		}
+	}
+}
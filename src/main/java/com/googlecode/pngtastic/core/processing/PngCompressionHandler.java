@@ -1,6 +1,9 @@
 package com.googlecode.pngtastic.core.processing;
 
+import com.googlecode.pngtastic.core.PngMetrics;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * Apply PNG compression and decompression. Implies zlib format, aka LZ77.
@@ -23,5 +26,44 @@ public interface PngCompressionHandler {
 	 */
 	public byte[] deflate(PngByteArrayOutputStream inflatedImageData, Integer compressionLevel, boolean concurrent) throws IOException;
 
+	/**
+	 * Deflate as above, from any image buffer, including one off the java
+	 * heap. By default the buffer is copied to a PngByteArrayOutputStream,
+	 * unless it already is one, so that handlers written before image
+	 * buffers existed keep working; the built-in handlers read it in place.
+	 *
+	 * @param inflatedImageData A buffer containing the uncompressed image data
+	 * @throws java.io.InterruptedIOException If the calling thread is interrupted
+	 *         while compressing
+	 */
+	public default byte[] deflate(PngImageBuffer inflatedImageData, Integer compressionLevel, boolean concurrent) throws IOException {
+		if (inflatedImageData instanceof PngByteArrayOutputStream) {
+			return deflate((PngByteArrayOutputStream) inflatedImageData, compressionLevel, concurrent);
+		}
+
+		final ByteBuffer bytes = inflatedImageData.getByteBuffer();
+		final PngByteArrayOutputStream copy = new PngByteArrayOutputStream(bytes.remaining());
+		final byte[] block = new byte[Math.min(bytes.remaining(), 64 * 1024)];
+		while (bytes.hasRemaining()) {
+			final int length = Math.min(block.length, bytes.remaining());
+			bytes.get(block, 0, length);
+			copy.write(block, 0, length);
+		}
+		return deflate(copy, compressionLevel, concurrent);
+	}
+
+	/**
+	 * Deflate as above, recording each compression trial in the metrics. By
+	 * default nothing is recorded, so that handlers written before metrics
+	 * existed keep working.
+	 *
+	 * @param metrics Where to record the trials, or null to not record them
+	 */
+	public default byte[] deflate(PngImageBuffer inflatedImageData, Integer compressionLevel, boolean concurrent, PngMetrics metrics)
+			throws IOException {
+
+		return deflate(inflatedImageData, compressionLevel, concurrent);
+	}
+
 	public String encodeBytes(byte[] bytes);
 }
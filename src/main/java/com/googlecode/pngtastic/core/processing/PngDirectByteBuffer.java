@@ -0,0 +1,106 @@
+package com.googlecode.pngtastic.core.processing;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Image data held outside of the java heap, in a direct byte buffer, so
+ * large images don't show up as humongous arrays for the garbage collector.
+ * Since direct memory is only reclaimed lazily, released buffers are kept
+ * in a small pool and handed out again to later images.
+ *
+ * @author ray
+ */
+public class PngDirectByteBuffer extends OutputStream implements PngImageBuffer {
+
+	/** the most buffers, and bytes across them, kept around after release */
+	private static final int MAX_POOLED_BUFFERS = 4;
+	private static final long MAX_POOLED_BYTES = 256L * 1024 * 1024;
+
+	private static final Deque<ByteBuffer> pool = new ArrayDeque<>();
+	private static long pooledBytes = 0;
+
+	private ByteBuffer buf;
+
+	public PngDirectByteBuffer(int size) {
+		this.buf = acquire(size);
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(1);
+		buf.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] bytes, int offset, int length) {
+		ensureCapacity(length);
+		buf.put(bytes, offset, length);
+	}
+
+	@Override
+	public void reset() {
+		buf.clear();
+	}
+
+	@Override
+	public int len() {
+		return buf.position();
+	}
+
+	@Override
+	public ByteBuffer getByteBuffer() {
+		final ByteBuffer view = buf.duplicate();
+		view.flip();
+		return view;
+	}
+
+	@Override
+	public void release() {
+		if (buf != null) {
+			recycle(buf);
+			buf = null;
+		}
+	}
+
+	/* */
+	private void ensureCapacity(int length) {
+		if (buf.remaining() < length) {
+			final int needed = buf.position() + length;
+			final ByteBuffer bigger = acquire(Math.max(needed, buf.capacity() << 1));
+			buf.flip();
+			bigger.put(buf);
+			recycle(buf);
+			buf = bigger;
+		}
+	}
+
+	/* */
+	private static ByteBuffer acquire(int size) {
+		synchronized (pool) {
+			for (Iterator<ByteBuffer> it = pool.iterator(); it.hasNext();) {
+				final ByteBuffer pooled = it.next();
+				if (pooled.capacity() >= size) {
+					it.remove();
+					pooledBytes -= pooled.capacity();
+					pooled.clear();
+					return pooled;
+				}
+			}
+		}
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	/* */
+	private static void recycle(ByteBuffer released) {
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED_BUFFERS && pooledBytes + released.capacity() <= MAX_POOLED_BYTES) {
+				pool.push(released);
+				pooledBytes += released.capacity();
+			}
+		}
+	}
+}
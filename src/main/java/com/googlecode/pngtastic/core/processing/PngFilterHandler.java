@@ -22,7 +22,7 @@ public interface PngFilterHandler {
 	/**
 	 * Apply adaptive filtering as described in the png spec.
 	 */
-	public void applyAdaptiveFiltering(PngByteArrayOutputStream inflatedImageData, List<byte[]> scanlines, Map<PngFilterType, List<byte[]>> filteredScanLines, int sampleSize) throws IOException;
+	public void applyAdaptiveFiltering(PngImageBuffer inflatedImageData, List<byte[]> scanlines, Map<PngFilterType, List<byte[]>> filteredScanLines, int sampleSize) throws IOException;
 
 	/**
 	 * Do filtering as described in the png spec:
@@ -0,0 +1,39 @@
+package com.googlecode.pngtastic.core.processing;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds a block of image data (inflated or about to be deflated), which may
+ * live on the java heap or off of it.
+ *
+ * @author ray
+ */
+public interface PngImageBuffer {
+
+	/**
+	 * Append bytes to the end of the buffer, growing it if necessary.
+	 */
+	public void write(byte[] bytes, int offset, int length);
+
+	/**
+	 * Empty the buffer so it can be written again, keeping its storage.
+	 */
+	public void reset();
+
+	/**
+	 * @return The number of bytes written to the buffer
+	 */
+	public int len();
+
+	/**
+	 * Get a view of the bytes written so far, positioned at zero and limited
+	 * to {@link #len()}. Each call returns an independent view, so callers
+	 * on different threads can read the same buffer.
+	 */
+	public ByteBuffer getByteBuffer();
+
+	/**
+	 * Give up the underlying storage. The buffer must not be used afterwards.
+	 */
+	public void release();
+}
@@ -1,9 +1,11 @@
 package com.googlecode.pngtastic.core.processing;
 
 import com.googlecode.pngtastic.core.Logger;
+import com.googlecode.pngtastic.core.PngMetrics;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -13,8 +15,8 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 /**
  * Implements PNG compression and decompression
@@ -25,11 +27,20 @@ public class PngtasticCompressionHandler implements PngCompressionHandler {
 
 	private final Logger log;
 
+	private static final int OUTPUT_BLOCK_SIZE = 64 * 1024;
+
 	private static final List<Integer> compressionStrategies = Arrays.asList(
 			Deflater.DEFAULT_STRATEGY,
 			Deflater.FILTERED,
 			Deflater.HUFFMAN_ONLY);
 
+	/*
+	 * Shared by all handlers and kept alive between images so that each
+	 * thread's pooled deflater and buffers get reused. The threads are
+	 * daemons so an idle pool never holds up jvm shutdown.
+	 */
+	private static ExecutorService compressionThreadPool;
+
 	/** */
 	public PngtasticCompressionHandler(Logger log) {
 		this.log = log;
@@ -40,9 +51,27 @@ public class PngtasticCompressionHandler implements PngCompressionHandler {
 	 */
 	@Override
 	public byte[] deflate(PngByteArrayOutputStream inflatedImageData, Integer compressionLevel, boolean concurrent) throws IOException {
+		return deflate((PngImageBuffer) inflatedImageData, compressionLevel, concurrent, null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] deflate(PngImageBuffer inflatedImageData, Integer compressionLevel, boolean concurrent) throws IOException {
+		return deflate(inflatedImageData, compressionLevel, concurrent, null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public byte[] deflate(PngImageBuffer inflatedImageData, Integer compressionLevel, boolean concurrent, PngMetrics metrics)
+			throws IOException {
+
 		final List<byte[]> results = (concurrent)
-				? deflateImageDataConcurrently(inflatedImageData, compressionLevel)
-				: deflateImageDataSerially(inflatedImageData, compressionLevel, Deflater.DEFAULT_STRATEGY);
+				? deflateImageDataConcurrently(inflatedImageData, compressionLevel, metrics)
+				: deflateImageDataSerially(inflatedImageData, compressionLevel, Deflater.DEFAULT_STRATEGY, metrics);
 
 		byte[] result = null;
 		for (int i = 0; i < results.size(); i++) {
@@ -66,7 +95,9 @@ public class PngtasticCompressionHandler implements PngCompressionHandler {
 	 * different compression strategies in separate threads to take
 	 * advantage of multiple core architectures.
 	 */
-	private List<byte[]> deflateImageDataConcurrently(final PngByteArrayOutputStream inflatedImageData, final Integer compressionLevel) {
+	private List<byte[]> deflateImageDataConcurrently(final PngImageBuffer inflatedImageData, final Integer compressionLevel,
+			final PngMetrics metrics) throws InterruptedIOException {
+
 		final Collection<byte[]> results = new ConcurrentLinkedQueue<>();
 
 		final Collection<Callable<Object>> tasks = new ArrayList<>();
@@ -75,7 +106,9 @@ public class PngtasticCompressionHandler implements PngCompressionHandler {
 				@Override
 				public void run() {
 					try {
-						results.add(PngtasticCompressionHandler.this.deflateImageData(inflatedImageData, strategy, compressionLevel));
+						results.add(PngtasticCompressionHandler.this.deflateImageData(inflatedImageData, strategy, compressionLevel, metrics));
+					} catch (InterruptedIOException e) {
+						// the trials were cancelled, nothing to report
 					} catch (Throwable e) {
 						PngtasticCompressionHandler.this.log.error("Uncaught Exception: %s", e.getMessage());
 					}
@@ -83,19 +116,36 @@ public class PngtasticCompressionHandler implements PngCompressionHandler {
 			}));
 		}
 
-		final ExecutorService compressionThreadPool = Executors.newFixedThreadPool(compressionStrategies.size());
 		try {
-			compressionThreadPool.invokeAll(tasks);
+			// if we're interrupted while waiting, invokeAll interrupts the trials still running
+			getCompressionThreadPool().invokeAll(tasks);
 		} catch (InterruptedException ex) {
-		} finally {
-			compressionThreadPool.shutdown();
+			throw new InterruptedIOException("Compression interrupted");
 		}
 
 		return new ArrayList<>(results);
 	}
 
 	/* */
-	private List<byte[]> deflateImageDataSerially(PngByteArrayOutputStream inflatedImageData, Integer compressionLevel, Integer compressionStrategy) {
+	private static synchronized ExecutorService getCompressionThreadPool() {
+		if (compressionThreadPool == null) {
+			final int threads = Math.max(compressionStrategies.size(), Runtime.getRuntime().availableProcessors());
+			compressionThreadPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r, "pngtastic-compression");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return compressionThreadPool;
+	}
+
+	/* */
+	private List<byte[]> deflateImageDataSerially(PngImageBuffer inflatedImageData, Integer compressionLevel, Integer compressionStrategy,
+			PngMetrics metrics) throws InterruptedIOException {
+
 		final List<byte[]> results = new ArrayList<>();
 
 		final List<Integer> strategies = (compressionStrategy == null) ? compressionStrategies
@@ -103,7 +153,9 @@ public class PngtasticCompressionHandler implements PngCompressionHandler {
 
 		for (final int strategy : strategies) {
 			try {
-				results.add(PngtasticCompressionHandler.this.deflateImageData(inflatedImageData, strategy, compressionLevel));
+				results.add(PngtasticCompressionHandler.this.deflateImageData(inflatedImageData, strategy, compressionLevel, metrics));
+			} catch (InterruptedIOException e) {
+				throw e;
 			} catch (Throwable e) {
 				PngtasticCompressionHandler.this.log.error("Uncaught Exception: %s", e.getMessage());
 			}
@@ -113,42 +165,105 @@ public class PngtasticCompressionHandler implements PngCompressionHandler {
 	}
 
 	/* */
-	private byte[] deflateImageData(PngByteArrayOutputStream inflatedImageData, int strategy, Integer compressionLevel) throws IOException {
+	private byte[] deflateImageData(PngImageBuffer inflatedImageData, int strategy, Integer compressionLevel, PngMetrics metrics)
+			throws IOException {
+
+		final PngCodecPool pool = PngCodecPool.get();
 		byte[] result = null;
 		int bestCompression = Deflater.BEST_COMPRESSION;
 
-		if (compressionLevel == null || compressionLevel > Deflater.BEST_COMPRESSION || compressionLevel < Deflater.NO_COMPRESSION) {
-			for (int compression = Deflater.BEST_COMPRESSION; compression > Deflater.NO_COMPRESSION; compression--) {
-				final ByteArrayOutputStream deflatedOut = deflate(inflatedImageData, strategy, compression);
+		try {
+			if (compressionLevel == null || compressionLevel > Deflater.BEST_COMPRESSION || compressionLevel < Deflater.NO_COMPRESSION) {
+				for (int compression = Deflater.BEST_COMPRESSION; compression > Deflater.NO_COMPRESSION; compression--) {
+					checkInterrupted();
+					final long start = System.nanoTime();
+					final int length = deflate(pool, inflatedImageData, strategy, compression);
+					record(metrics, strategy, compression, start, inflatedImageData, length);
 
-				if (result == null || (result.length > deflatedOut.size())) {
-					result = deflatedOut.toByteArray();
-					bestCompression = compression;
+					// only the best attempt so far is copied out of the scratch buffer
+					if (result == null || (result.length > length)) {
+						result = Arrays.copyOf(pool.output(length), length);
+						bestCompression = compression;
+					}
 				}
+			} else {
+				final long start = System.nanoTime();
+				final int length = deflate(pool, inflatedImageData, strategy, compressionLevel);
+				record(metrics, strategy, compressionLevel, start, inflatedImageData, length);
+				result = Arrays.copyOf(pool.output(length), length);
+				bestCompression = compressionLevel;
 			}
-		} else {
-			result = deflate(inflatedImageData, strategy, compressionLevel).toByteArray();
-			bestCompression = compressionLevel;
+		} finally {
+			pool.trim();
 		}
 		log.debug("Compression strategy: %s, compression level=%d, bytes=%d", strategy, bestCompression, (result == null) ? -1 : result.length);
 
 		return result;
 	}
 
+	/*
+	 * Deflate into the pool's scratch output buffer with the pool's deflater,
+	 * returning the number of bytes written. Output is produced a block at a
+	 * time so that an interrupt can stop a trial on a large image early.
+	 */
+	private int deflate(PngCodecPool pool, PngImageBuffer inflatedImageData, int strategy, int compression) throws InterruptedIOException {
+		final Deflater deflater = pool.deflater(compression, strategy);
+		final ByteBuffer input = inflatedImageData.getByteBuffer();
+		byte[] output = pool.output(input.remaining() / 2 + 64);
+		int length = 0;
+
+		if (input.hasArray()) {
+			deflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+			deflater.finish();
+		} else if (!input.hasRemaining()) {
+			deflater.finish();
+		}
+		while (!deflater.finished()) {
+			if (deflater.needsInput() && input.hasRemaining() && !input.hasArray()) {
+				// off-heap data has to pass through the deflater a block at a time
+				final byte[] block = pool.block();
+				final int blockLength = Math.min(block.length, input.remaining());
+				input.get(block, 0, blockLength);
+				deflater.setInput(block, 0, blockLength);
+				if (!input.hasRemaining()) {
+					deflater.finish();
+				}
+			}
+			if (length == output.length) {
+				output = pool.output(length + 1);
+			}
+			length += deflater.deflate(output, length, Math.min(output.length - length, OUTPUT_BLOCK_SIZE));
+			checkInterrupted();
+		}
+
+		return length;
+	}
+
 	/* */
-	private ByteArrayOutputStream deflate(PngByteArrayOutputStream inflatedImageData, int strategy, int compression) throws IOException {
-		final ByteArrayOutputStream deflatedOut = new ByteArrayOutputStream();
-		final Deflater deflater = new Deflater(compression);
-		deflater.setStrategy(strategy);
+	private static void record(PngMetrics metrics, int strategy, int compression, long start, PngImageBuffer inflatedImageData, int length) {
+		if (metrics != null) {
+			metrics.recordCompression(strategyName(strategy), compression, 0, start, inflatedImageData.len(), length);
+		}
+	}
 
-		try {
-			final DeflaterOutputStream stream = new DeflaterOutputStream(deflatedOut, deflater);
-			stream.write(inflatedImageData.get(), 0, inflatedImageData.len());
-			stream.close();
-		} finally {
-			deflater.end();
+	/* */
+	private static String strategyName(int strategy) {
+		switch (strategy) {
+			case Deflater.FILTERED:
+				return "FILTERED";
+
+			case Deflater.HUFFMAN_ONLY:
+				return "HUFFMAN_ONLY";
+
+			default:
+				return "DEFAULT";
 		}
+	}
 
-		return deflatedOut;
+	/* */
+	private static void checkInterrupted() throws InterruptedIOException {
+		if (Thread.currentThread().isInterrupted()) {
+			throw new InterruptedIOException("Compression interrupted");
+		}
 	}
 }
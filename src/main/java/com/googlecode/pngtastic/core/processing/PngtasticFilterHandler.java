@@ -50,7 +50,7 @@ public class PngtasticFilterHandler implements PngFilterHandler {
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void applyAdaptiveFiltering(PngByteArrayOutputStream inflatedImageData, List<byte[]> scanlines, Map<PngFilterType, List<byte[]>> filteredScanLines, int sampleSize) throws IOException {
+	public void applyAdaptiveFiltering(PngImageBuffer inflatedImageData, List<byte[]> scanlines, Map<PngFilterType, List<byte[]>> filteredScanLines, int sampleSize) throws IOException {
 		for (int s = 0; s < scanlines.size(); s++) {
 			long bestSum = Long.MAX_VALUE;
 			PngFilterType bestFilterType = null;
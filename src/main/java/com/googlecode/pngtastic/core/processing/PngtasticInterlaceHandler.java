@@ -3,9 +3,15 @@ package com.googlecode.pngtastic.core.processing;
 import com.googlecode.pngtastic.core.Logger;
 import com.googlecode.pngtastic.core.PngException;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * Implement PNG interlacing and deinterlacing
@@ -26,6 +32,9 @@ public class PngtasticInterlaceHandler implements PngInterlaceHandler {
 	private static final int[] interlaceRowIncrement 	= new int[] { 8, 8, 8, 4, 4, 2, 2 };
 	private static final int[] interlaceColIncrement 	= new int[] { 8, 8, 4, 4, 2, 2, 1 };
 
+	/** interlaced data shorter than this is de-interlaced on the calling thread */
+	private static final int MIN_CONCURRENT_LENGTH = 256 * 1024;
+
 	/** */
 	public PngtasticInterlaceHandler(Logger log, PngFilterHandler pngFilterHandler) {
 		this.log = log;
@@ -48,52 +57,226 @@ public class PngtasticInterlaceHandler implements PngInterlaceHandler {
 		throw new RuntimeException("Not implemented");
 	}
 
+	/**
+	 * Get the total length of the seven filtered sub images making up the
+	 * interlaced data, including each row's filter type byte.
+	 */
+	public static int getInterlacedLength(int width, int height, int sampleBitCount) {
+		return getPassOffsets(width, height, sampleBitCount)[7];
+	}
+
+	/*
+	 * Where each pass's filtered sub image starts in the interlaced data,
+	 * with the total length at index 7. Passes with no rows or no columns
+	 * take up no space at all, not even filter type bytes.
+	 */
+	private static int[] getPassOffsets(int width, int height, int sampleBitCount) {
+		final int[] offsets = new int[8];
+		for (int pass = 0; pass < 7; pass++) {
+			final int subImageRows = getPassRows(pass, height);
+			final int subImageCols = getPassCols(pass, width);
+			offsets[pass + 1] = offsets[pass];
+			if (subImageRows > 0 && subImageCols > 0) {
+				offsets[pass + 1] += subImageRows * getRowLength(subImageCols, sampleBitCount);
+			}
+		}
+		return offsets;
+	}
+
+	/**
+	 * Get the number of rows in the sub image of the given pass (0 to 6),
+	 * which is zero or less if the pass is empty.
+	 */
+	public static int getPassRows(int pass, int height) {
+		return ((height - interlaceRowOffset[pass]) + (interlaceRowIncrement[pass] - 1)) / interlaceRowIncrement[pass];
+	}
+
+	/**
+	 * Get the number of columns in the sub image of the given pass (0 to 6),
+	 * which is zero or less if the pass is empty.
+	 */
+	public static int getPassCols(int pass, int width) {
+		return ((width - interlaceColOffset[pass]) + (interlaceColIncrement[pass] - 1)) / interlaceColIncrement[pass];
+	}
+
+	/**
+	 * Get the image column of the given column of a pass's sub image.
+	 */
+	public static int getImageX(int pass, int col) {
+		return col * interlaceColIncrement[pass] + interlaceColOffset[pass];
+	}
+
+	/**
+	 * Get the image row of the given row of a pass's sub image.
+	 */
+	public static int getImageY(int pass, int row) {
+		return row * interlaceRowIncrement[pass] + interlaceRowOffset[pass];
+	}
+
+	/* A filtered row of the given number of pixels, including the filter type byte */
+	private static int getRowLength(int cols, int sampleBitCount) {
+		return (int) (((long) cols * sampleBitCount + 7) / 8) + 1;
+	}
+
 	/**
 	 * {@inheritDoc}
+	 *
+	 * The passes are independent once their offsets are known, so on large
+	 * images they are de-filtered concurrently. The last pass holds every
+	 * odd row of the image in full, so it is de-filtered in place in the
+	 * result rows. The other six passes are de-filtered into their own rows
+	 * and then scattered into the even result rows, split into bands of rows
+	 * so that no two threads ever write to the same byte, which matters for
+	 * images with less than 8 bits per pixel.
 	 */
 	@Override
-	public List<byte[]> deInterlace(int width, int height, int sampleBitCount, PngByteArrayOutputStream inflatedImageData) {
+	public List<byte[]> deInterlace(final int width, final int height, final int sampleBitCount, PngImageBuffer inflatedImageData) {
 		log.debug("Deinterlacing");
 
-		final int sampleSize = Math.max(1, sampleBitCount / 8);
-		// final int sampleSize = sampleBitCount;//Math.max(1, sampleBitCount / 8);
-		final byte[][] rows = new byte[height][Double.valueOf(Math.ceil(width * sampleBitCount / 8D)).intValue() + 1];
+		final int[] passOffsets = getPassOffsets(width, height, sampleBitCount);
+		final byte[][] rows = new byte[height][getRowLength(width, sampleBitCount)];
+		final byte[][][] passRows = new byte[7][][];
+		final ByteBuffer data = inflatedImageData.getByteBuffer();
+		final boolean concurrent = passOffsets[7] >= MIN_CONCURRENT_LENGTH;
 
-		int subImageOffset = 0;
-		for (int pass = 0; pass < 7; pass++) {
-			final int subImageRows = (((height - interlaceRowOffset[pass]) + (interlaceRowIncrement[pass] - 1)) / interlaceRowIncrement[pass]);
-			final int subImageCols = (((width - interlaceColOffset[pass]) + (interlaceColIncrement[pass] - 1)) / interlaceColIncrement[pass]);
-			final int rowLength = Double.valueOf(Math.ceil(subImageCols * sampleBitCount / 8D)).intValue() + 1;
-			final int ci = interlaceColIncrement[pass] * sampleSize;
-			final int co = interlaceColOffset[pass] * sampleSize;
-			final int ri = interlaceRowIncrement[pass];
-			final int ro = interlaceRowOffset[pass];
-
-			byte[] previousRow = new byte[rowLength];
-			int offset = 0;
-			for (int i = 0; i < subImageRows; i++) {
-				offset = subImageOffset + i * rowLength;
-				final byte[] row = new byte[rowLength];
-				System.arraycopy(inflatedImageData.get(), offset, row, 0, rowLength);
-				try {
-					pngFilterHandler.deFilter(row, previousRow, sampleBitCount);
-				} catch (PngException e) {
-					log.error("Error: %s", e.getMessage());
+		final List<Callable<Object>> defilterTasks = new ArrayList<>();
+		for (int p = 0; p < 7; p++) {
+			final int pass = p;
+			final ByteBuffer passData = data.duplicate();
+			passData.position(Math.min(passOffsets[pass], passData.limit()));
+			defilterTasks.add(Executors.callable(new Runnable() {
+				@Override
+				public void run() {
+					if (pass == 6) {
+						defilterLastPass(passData, rows, sampleBitCount);
+					} else {
+						passRows[pass] = defilterPass(pass, passData, width, height, sampleBitCount);
+					}
 				}
+			}));
+		}
+		run(defilterTasks, concurrent);
 
-//				final int samples = (row.length * sampleSize - sampleSize) / sampleSize;
-//				for (int sample = 0; sample < samples; sample += sampleSize) {
-				final int samples = (row.length - 1) / sampleSize;
-				for (int sample = 0; sample < samples; sample++) {
-					for (int b = 0; b < sampleSize; b++) {
-						rows[i * ri + ro][sample * ci + co + b + 1] = row[(sample * sampleSize) + b + 1];
+		final List<Callable<Object>> scatterTasks = new ArrayList<>();
+		final int bands = (concurrent) ? Math.min(Runtime.getRuntime().availableProcessors(), (height + 15) / 16) : 1;
+		for (int b = 0; b < bands; b++) {
+			final int fromRow = (int) ((long) height * b / bands);
+			final int toRow = (int) ((long) height * (b + 1) / bands);
+			scatterTasks.add(Executors.callable(new Runnable() {
+				@Override
+				public void run() {
+					for (int pass = 0; pass < 6; pass++) {
+						scatter(pass, passRows[pass], rows, fromRow, toRow, getPassCols(pass, width), sampleBitCount);
 					}
 				}
-				previousRow = row.clone();
-			}
-			subImageOffset = offset + rowLength;
+			}));
 		}
+		run(scatterTasks, concurrent);
 
 		return new ArrayList<>(Arrays.asList(rows));
 	}
+
+	/* De-filter the last pass, which is every odd row in full, straight into the result rows */
+	private void defilterLastPass(ByteBuffer data, byte[][] rows, int sampleBitCount) {
+		byte[] previousRow = new byte[(rows.length > 1) ? rows[1].length : 0];
+		for (int y = 1; y < rows.length; y += 2) {
+			final byte[] row = rows[y];
+			data.get(row, 0, row.length);
+			defilter(row, previousRow, sampleBitCount);
+			previousRow = row;
+		}
+		for (int y = 1; y < rows.length; y += 2) {
+			// like every other de-interlaced row, these are left unfiltered
+			rows[y][0] = 0;
+		}
+	}
+
+	/* De-filter one of the first six passes into rows of its own */
+	private byte[][] defilterPass(int pass, ByteBuffer data, int width, int height, int sampleBitCount) {
+		final int subImageRows = getPassRows(pass, height);
+		final int subImageCols = getPassCols(pass, width);
+		if (subImageRows <= 0 || subImageCols <= 0) {
+			return new byte[0][];
+		}
+
+		final int rowLength = getRowLength(subImageCols, sampleBitCount);
+		final byte[][] subImage = new byte[subImageRows][rowLength];
+		byte[] previousRow = new byte[rowLength];
+		for (int i = 0; i < subImageRows; i++) {
+			final byte[] row = subImage[i];
+			data.get(row, 0, rowLength);
+			defilter(row, previousRow, sampleBitCount);
+			previousRow = row;
+		}
+		return subImage;
+	}
+
+	/* */
+	private void defilter(byte[] row, byte[] previousRow, int sampleBitCount) {
+		try {
+			pngFilterHandler.deFilter(row, previousRow, sampleBitCount);
+		} catch (PngException e) {
+			log.error("Error: %s", e.getMessage());
+		}
+	}
+
+	/* Copy the pixels of a de-filtered pass into the result rows from fromRow (inclusive) to toRow (exclusive) */
+	private static void scatter(int pass, byte[][] subImage, byte[][] rows, int fromRow, int toRow, int subImageCols, int sampleBitCount) {
+		final int ri = interlaceRowIncrement[pass];
+		final int ro = interlaceRowOffset[pass];
+		final int ci = interlaceColIncrement[pass];
+		final int co = interlaceColOffset[pass];
+
+		// the first sub image row at or below fromRow
+		for (int i = Math.max(0, (fromRow - ro + ri - 1) / ri), y = i * ri + ro; i < subImage.length && y < toRow; i++, y += ri) {
+			final byte[] source = subImage[i];
+			final byte[] target = rows[y];
+			if (sampleBitCount >= 8) {
+				final int pixelSize = sampleBitCount / 8;
+				final int step = ci * pixelSize;
+				if (pixelSize == 1) {
+					for (int s = 1, t = co + 1; s < source.length; s++, t += step) {
+						target[t] = source[s];
+					}
+				} else {
+					for (int s = 1, t = co * pixelSize + 1; s < source.length; s += pixelSize, t += step) {
+						System.arraycopy(source, s, target, t, pixelSize);
+					}
+				}
+			} else {
+				// samples are packed from the high bit down, and the target row starts out all zeros
+				final int mask = (1 << sampleBitCount) - 1;
+				for (int sample = 0, x = co; sample < subImageCols; sample++, x += ci) {
+					final int sourceBit = sample * sampleBitCount;
+					final int value = (source[1 + (sourceBit >> 3)] >> (8 - sampleBitCount - (sourceBit & 7))) & mask;
+					final int targetBit = x * sampleBitCount;
+					target[1 + (targetBit >> 3)] |= value << (8 - sampleBitCount - (targetBit & 7));
+				}
+			}
+		}
+	}
+
+	/* Run the tasks, rethrowing the first failure */
+	private static void run(List<Callable<Object>> tasks, boolean concurrent) {
+		try {
+			if (concurrent) {
+				for (Future<Object> future : ForkJoinPool.commonPool().invokeAll(tasks)) {
+					future.get();
+				}
+			} else {
+				for (Callable<Object> task : tasks) {
+					task.call();
+				}
+			}
+		} catch (ExecutionException e) {
+			throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : new PngException(e.getMessage(), e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new PngException("Deinterlacing interrupted", e);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new PngException(e);
+		}
+	}
 }
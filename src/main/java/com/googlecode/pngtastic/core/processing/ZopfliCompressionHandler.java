@@ -1,11 +1,14 @@
 package com.googlecode.pngtastic.core.processing;
 
 import com.googlecode.pngtastic.core.Logger;
+import com.googlecode.pngtastic.core.PngMetrics;
 import com.googlecode.pngtastic.core.processing.zopfli.Options;
 import com.googlecode.pngtastic.core.processing.zopfli.Zopfli;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
 
 /**
  * Implements PNG compression and decompression
@@ -36,9 +39,38 @@ public class ZopfliCompressionHandler implements PngCompressionHandler {
      */
     @Override
     public byte[] deflate(PngByteArrayOutputStream inflatedImageData, Integer compressionLevel, boolean concurrent) throws IOException {
+        return deflate((PngImageBuffer) inflatedImageData, compressionLevel, concurrent, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public byte[] deflate(PngImageBuffer inflatedImageData, Integer compressionLevel, boolean concurrent) throws IOException {
+        return deflate(inflatedImageData, compressionLevel, concurrent, null);
+    }
+
+    /**
+     * {@inheritDoc}
+     * Zopfli's iterations all refine a single compression, so they are
+     * recorded as one trial, with its iteration count.
+     */
+    @Override
+    public byte[] deflate(PngImageBuffer inflatedImageData, Integer compressionLevel, boolean concurrent, PngMetrics metrics)
+            throws IOException {
+        final long start = System.nanoTime();
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        zopfli.compress(options, inflatedImageData.toByteArray(), byteArrayOutputStream);
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("Compression interrupted");
+        }
+        final ByteBuffer input = inflatedImageData.getByteBuffer();
+        final byte[] bytes = new byte[input.remaining()];
+        input.get(bytes);
+        zopfli.compress(options, bytes, byteArrayOutputStream);
         log.debug("Compression strategy: zopfli, bytes=%d", byteArrayOutputStream.size());
+        if (metrics != null) {
+            metrics.recordCompression(PngMetrics.ZOPFLI, null, options.numIterations, start, bytes.length, byteArrayOutputStream.size());
+        }
 
         return byteArrayOutputStream.toByteArray();
     }
@@ -0,0 +1,125 @@
+package com.googlecode.pngtastic.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that copying between file channels writes the same bytes as
+ * copying between streams, whichever chunks are stripped, inserted or
+ * replaced.
+ */
+class PngChunkCopierTest {
+
+	private static final String DIR = "images/optimizer/pngsuite/";
+
+	private static final PngChunk GAMMA = new PngChunk(type("gAMA"), new byte[] { 0, 0, (byte) 0xb1, (byte) 0x8f });
+	private static final PngChunk TEXT = new PngChunk(type("tEXt"), "Comment\0copied".getBytes(StandardCharsets.ISO_8859_1));
+
+	@Test
+	void copyAsItIs() throws Exception {
+		assertSameCopies(new Copier() {
+			@Override
+			public PngChunkCopier copier() {
+				return new PngChunkCopier(new PngChunkPolicy());
+			}
+		});
+	}
+
+	@Test
+	void strip() throws Exception {
+		assertSameCopies(new Copier() {
+			@Override
+			public PngChunkCopier copier() {
+				return new PngChunkCopier(PngChunkPolicy.required(true));
+			}
+		});
+		assertSameCopies(new Copier() {
+			@Override
+			public PngChunkCopier copier() {
+				return new PngChunkCopier(PngChunkPolicy.required(false));
+			}
+		});
+	}
+
+	@Test
+	void insert() throws Exception {
+		assertSameCopies(new Copier() {
+			@Override
+			public PngChunkCopier copier() {
+				return new PngChunkCopier(new PngChunkPolicy()).insert(GAMMA).insert(TEXT);
+			}
+		});
+	}
+
+	@Test
+	void replace() throws Exception {
+		assertSameCopies(new Copier() {
+			@Override
+			public PngChunkCopier copier() {
+				return new PngChunkCopier(new PngChunkPolicy()).replace(GAMMA).replace(PngChunkInserter.dpiChunk(300));
+			}
+		});
+	}
+
+	@Test
+	void stripAndInsert() throws Exception {
+		assertSameCopies(new Copier() {
+			@Override
+			public PngChunkCopier copier() {
+				return new PngChunkCopier(PngChunkPolicy.required(true)).insert(TEXT).replace(PngChunkInserter.dpiChunk(72));
+			}
+		});
+	}
+
+	/* Makes a copier, so that each copy starts from a new one set up the same way */
+	private interface Copier {
+		PngChunkCopier copier();
+	}
+
+	/* Copy each of the test suite's images, less the corrupt ones, both ways */
+	private static void assertSameCopies(Copier copier) throws IOException {
+		for (final String file : new File(DIR).list()) {
+			if (!file.endsWith(".png") || file.startsWith("x")) {
+				continue;
+			}
+
+			final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+			final long streamedLength;
+			try (final InputStream ins = new FileInputStream(DIR + file)) {
+				streamedLength = copier.copier().copy(ins, streamed);
+			}
+
+			final File channelled = File.createTempFile("pngtastic", ".png");
+			try {
+				final long channelledLength;
+				try (final FileChannel input = FileChannel.open(new File(DIR + file).toPath(), StandardOpenOption.READ);
+				     final FileChannel output = FileChannel.open(channelled.toPath(), StandardOpenOption.WRITE)) {
+					channelledLength = copier.copier().copy(input, output);
+				}
+
+				assertEquals(streamed.size(), streamedLength, file);
+				assertEquals(streamedLength, channelledLength, file);
+				assertTrue(Arrays.equals(streamed.toByteArray(), Files.readAllBytes(channelled.toPath())), file);
+			} finally {
+				channelled.delete();
+			}
+		}
+	}
+
+	private static byte[] type(String type) {
+		return type.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,163 @@
+package com.googlecode.pngtastic.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks which chunks a chunk policy keeps, that the chunk copier follows
+ * it, and that images with unknown critical chunks aren't re-encoded.
+ */
+class PngChunkPolicyTest {
+
+	private static final String DIR = "images/optimizer/pngsuite/";
+
+	@Test
+	void criticalChunksAreKept() {
+		final PngChunkPolicy policy = new PngChunkPolicy().strip("IHDR", "PLTE", "IDAT", "IEND", "CgBI");
+		policy.setStripAncillary(true);
+
+		for (final String type : Arrays.asList("IHDR", "PLTE", "IDAT", "IEND", "CgBI")) {
+			assertTrue(policy.keeps(type(type), 0), type);
+		}
+	}
+
+	@Test
+	void transparencyIsKept() {
+		final PngChunkPolicy policy = new PngChunkPolicy().strip("tRNS");
+		policy.setStripAncillary(true);
+
+		assertTrue(policy.keeps(type("tRNS"), 1));
+	}
+
+	@Test
+	void required() {
+		assertTrue(PngChunkPolicy.required(false).keeps(type("gAMA"), 4));
+		assertFalse(PngChunkPolicy.required(true).keeps(type("gAMA"), 4));
+		assertTrue(PngChunkPolicy.required(true).keeps(type("cHRM"), 32));
+		assertFalse(PngChunkPolicy.required(false).keeps(type("tEXt"), 10));
+		assertFalse(PngChunkPolicy.required(false).keeps(type("pHYs"), 9));
+		assertFalse(PngChunkPolicy.required(false).keeps(type("sRGB"), 1));
+	}
+
+	@Test
+	void keepAndStrip() {
+		final PngChunkPolicy policy = new PngChunkPolicy().keep("pHYs").strip("TIME");
+		policy.setStripAncillary(true);
+
+		assertTrue(policy.keeps(type("pHYs"), 9));
+		// types are matched ignoring case
+		assertFalse(policy.keeps(type("tIME"), 7));
+		assertFalse(policy.keeps(type("bKGD"), 6));
+
+		// the latest of keep and strip wins
+		policy.keep("tIME");
+		assertTrue(policy.keeps(type("tIME"), 7));
+	}
+
+	@Test
+	void textLength() {
+		final PngChunkPolicy policy = new PngChunkPolicy();
+		policy.setMaxTextLength(10);
+
+		assertTrue(policy.keeps(type("tEXt"), 9));
+		assertFalse(policy.keeps(type("zTXt"), 10));
+		assertTrue(policy.keeps(type("bKGD"), 100));
+	}
+
+	@Test
+	void colorManagement() {
+		final PngChunkPolicy policy = new PngChunkPolicy();
+		policy.setStripAncillary(true);
+		policy.setKeepColorManagement(true);
+
+		for (final String type : Arrays.asList("gAMA", "cHRM", "sRGB", "iCCP")) {
+			assertTrue(policy.keeps(type(type), 4), type);
+		}
+		assertFalse(policy.keeps(type("tEXt"), 4));
+	}
+
+	@Test
+	void copy() throws Exception {
+		// an image with an unknown critical chunk, as an apple optimized png has
+		final PngChunk unknownCritical = new PngChunk(type("CgBI"), new byte[] { 0x50, 0x00, 0x20, 0x06 });
+		final byte[] image = copy(read("ctzn0g04.png"), new PngChunkPolicy(), unknownCritical);
+		assertEquals(Arrays.asList("IHDR", "gAMA", "tEXt", "zTXt", "CgBI", "IDAT", "IEND"), types(image));
+
+		assertEquals(Arrays.asList("IHDR", "CgBI", "IDAT", "IEND"), types(copy(image, PngChunkPolicy.required(true))));
+		assertEquals(Arrays.asList("IHDR", "gAMA", "CgBI", "IDAT", "IEND"), types(copy(image, PngChunkPolicy.required(false))));
+
+		final PngChunkPolicy strippingAll = new PngChunkPolicy().strip("CgBI");
+		strippingAll.setStripAncillary(true);
+		assertEquals(Arrays.asList("IHDR", "CgBI", "IDAT", "IEND"), types(copy(image, strippingAll)));
+	}
+
+	@Test
+	void reencodingRejectsUnknownCriticalChunks() throws Exception {
+		final PngChunk unknownCritical = new PngChunk(type("CgBI"), new byte[] { 0x50, 0x00, 0x20, 0x06 });
+		final PngImage image = new PngImage(copy(read("basn6a08.png"), new PngChunkPolicy(), unknownCritical));
+
+		final PngException optimizing = assertThrows(PngException.class, new Executable() {
+			@Override
+			public void execute() throws Throwable {
+				new PngOptimizer("none").optimize(image, false, 9);
+			}
+		});
+		assertTrue(optimizing.getMessage().contains("CgBI"));
+
+		final PngException layering = assertThrows(PngException.class, new Executable() {
+			@Override
+			public void execute() throws Throwable {
+				new PngLayerer("none").layer(new PngImage(DIR + "basn6a08.png", "none"),
+						Collections.singletonList(new PngLayer(image)), 9);
+			}
+		});
+		assertTrue(layering.getMessage().contains("CgBI"));
+	}
+
+	/* A copy of the image, through a copier with the given policy that inserts the given chunks */
+	private static byte[] copy(byte[] image, PngChunkPolicy policy, PngChunk... chunks) throws IOException {
+		final PngChunkCopier copier = new PngChunkCopier(policy);
+		for (PngChunk chunk : chunks) {
+			copier.insert(chunk);
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		copier.copy(new ByteArrayInputStream(image), bytes);
+		return bytes.toByteArray();
+	}
+
+	private static byte[] read(String file) throws IOException {
+		return Files.readAllBytes(new File(DIR + file).toPath());
+	}
+
+	/* The types of the image's chunks in order, with each run of chunks of one type counted once */
+	private static List<String> types(byte[] bytes) {
+		final List<String> types = new ArrayList<>();
+		for (PngChunk chunk : new PngImage(bytes).getChunks()) {
+			final String type = chunk.getTypeString();
+			if (types.isEmpty() || !types.get(types.size() - 1).equals(type)) {
+				types.add(type);
+			}
+		}
+		return types;
+	}
+
+	private static byte[] type(String type) {
+		return type.getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
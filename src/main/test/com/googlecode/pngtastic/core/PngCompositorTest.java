@@ -0,0 +1,188 @@
+package com.googlecode.pngtastic.core;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the compositing kernels against the compositing spec's formulas,
+ * worked out in floating point.
+ */
+class PngCompositorTest {
+
+	private static final int[] SAMPLES = { 0, 1, 64, 127, 128, 200, 254, 255 };
+	private static final int[] ALPHAS = { 0, 1, 77, 128, 254, 255 };
+
+	/* the blended colour is rounded before it is composited, which is rounded again */
+	private static final double TOLERANCE = 1.5;
+
+	@Test
+	void div255() {
+		for (int x = 0; x <= 255 * 255; x++) {
+			assertTrue(PngCompositor.div255(x) == Math.round(x / 255.0), "div255(" + x + ")");
+		}
+	}
+
+	@Test
+	void div65535() {
+		for (long a = 0; a <= 0xffff; a += 257) {
+			for (long b = 0; b <= 0xffff; b += 13) {
+				final long x = a * b;
+				assertTrue(PngCompositor.div65535(x) == Math.round(x / 65535.0), "div65535(" + x + ")");
+			}
+		}
+	}
+
+	@Test
+	void blend8() {
+		for (PngBlendMode mode : PngBlendMode.values()) {
+			for (int sa : ALPHAS) {
+				for (int da : ALPHAS) {
+					for (int cs : SAMPLES) {
+						for (int cb : SAMPLES) {
+							final byte[] src = { (byte) cs, (byte) cb, (byte) (255 - cs), (byte) sa };
+							final byte[] dst = { (byte) cb, (byte) (255 - cs), (byte) cs, (byte) da };
+							final double[] expected = reference(mode, src, dst, 255);
+
+							composite8(mode, src, dst);
+							for (int i = 0; i < 4; i++) {
+								assertTrue(Math.abs((dst[i] & 0xff) - expected[i]) <= TOLERANCE,
+										String.format("%s %d,%d over %d,%d sample %d: %d, expected %.2f",
+												mode, cs, sa, cb, da, i, dst[i] & 0xff, expected[i]));
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void blend16() {
+		for (PngBlendMode mode : PngBlendMode.values()) {
+			for (int sa : ALPHAS) {
+				for (int da : ALPHAS) {
+					for (int cs : SAMPLES) {
+						for (int cb : SAMPLES) {
+							// odd low bytes, so the samples aren't all multiples of 257
+							final byte[] src = wide(cs * 257 ^ 0x35, cb * 257, (255 - cs) * 257, sa * 257);
+							final byte[] dst = wide(cb * 257, (255 - cs) * 257 ^ 0x53, cs * 257, da * 257);
+							final double[] expected = reference(mode, narrow(src), narrow(dst), 65535);
+
+							composite16(mode, src, dst);
+							final int[] actual = narrow(dst);
+							for (int i = 0; i < 4; i++) {
+								assertTrue(Math.abs(actual[i] - expected[i]) <= TOLERANCE,
+										String.format("%s %d,%d over %d,%d sample %d: %d, expected %.2f",
+												mode, cs, sa, cb, da, i, actual[i], expected[i]));
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/* Composite one pixel the way the layerer does, blending first unless the mode is normal */
+	private static void composite8(PngBlendMode mode, byte[] src, byte[] dst) {
+		byte[] source = src;
+		if (mode != PngBlendMode.NORMAL) {
+			source = new byte[4];
+			PngCompositor.blend8(mode, src, 0, dst, 0, source, 0, 1);
+		}
+		PngCompositor.over8(source, 0, dst, 0, 1);
+	}
+
+	/* */
+	private static void composite16(PngBlendMode mode, byte[] src, byte[] dst) {
+		byte[] source = src;
+		if (mode != PngBlendMode.NORMAL) {
+			source = new byte[8];
+			PngCompositor.blend16(mode, src, 0, dst, 0, source, 0, 1);
+		}
+		PngCompositor.over16(source, 0, dst, 0, 1);
+	}
+
+	/*
+	 * The composited pixel, from https://www.w3.org/TR/compositing-1/: the
+	 * source colour is mixed with the blended colour by the backdrop's alpha,
+	 * then composited source-over, and un-premultiplied.
+	 */
+	private static double[] reference(PngBlendMode mode, byte[] src, byte[] dst, int max) {
+		final int[] s = new int[4];
+		final int[] d = new int[4];
+		for (int i = 0; i < 4; i++) {
+			s[i] = src[i] & 0xff;
+			d[i] = dst[i] & 0xff;
+		}
+		return reference(mode, s, d, max);
+	}
+
+	/* */
+	private static double[] reference(PngBlendMode mode, int[] src, int[] dst, int max) {
+		final double as = src[3] / (double) max;
+		final double ab = dst[3] / (double) max;
+		final double ao = as + ab * (1 - as);
+
+		final double[] result = new double[4];
+		for (int c = 0; c < 3; c++) {
+			if (ao == 0) {
+				// nothing over nothing leaves the destination as it was
+				result[c] = dst[c];
+				continue;
+			}
+			final double cs = src[c] / (double) max;
+			final double cb = dst[c] / (double) max;
+			final double mixed = (1 - ab) * cs + ab * blend(mode, cb, cs);
+			result[c] = (as * mixed + (1 - as) * ab * cb) / ao * max;
+		}
+		result[3] = ao * max;
+		return result;
+	}
+
+	/* */
+	private static double blend(PngBlendMode mode, double cb, double cs) {
+		switch (mode) {
+			case MULTIPLY:
+				return cb * cs;
+
+			case SCREEN:
+				return cb + cs - cb * cs;
+
+			case OVERLAY:
+				// hard light with the layers swapped
+				return (cb <= 0.5) ? cs * 2 * cb : blend(PngBlendMode.SCREEN, 2 * cb - 1, cs);
+
+			case DARKEN:
+				return Math.min(cb, cs);
+
+			case LIGHTEN:
+				return Math.max(cb, cs);
+
+			case DIFFERENCE:
+				return Math.abs(cb - cs);
+
+			default:
+				return cs;
+		}
+	}
+
+	/* */
+	private static byte[] wide(int... samples) {
+		final byte[] pixel = new byte[samples.length * 2];
+		for (int i = 0; i < samples.length; i++) {
+			pixel[i * 2] = (byte) (samples[i] >>> 8);
+			pixel[i * 2 + 1] = (byte) samples[i];
+		}
+		return pixel;
+	}
+
+	/* */
+	private static int[] narrow(byte[] pixel) {
+		final int[] samples = new int[pixel.length / 2];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = ((pixel[i * 2] & 0xff) << 8) | (pixel[i * 2 + 1] & 0xff);
+		}
+		return samples;
+	}
+}
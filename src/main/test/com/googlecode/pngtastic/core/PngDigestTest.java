@@ -0,0 +1,76 @@
+package com.googlecode.pngtastic.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Checks which images the pixel digest finds to be duplicates: those with
+ * the same pixels and the same kept chunks, however they are encoded.
+ */
+class PngDigestTest {
+
+	private static final String DIR = "images/optimizer/pngsuite/";
+
+	private final PngDigest digest = new PngDigest("none");
+
+	@Test
+	void interlacingIsIgnored() throws Exception {
+		assertEquals(digest.digestPixels(new PngImage(DIR + "basi0g08.png", "none")),
+				digest.digestPixels(new PngImage(DIR + "basn0g08.png", "none")));
+	}
+
+	@Test
+	void differentPixelsDiffer() throws Exception {
+		assertNotEquals(digest.digestPixels(new PngImage(DIR + "basn0g08.png", "none")),
+				digest.digestPixels(new PngImage(DIR + "basn2c08.png", "none")));
+	}
+
+	@Test
+	void strippedChunksAreIgnored() throws Exception {
+		final PngImage author = copy("basn2c08.png", text("Author", "a"));
+		final PngImage otherAuthor = copy("basn2c08.png", text("Author", "b"));
+
+		assertEquals(digest.digestPixels(author), digest.digestPixels(otherAuthor));
+		assertEquals(digest.digestPixels(author), digest.digestPixels(new PngImage(DIR + "basn2c08.png", "none")));
+	}
+
+	@Test
+	void keptChunksDiffer() throws Exception {
+		final PngChunkPolicy policy = PngChunkPolicy.required(false).keep("tEXt");
+		final PngImage author = copy("basn2c08.png", text("Author", "a"));
+		final PngImage otherAuthor = copy("basn2c08.png", text("Author", "b"));
+
+		assertNotEquals(digest.digestPixels(author, policy), digest.digestPixels(otherAuthor, policy));
+	}
+
+	@Test
+	void gammaIsKeptUnlessRemoved() throws Exception {
+		final PngImage image = new PngImage(DIR + "basn2c08.png", "none");
+		final PngImage otherGamma = copy("basn2c08.png", new PngChunk("gAMA".getBytes(StandardCharsets.ISO_8859_1), new byte[] { 0, 0, (byte) 0xb1, (byte) 0x8f }));
+
+		assertNotEquals(digest.digestPixels(image), digest.digestPixels(otherGamma));
+		assertEquals(digest.digestPixels(image, PngChunkPolicy.required(true)),
+				digest.digestPixels(otherGamma, PngChunkPolicy.required(true)));
+	}
+
+	/* A copy of the file with the chunk in place of any chunks of its type */
+	private static PngImage copy(String file, PngChunk chunk) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (final InputStream ins = new FileInputStream(DIR + file)) {
+			new PngChunkCopier(new PngChunkPolicy()).replace(chunk).copy(ins, bytes);
+		}
+		return new PngImage(bytes.toByteArray());
+	}
+
+	private static PngChunk text(String keyword, String text) {
+		return new PngChunk("tEXt".getBytes(StandardCharsets.ISO_8859_1), (keyword + '\0' + text).getBytes(StandardCharsets.ISO_8859_1));
+	}
+}
@@ -0,0 +1,185 @@
+package com.googlecode.pngtastic.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that the optimizer's recodings of an image leave its pixels as
+ * they were, however the image data is split into chunks, and that alpha
+ * cleanup changes only the colour of transparent pixels.
+ */
+class PngOptimizerTest {
+
+	private static final String DIR = "images/optimizer/pngsuite/";
+
+	@Test
+	void reduceColorsIsLossless() throws Exception {
+		for (final String file : files()) {
+			final PngOptimizer optimizer = new PngOptimizer("none");
+			optimizer.setReduceColors(true);
+			final byte[] reduced = optimize(optimizer, file);
+
+			assertTrue(Arrays.equals(readRGBA16(new PngImage(DIR + file, "none")), readRGBA16(new PngImage(reduced))), file);
+
+			// a reduction is only kept when it compresses smaller than the image as it came
+			final long original = new File(DIR + file).length();
+			assertTrue(reduced.length <= original, file + ": " + reduced.length + "B, " + original + "B originally");
+		}
+	}
+
+	@Test
+	void reorderPaletteIsLossless() throws Exception {
+		for (final String file : files()) {
+			final PngOptimizer optimizer = new PngOptimizer("none");
+			optimizer.setReduceColors(true);
+			optimizer.setReorderPalette(true);
+			final byte[] reordered = optimize(optimizer, file);
+
+			assertTrue(Arrays.equals(readRGBA16(new PngImage(DIR + file, "none")), readRGBA16(new PngImage(reordered))), file);
+		}
+	}
+
+	@Test
+	void recodingIsSearchedOnce() throws Exception {
+		for (final String file : Arrays.asList("basn2c08.png", "tp0n3p08.png", "s33n3p04.png", "basn3p08.png")) {
+			final PngOptimizer optimizer = new PngOptimizer("none");
+			optimizer.setReduceColors(true);
+			optimizer.setReorderPalette(true);
+
+			// recoding only adds quick estimates, the full search is run as often as without it
+			assertTrue(compressions(optimizer, file) == compressions(new PngOptimizer("none"), file), file);
+		}
+	}
+
+	@Test
+	void splitImageData() throws Exception {
+		final int limit = 64;
+		for (final String file : files()) {
+			final PngOptimizer optimizer = new PngOptimizer("none");
+			final int length = imageDataLength(new PngImage(optimize(optimizer, file)));
+			optimizer.setIdatChunkSize(limit);
+			// reading the image back checks each chunk's crc
+			final PngImage split = new PngImage(optimize(optimizer, file));
+
+			int count = 0;
+			int total = 0;
+			for (PngChunk chunk : split.getChunks()) {
+				if (PngChunk.IMAGE_DATA.equals(chunk.getTypeString())) {
+					assertTrue(chunk.getLength() <= limit, file + ": " + chunk.getLength() + "B chunk");
+					count++;
+					total += chunk.getLength();
+				}
+			}
+			assertEquals(length, total, file);
+			assertEquals((length + limit - 1) / limit, count, file);
+			assertTrue(Arrays.equals(readRGBA16(new PngImage(DIR + file, "none")), readRGBA16(split)), file);
+		}
+	}
+
+	@Test
+	void alphaCleanupOnlyChangesTransparentPixels() throws Exception {
+		for (final PngAlphaCleanup cleanup : PngAlphaCleanup.values()) {
+			for (final String file : files()) {
+				final PngOptimizer optimizer = new PngOptimizer("none");
+				optimizer.setAlphaCleanup(cleanup);
+				final byte[] original = readRGBA16(new PngImage(DIR + file, "none"));
+				final byte[] cleaned = readRGBA16(new PngImage(optimize(optimizer, file)));
+
+				for (int i = 0; i < original.length; i += 8) {
+					final String pixel = cleanup + " " + file + " pixel " + (i / 8);
+					if (original[i + 6] == 0 && original[i + 7] == 0) {
+						assertTrue(cleaned[i + 6] == 0 && cleaned[i + 7] == 0, pixel);
+					} else {
+						assertTrue(Arrays.equals(Arrays.copyOfRange(original, i, i + 8), Arrays.copyOfRange(cleaned, i, i + 8)), pixel);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	void alphaCleanupFill() {
+		// an opaque row, then a row with an opaque pixel and two transparent ones
+		final byte[] above = { 0, 5, 6, 7, (byte) 255, 8, 9, 10, (byte) 255, 11, 12, 13, (byte) 255 };
+		final byte[] row = { 0, 10, 20, 30, (byte) 255, 1, 2, 3, 0, 40, 50, 60, 0 };
+
+		assertArrayEquals(row, clean(PngAlphaCleanup.NONE, above, row));
+		assertArrayEquals(new byte[] { 0, 10, 20, 30, (byte) 255, 0, 0, 0, 0, 0, 0, 0, 0 }, clean(PngAlphaCleanup.ZERO, above, row));
+		// each transparent pixel takes the colour of the one to its left, once that is filled in
+		assertArrayEquals(new byte[] { 0, 10, 20, 30, (byte) 255, 10, 20, 30, 0, 10, 20, 30, 0 }, clean(PngAlphaCleanup.LEFT, above, row));
+		assertArrayEquals(new byte[] { 0, 10, 20, 30, (byte) 255, 8, 9, 10, 0, 11, 12, 13, 0 }, clean(PngAlphaCleanup.UP, above, row));
+	}
+
+	/* The row after cleaning, for an 8 bit truecolor image with alpha, following the row above */
+	private static byte[] clean(PngAlphaCleanup cleanup, byte[] above, byte[] row) {
+		final PngAlphaCleaner cleaner = new PngAlphaCleaner(cleanup, row.length, 8, 4);
+		final byte[] opaque = above.clone();
+		assertFalse(cleaner.clean(opaque));
+		assertArrayEquals(above, opaque);
+
+		final byte[] cleaned = row.clone();
+		assertEquals(cleanup != PngAlphaCleanup.NONE, cleaner.clean(cleaned));
+		return cleaned;
+	}
+
+	/* The test suite's images, less the corrupt ones, whose names start with x */
+	private static List<String> files() {
+		final List<String> files = new ArrayList<>();
+		for (final String file : new File(DIR).list()) {
+			if (file.endsWith(".png") && !file.startsWith("x")) {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
+	private static byte[] optimize(PngOptimizer optimizer, String file) throws IOException {
+		final PngImage optimized = optimizer.optimize(new PngImage(DIR + file, "none"), false, 9);
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		optimized.writeDataOutputStream(bytes);
+		return bytes.toByteArray();
+	}
+
+	/* The number of full compression trials optimizing the file takes */
+	private static int compressions(PngOptimizer optimizer, String file) throws IOException {
+		final PngMetrics metrics = new PngMetrics();
+		optimizer.optimize(new PngImage(DIR + file, "none"), false, 9, metrics);
+
+		int compressions = 0;
+		for (PngMetrics.Measurement measurement : metrics.getMeasurements()) {
+			if (measurement.getStage() == PngMetrics.Stage.COMPRESS) {
+				compressions++;
+			}
+		}
+		return compressions;
+	}
+
+	/* */
+	private static int imageDataLength(PngImage image) {
+		int length = 0;
+		for (PngChunk chunk : image.getChunks()) {
+			if (PngChunk.IMAGE_DATA.equals(chunk.getTypeString())) {
+				length += chunk.getLength();
+			}
+		}
+		return length;
+	}
+
+	private static byte[] readRGBA16(PngImage image) throws IOException {
+		final int width = (int) image.getWidth();
+		final byte[] rgba = new byte[width * 8 * (int) image.getHeight()];
+		new PngReader().read(image, PngPixelFormat.RGBA16, rgba, 0, width * 8);
+		return rgba;
+	}
+}